@@ -0,0 +1,84 @@
+package gate.plugins.annotationgraphs.bench;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.plugins.annotationgraphs.AnnotationGraph;
+import gate.util.GateException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the methods which create range annotations.
+ * The range annotations created by each call get removed again after the call, outside
+ * of the measured time.
+ *
+ * @author Johann Petrak
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClusteringBenchmark {
+
+  @Param({"10000", "100000"})
+  public int nodes;
+
+  protected SyntheticGraph g;
+  protected AnnotationSet subSet;
+  protected List<Annotation> ranges;
+
+  @Setup(Level.Trial)
+  public void setup() throws GateException {
+    // the edges do not matter here
+    g = new SyntheticGraph(nodes, 0, SyntheticGraph.Degrees.UNIFORM, 1, AnnotationGraph.EdgeStorage.PRIMITIVE, 42);
+    g.graph.addEdgeName("range");
+    subSet = g.set.get(SyntheticGraph.TYPE);
+  }
+
+  @TearDown(Level.Invocation)
+  public void removeRanges() {
+    if(ranges != null) {
+      g.graph.removeAnnotations(ranges);
+      ranges = null;
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    g.close();
+  }
+
+  @Benchmark
+  public List<Annotation> maxOverlapping() {
+    ranges = g.graph.getMaxOverlappingRangeAnnotations("range", subSet, "Range", 1);
+    return ranges;
+  }
+
+  @Benchmark
+  public List<Annotation> sequOverlapping() {
+    ranges = g.graph.getSequOverlappingRangeAnnotations("range", subSet, "Range", 1);
+    return ranges;
+  }
+
+  @Benchmark
+  public List<Annotation> coextensive() {
+    ranges = g.graph.getCoextensiveRangeAnnotations("range", subSet, "Range", 2);
+    return ranges;
+  }
+
+}
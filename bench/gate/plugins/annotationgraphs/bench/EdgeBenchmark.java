@@ -0,0 +1,152 @@
+package gate.plugins.annotationgraphs.bench;
+
+import gate.Annotation;
+import gate.plugins.annotationgraphs.AnnotationGraph;
+import gate.util.GateException;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for adding, checking, removing and sorting single edges.
+ *
+ * @author Johann Petrak
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EdgeBenchmark {
+
+  @Param({"10000"})
+  public int nodes;
+
+  @Param({"8"})
+  public int degree;
+
+  @Param({"UNIFORM", "POWERLAW"})
+  public SyntheticGraph.Degrees degrees;
+
+  @Param({"1", "4"})
+  public int edgeNames;
+
+  @Param({"PRIMITIVE", "HASHED", "BOXED"})
+  public AnnotationGraph.EdgeStorage storage;
+
+  protected SyntheticGraph g;
+  protected Random rnd;
+  // the last sort order used for each node and edge name, indexed by node*edgeNames+edge
+  protected boolean[] descending;
+
+  protected static final Comparator<Annotation> BY_START = new Comparator<Annotation>() {
+    @Override
+    public int compare(Annotation a1, Annotation a2) {
+      return a1.getStartNode().getOffset().compareTo(a2.getStartNode().getOffset());
+    }
+  };
+  protected static final Comparator<Annotation> BY_START_DESC = new Comparator<Annotation>() {
+    @Override
+    public int compare(Annotation a1, Annotation a2) {
+      return a2.getStartNode().getOffset().compareTo(a1.getStartNode().getOffset());
+    }
+  };
+
+  @Setup(Level.Trial)
+  public void setup() throws GateException {
+    g = new SyntheticGraph(nodes, degree, degrees, edgeNames, storage, 42);
+    rnd = new Random(1);
+    descending = new boolean[nodes * edgeNames];
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    g.close();
+  }
+
+  protected Annotation randomNode() {
+    return g.nodes[SyntheticGraph.pick(rnd, nodes, degrees)];
+  }
+
+  protected String randomEdgeName() {
+    return g.edgeNames[rnd.nextInt(edgeNames)];
+  }
+
+  /**
+   * Flip the sort order remembered for the given node and edge name and return the new one.
+   */
+  protected boolean toggleOrder(int node, int edge) {
+    int i = node * edgeNames + edge;
+    descending[i] = !descending[i];
+    return descending[i];
+  }
+
+  @Benchmark
+  public boolean hasEdge() {
+    return g.graph.hasEdge(randomEdgeName(), randomNode(), randomNode());
+  }
+
+  /**
+   * Add an edge which does not exist yet and remove it again, so the graph stays the same.
+   * If the random edge already exists, nothing gets changed, since removing it after the
+   * add would remove the original edge for HASHED storage and leave a duplicate otherwise.
+   */
+  @Benchmark
+  public boolean addRemoveEdge() {
+    String edgeName = randomEdgeName();
+    Annotation from = randomNode();
+    Annotation to = randomNode();
+    if(g.graph.hasEdge(edgeName, from, to)) {
+      return false;
+    }
+    g.graph.addEdge(edgeName, from, to);
+    g.graph.removeEdge(edgeName, from, to);
+    return true;
+  }
+
+  @Benchmark
+  public int getEdgeSize() {
+    return g.graph.getEdgeSize(randomEdgeName(), randomNode());
+  }
+
+  /**
+   * Sort the edges of a node. Each node and edge name alternates between two orders, so
+   * apart from the first sort of a list, the list is never already in the requested order.
+   */
+  @Benchmark
+  public void sortEdges() {
+    int node = SyntheticGraph.pick(rnd, nodes, degrees);
+    int edge = rnd.nextInt(edgeNames);
+    boolean desc = toggleOrder(node, edge);
+    g.graph.sortEdges(g.edgeNames[edge], g.nodes[node], desc ? BY_START_DESC : BY_START);
+  }
+
+  /**
+   * Like sortEdges, but the ascending sort uses the built-in offset keys.
+   */
+  @Benchmark
+  public void sortEdgesByOffset() {
+    int node = SyntheticGraph.pick(rnd, nodes, degrees);
+    int edge = rnd.nextInt(edgeNames);
+    if(toggleOrder(node, edge)) {
+      g.graph.sortEdges(g.edgeNames[edge], g.nodes[node], BY_START_DESC);
+    } else {
+      g.graph.sortEdgesByOffset(g.edgeNames[edge], g.nodes[node]);
+    }
+  }
+
+}
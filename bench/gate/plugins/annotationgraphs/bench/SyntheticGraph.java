@@ -0,0 +1,96 @@
+package gate.plugins.annotationgraphs.bench;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.Gate;
+import gate.Utils;
+import gate.plugins.annotationgraphs.AnnotationGraph;
+import gate.util.GateException;
+import java.util.Random;
+
+/**
+ * Creates synthetic documents with an annotation graph for the benchmarks.
+ * <p>
+ * Each document has the given number of annotations, spread evenly over the text with
+ * random lengths, so that there are overlapping and coextensive annotations, and edges
+ * with the given number of edge names. The number of outgoing edges of each annotation
+ * is either close to the average degree for all annotations (UNIFORM) or follows a power
+ * law, so that a few hub annotations have a large part of all edges (POWERLAW). The
+ * targets of the edges are chosen the same way, so with a power law there are also hubs
+ * with very many incoming edges. The same seed always creates the same graph.
+ *
+ * @author Johann Petrak
+ */
+public class SyntheticGraph {
+
+  public static enum Degrees { UNIFORM, POWERLAW }
+
+  public static final String SET_NAME = "Bench";
+  public static final String TYPE = "Node";
+
+  public final Document doc;
+  public final AnnotationSet set;
+  public final AnnotationGraph graph;
+  public final Annotation[] nodes;
+  public final String[] edgeNames;
+
+  public SyntheticGraph(int nodeCount, int avgDegree, Degrees degrees, int edgeNameCount, 
+          AnnotationGraph.EdgeStorage storage, long seed) throws GateException {
+    init();
+    Random rnd = new Random(seed);
+    int length = nodeCount * 4 + 16;
+    doc = Factory.newDocument(new String(new char[length]).replace('\0', ' '));
+    set = doc.getAnnotations(SET_NAME);
+    graph = AnnotationGraph.getAnnotationGraph(doc, set);
+    graph.setEdgeStorage(storage);
+    edgeNames = new String[edgeNameCount];
+    for(int e=0; e<edgeNameCount; e++) {
+      edgeNames[e] = "e"+e;
+      graph.addEdgeName(edgeNames[e]);
+    }
+    nodes = new Annotation[nodeCount];
+    for(int i=0; i<nodeCount; i++) {
+      // two annotations start at each position, so some of them are coextensive
+      long start = (i/2)*4L;
+      nodes[i] = set.get(Utils.addAnn(set, start, start+1+rnd.nextInt(8), TYPE, Utils.featureMap()));
+    }
+    int edgeCount = nodeCount * avgDegree;
+    int[] fromIds = new int[edgeCount];
+    int[] toIds = new int[edgeCount];
+    for(int e=0; e<edgeNameCount; e++) {
+      for(int i=0; i<edgeCount; i++) {
+        fromIds[i] = nodes[pick(rnd, nodeCount, degrees)].getId();
+        toIds[i] = nodes[pick(rnd, nodeCount, degrees)].getId();
+      }
+      graph.addEdges(edgeNames[e], fromIds, toIds);
+    }
+  }
+
+  /**
+   * Pick a node number, either uniformly or from a power law where node 0 is the biggest hub.
+   */
+  public static int pick(Random rnd, int n, Degrees degrees) {
+    if(degrees == Degrees.UNIFORM) {
+      return rnd.nextInt(n);
+    }
+    // inverse transform sampling for a Pareto distribution with exponent ~2
+    double u = rnd.nextDouble();
+    int node = (int)(1.0 / (1.0 - u*(1.0 - 1.0/n))) - 1;
+    return Math.min(node, n-1);
+  }
+
+  public static void init() throws GateException {
+    if(!Gate.isInitialised()) {
+      Gate.runInSandbox(true);
+      Gate.init();
+    }
+  }
+
+  public void close() {
+    graph.close();
+    Factory.deleteResource(doc);
+  }
+
+}
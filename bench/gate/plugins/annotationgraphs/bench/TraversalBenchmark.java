@@ -0,0 +1,102 @@
+package gate.plugins.annotationgraphs.bench;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.plugins.annotationgraphs.AnnotationGraph;
+import gate.plugins.annotationgraphs.FrozenAnnotationGraph;
+import gate.plugins.annotationgraphs.IntCursor;
+import gate.util.GateException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for transitive queries and for iterating over the edges of a node.
+ * The average degree is low, so that the transitive sets do not always cover most of 
+ * the graph.
+ *
+ * @author Johann Petrak
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TraversalBenchmark {
+
+  @Param({"10000", "100000"})
+  public int nodes;
+
+  @Param({"1"})
+  public int degree;
+
+  @Param({"UNIFORM", "POWERLAW"})
+  public SyntheticGraph.Degrees degrees;
+
+  @Param({"1", "4"})
+  public int edgeNames;
+
+  protected SyntheticGraph g;
+  protected FrozenAnnotationGraph frozen;
+  protected Random rnd;
+
+  @Setup(Level.Trial)
+  public void setup() throws GateException {
+    g = new SyntheticGraph(nodes, degree, degrees, edgeNames, AnnotationGraph.EdgeStorage.PRIMITIVE, 42);
+    frozen = g.graph.snapshot();
+    rnd = new Random(1);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    g.close();
+  }
+
+  protected Annotation randomNode() {
+    return g.nodes[rnd.nextInt(nodes)];
+  }
+
+  @Benchmark
+  public AnnotationSet getTransitiveAnnotationSet() {
+    return g.graph.getTransitiveAnnotationSet(g.edgeNames[0], randomNode());
+  }
+
+  @Benchmark
+  public int[] getTransitiveIds() {
+    return g.graph.getTransitiveIds(g.edgeNames[0], randomNode());
+  }
+
+  @Benchmark
+  public AnnotationSet getFullTransitiveAnnotationSet() {
+    return g.graph.getFullTransitiveAnnotationSet(randomNode());
+  }
+
+  @Benchmark
+  public AnnotationSet frozenTransitiveAnnotationSet() {
+    return frozen.getTransitiveAnnotationSet(g.edgeNames[0], randomNode());
+  }
+
+  @Benchmark
+  public long sumNeighbourIds() {
+    long sum = 0;
+    IntCursor c = g.graph.getIdCursor(g.edgeNames[0], randomNode());
+    while(c.hasNext()) {
+      sum += c.next();
+    }
+    return sum;
+  }
+
+}
@@ -15,26 +15,77 @@ import gate.event.CreoleListener;
 import gate.event.DocumentEvent;
 import gate.event.DocumentListener;
 import gate.util.GateRuntimeException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class AnnotationGraph 
-  implements AnnotationSetListener, DocumentListener, CreoleListener 
+  implements AnnotationSetListener, DocumentListener 
 {
 
   // Constants
   protected static final String AG_FNS_PREFIX = "_ag";
   protected static final String AG_DFN_EDGES = AG_FNS_PREFIX + ".edges";
   protected static final String AG_DFN_DEFEDGE = AG_FNS_PREFIX + ".defedge";
+  protected static final String AG_DFN_STORAGE = AG_FNS_PREFIX + ".storage";
+  protected static final String AG_DFN_PROPS = AG_FNS_PREFIX + ".props.";
+  protected static final String AG_DFN_ORDERED = AG_FNS_PREFIX + ".ordered";
+  // grepAllEdges calls the filter in parallel if there are at least this many sources
+  protected static final int PARALLEL_GREP_MIN_SOURCES = 256;
+  
+  /**
+   * How new edge id lists get stored in the annotation feature maps.
+   * Both kinds get stored under the same feature names and both are a List&lt;Integer&gt;, 
+   * so existing lists of the other kind are still handled, the mode only decides
+   * which kind of list gets created when an annotation gets its first edge.
+   */
+  public static enum EdgeStorage {
+    /**
+     * Store ids in a growable primitive int array (IntList).
+     * IntList is a class of this plugin, so a document with such lists can only be loaded
+     * where the plugin is available, unless encodeEdgeLists gets called before saving it.
+     */
+    PRIMITIVE,
+    /**
+     * Store ids in an ArrayList&lt;Integer&gt;, as earlier versions of this plugin did.
+     * This is the default, since documents with these lists can be saved in any format
+     * and loaded without this plugin.
+     */
+    BOXED,
+    /**
+     * Store ids in an IntList which also has a hash index of the ids (IndexedIntList).
+     * This makes hasEdge and removing edges take constant time even for annotations 
+     * with a huge number of edges, at the cost of more memory per edge. As for PRIMITIVE,
+     * encodeEdgeLists should be called before saving the document. In this mode
+     * there can be at most one edge with a given name between two annotations, adding
+     * an edge that already exists does nothing. So unlike for the other modes, adding the
+     * same edge twice with addEdge or addEdges counts once for getEdgeSize, and a single
+     * removeEdge removes it.
+     */
+    HASHED
+  }
   
   /// global members
   protected boolean isActive = false;
@@ -44,13 +95,53 @@ public class AnnotationGraph
   protected String setName;
   
   protected String defaultName = null;
+  protected EdgeStorage edgeStorage = EdgeStorage.BOXED;
+  // true while removeAnnotations removes annotations from the set, which does its own cleanup
+  protected boolean ignoreRemovals = false;
   
   protected Set<String> edgeSet;
   protected HashMap<String,String> toEdgeNames;
   protected HashMap<String,String> fromEdgeNames;
+  // the edge names whose to lists are kept in document order
+  protected Set<String> orderedEdges;
+  // the edge property stores which have been looked up in the document features, also
+  // used to lock the access to those features
+  protected final HashMap<String,EdgePropertyStore> propertyStores = new HashMap<String,EdgePropertyStore>();
+  // the decoded form of encoded edge lists for the methods which only read them, so that
+  // reading never changes a feature map; an entry goes away once its encoded value does
+  protected final Map<String,List<Integer>> decodedLists =
+          Collections.synchronizedMap(new WeakHashMap<String,List<Integer>>());
+  // the largest id of any annotation added to the set while the graph was active
+  protected final AtomicInteger maxId = new AtomicInteger(-1);
+  // changed whenever an annotation gets added to or removed from the set
+  protected final AtomicInteger setVersion = new AtomicInteger();
+  // the annotations of the set in id order, for the version of the set it was made for
+  protected volatile IdOrder idOrder = null;
 
+  /// registry of all active instances, per document
+  // The documents are only weakly referenced, so the entries go away once a document
+  // is garbage collected. The graphs must be weakly referenced too, since each graph
+  // strongly references its document and would otherwise keep its own key alive.
+  protected static final Map<Document,List<WeakReference<AnnotationGraph>>> registry =
+          new WeakHashMap<Document,List<WeakReference<AnnotationGraph>>>();
+  // the one CreoleListener for all graphs, registered when the first graph gets created
+  protected static CreoleListener unloadListener = null;
+  // null unless metrics got enabled with setMetrics
+  protected static volatile GraphMetrics metrics = null;
+  
   
   public AnnotationGraph(Document doc, AnnotationSet set) {
+    this(doc, set, true);
+  }
+
+  /**
+   * Create the graph, and if activate is false, leave it to the subclass constructor to
+   * call activate() once all of its own fields are set.
+   * @param doc
+   * @param set
+   * @param activate
+   */
+  protected AnnotationGraph(Document doc, AnnotationSet set, boolean activate) {
     this.doc = doc;
     if(!set.getDocument().equals(doc)) {
       throw new GateRuntimeException("AnnotationSet is not from the given document!");
@@ -69,19 +160,66 @@ public class AnnotationGraph
       toEdgeNames.put(edgeName,AG_FNS_PREFIX+".to."+edgeName);
       fromEdgeNames.put(edgeName,AG_FNS_PREFIX+".from."+edgeName);
     }
+    orderedEdges = new HashSet<String>();
+    List<String> orderedList = (List<String>)doc.getFeatures().get(AG_DFN_ORDERED);
+    if(orderedList != null) {
+      orderedEdges.addAll(orderedList);
+    }
     defaultName = (String)doc.getFeatures().get(AG_DFN_DEFEDGE);
     // Make it easier to check if the default name is set by letting it never be empty, but
     // either null or a valid name.
     if(defaultName != null && defaultName.isEmpty()) {
       defaultName = null;
     }
+    String storageName = (String)doc.getFeatures().get(AG_DFN_STORAGE);
+    if(storageName != null && !storageName.isEmpty()) {
+      edgeStorage = EdgeStorage.valueOf(storageName);
+    }
+    if(activate) {
+      activate();
+    }
+  }
+
+  /**
+   * Start listening to the set and register the graph, which makes it visible to other
+   * threads through getAnnotationGraph and getActiveGraphs.
+   */
+  protected void activate() {
     set.addAnnotationSetListener(this);
-    Factory.addCreoleListener(this);
+    for(Annotation ann : set) {
+      raiseMaxAnnotationId(ann.getId());
+    }
+    register(this);
     isActive = true;
   }
   
+  /**
+   * Return the AnnotationGraph for the given document and set.
+   * The first call for a document and set creates the graph, all later calls return the 
+   * same instance until the graph gets closed or the document gets unloaded. Since each
+   * graph listens for the removal of annotations from its set, this should be used
+   * instead of the constructor, so that removing an annotation gets handled just once,
+   * no matter how many processing resources use the graph.
+   * @param doc
+   * @param set
+   * @return 
+   */
   public static AnnotationGraph getAnnotationGraph(Document doc, AnnotationSet set) {
-    return new AnnotationGraph(doc,set);
+    if(!set.getDocument().equals(doc)) {
+      throw new GateRuntimeException("AnnotationSet is not from the given document!");
+    }
+    synchronized(registry) {
+      List<WeakReference<AnnotationGraph>> refs = registry.get(doc);
+      if(refs != null) {
+        for(WeakReference<AnnotationGraph> ref : refs) {
+          AnnotationGraph ag = ref.get();
+          if(ag != null && ag.isActive && ag.set == set) {
+            return ag;
+          }
+        }
+      }
+      return new AnnotationGraph(doc,set);
+    }
   }
   
   //////////////////////////////
@@ -126,6 +264,13 @@ public class AnnotationGraph
       fromEdgeNames.remove(name);
       List<String> edgeList = (List<String>)doc.getFeatures().get(AG_DFN_EDGES);
       edgeList.remove(name);
+      synchronized(propertyStores) {
+        propertyStores.remove(name);
+        doc.getFeatures().remove(AG_DFN_PROPS+name);
+      }
+      if(orderedEdges.remove(name)) {
+        ((List<String>)doc.getFeatures().get(AG_DFN_ORDERED)).remove(name);
+      }
     } else {
       throw new GateRuntimeException("Attempt to remove the non-existing edge name "+name);
     }
@@ -139,22 +284,126 @@ public class AnnotationGraph
     return Collections.unmodifiableCollection(edgeSet);
   }
   
-    
+  
+  /**
+   * Stop using the graph: it no longer listens to the set and all its methods throw an
+   * exception. The edges stored in the annotation features are kept.
+   * <p>
+   * Since getAnnotationGraph returns the same instance to all callers for a document and
+   * set, this closes the graph for every holder of that instance, not just the caller.
+   * The next call of getAnnotationGraph then creates a new graph.
+   */
   public void close() {
     deActivate();
   }
   
+  /**
+   * Create an immutable snapshot of the current graph.
+   * The snapshot stores the edges for all edge names in compressed sparse row arrays and
+   * supports the read-only query methods of the graph. It does not reflect any changes 
+   * made to the graph or the annotation set after it was created.
+   * @return 
+   */
+  public FrozenAnnotationGraph snapshot() {
+    ensureActive();
+    return new FrozenAnnotationGraph(this);
+  }
+  
+  /**
+   * Compute the number of annotations and edges and the degree distributions of this graph.
+   * This makes one pass over all annotations of the set.
+   * @return 
+   */
+  public GraphStatistics getStatistics() {
+    ensureActive();
+    return new GraphStatistics(this);
+  }
+  
+  /**
+   * Set the metrics which get the timings of the expensive operations of all graphs, 
+   * or null to disable collecting timings, which is the default.
+   * @param metrics 
+   */
+  public static void setMetrics(GraphMetrics metrics) {
+    AnnotationGraph.metrics = metrics;
+  }
+  
+  public static GraphMetrics getMetrics() {
+    return metrics;
+  }
+  
+  /**
+   * Return all graphs which are currently active.
+   * @return 
+   */
+  public static List<AnnotationGraph> getActiveGraphs() {
+    List<AnnotationGraph> ret = new ArrayList<AnnotationGraph>();
+    synchronized(registry) {
+      for(List<WeakReference<AnnotationGraph>> refs : registry.values()) {
+        for(WeakReference<AnnotationGraph> ref : refs) {
+          AnnotationGraph ag = ref.get();
+          if(ag != null && ag.isActive) {
+            ret.add(ag);
+          }
+        }
+      }
+    }
+    return ret;
+  }
+  
+  /**
+   * Replace all edge lists in the set by a compact string encoding.
+   * This should be called before saving the document in a format like GATE XML which
+   * writes each element of a list feature value separately. The encoded form stores each 
+   * id as a variable length difference to the previous id, so it is usually a few bytes per 
+   * edge. The edge lists get decoded again one by one, whenever they are first needed by
+   * an AnnotationGraph, including one created for the document after loading it.
+   */
+  public void encodeEdgeLists() {
+    ensureActive();
+    for(Annotation ann : set) {
+      FeatureMap fm = ann.getFeatures();
+      for(String edgeName : edgeSet) {
+        encodeIdList(fm, toEdgeNames.get(edgeName));
+        encodeIdList(fm, fromEdgeNames.get(edgeName));
+      }
+    }
+  }
+  
 
   
   
+  /**
+   * Set the kind of list used for storing edges of annotations which do not have edges yet.
+   * The setting is stored in the document features, so it also applies to all other
+   * AnnotationGraph instances for the document. 
+   * @param storage 
+   */
+  public void setEdgeStorage(EdgeStorage storage) {
+    ensureActive();
+    if(storage == null) {
+      throw new GateRuntimeException("Edge storage mode must not be null");
+    }
+    edgeStorage = storage;
+    doc.getFeatures().put(AG_DFN_STORAGE, storage.name());
+  }
+  
+  public EdgeStorage getEdgeStorage() {
+    return edgeStorage;
+  }
+  
   public void addEdge(String edgeName, Annotation from, Annotation to) {
     ensureActive();
     ensureAnnotation(from);
     ensureAnnotation(to);
     List<Integer> ids = getToEdgesList(edgeName, from);
-    ids.add(to.getId());
+    if(orderedEdges.contains(edgeName)) {
+      insertInDocumentOrder(edgeName, from, ids, to);
+    } else {
+      addId(ids, to.getId());
+    }
     ids = getFromEdgesList(edgeName,to);
-    ids.add(from.getId());
+    addId(ids, from.getId());
   }
   
   public void addEdge(Annotation from, Annotation to) {
@@ -162,6 +411,52 @@ public class AnnotationGraph
     addEdge(defaultName, from, to);
   }
   
+  /**
+   * Add many edges at once.
+   * This adds an edge from the annotation with id fromIds[i] to the annotation with id toIds[i]
+   * for each i. The result is the same as calling addEdge for each pair in order, but all ids 
+   * are checked before anything gets changed, and each to and from list of an annotation only
+   * gets looked up and grown once. 
+   * @param edgeName
+   * @param fromIds
+   * @param toIds 
+   */
+  public void addEdges(String edgeName, int[] fromIds, int[] toIds) {
+    ensureActive();
+    ensureEdge(edgeName);
+    if(fromIds.length != toIds.length) {
+      throw new GateRuntimeException("Different number of from and to ids: "+fromIds.length+"/"+toIds.length);
+    }
+    int n = fromIds.length;
+    if(n == 0) {
+      return;
+    }
+    // Give each distinct annotation id a number and check that all the annotations exist.
+    // The source and target numbers of each edge are remembered so that the edges
+    // can be grouped by source and target with a counting sort.
+    IntIntMap numbers = new IntIntMap();
+    List<Annotation> anns = new ArrayList<Annotation>();
+    int[] fromNumbers = new int[n];
+    int[] toNumbers = new int[n];
+    for(int i=0; i<n; i++) {
+      fromNumbers[i] = numberAnnotation(fromIds[i], numbers, anns);
+      toNumbers[i] = numberAnnotation(toIds[i], numbers, anns);
+    }
+    // forward edges: group by source, keeping the input order, and append to each to list once
+    appendGrouped(toEdgeNames.get(edgeName), fromNumbers, toIds, anns);
+    // reverse edges: group by target and append to each from list once
+    appendGrouped(fromEdgeNames.get(edgeName), toNumbers, fromIds, anns);
+    if(orderedEdges.contains(edgeName)) {
+      boolean[] done = new boolean[anns.size()];
+      for(int number : fromNumbers) {
+        if(!done[number]) {
+          done[number] = true;
+          sortEdgesByOffset(edgeName, anns.get(number));
+        }
+      }
+    }
+  }
+  
   
   public void addBothEdges(String edgeName, Annotation ann1, Annotation ann2) {
     addEdge(edgeName, ann1, ann2);
@@ -179,13 +474,18 @@ public class AnnotationGraph
     ensureAnnotation(from);
     ensureAnnotation(to);
     List<Integer> ids = getToEdgesList(edgeName, from);
-    boolean done = ids.remove(to.getId());
+    EdgePropertyStore store = getPropertyStore(edgeName, false);
+    int pos = store == null ? -1 : indexOfId(ids, to.getId());
+    boolean done = removeId(ids, to.getId());
     if(!done) {
       throw new GateRuntimeException("Attempt to remove a non-existing to edge between annotations "+from+" and "+to);
     }
+    if(pos >= 0) {
+      store.removeAt(from.getId(), pos);
+    }
     removeEmptyToEdgeList(edgeName, from);
     ids = getFromEdgesList(edgeName,to);
-    done = ids.remove(from.getId());    
+    done = removeId(ids, from.getId());    
     if(!done) {
       throw new GateRuntimeException("Attempt to remove a non-existing from edge between annotations "+from+" and "+to);
     }
@@ -205,11 +505,7 @@ public class AnnotationGraph
     if(ids == null) {
       return false;
     }
-    if(ids.contains(to.getId())) {
-      return true;
-    } else {
-      return false;
-    }
+    return containsId(ids, to.getId());
   }
   
   public boolean hasEdge(Annotation from, Annotation to) {
@@ -252,22 +548,26 @@ public class AnnotationGraph
   public void removeEdges(String edgeName, Annotation ann) {
     ensureActive();
     ensureAnnotation(ann);
-    List<Integer> ids = getToEdges(edgeName,ann);
+    List<Integer> ids = getWritableToEdges(edgeName,ann);
     int thisId = ann.getId();
     if(ids != null) {
       // remove each individual edge
-      Iterator<Integer> it = ids.iterator();
-      while(it.hasNext()) {
-        Integer id = it.next();
-        Annotation tmp = set.get(id);
-        List<Integer> otherIds = getFromEdges(edgeName,ann);
-        boolean done = otherIds.remove((Integer)thisId);
+      int n = ids.size();
+      for(int i=0; i<n; i++) {
+        Annotation tmp = set.get(idAt(ids, i));
+        List<Integer> otherIds = getWritableFromEdges(edgeName,tmp);
+        boolean done = otherIds != null && removeId(otherIds, thisId);
         if(!done) {
           throw new GateRuntimeException("Unexpected inconsistency!");
         }
         removeEmptyFromEdgeList(edgeName, tmp);
       }
+      ids.clear();
       removeEmptyToEdgeList(edgeName, ann);
+      EdgePropertyStore store = getPropertyStore(edgeName, false);
+      if(store != null) {
+        store.remove(thisId);
+      }
     }
   }
   
@@ -284,8 +584,9 @@ public class AnnotationGraph
     if(ids == null) {
       return ret;
     }
-    for(Integer id : ids) {
-      ret.add(set.get(id));
+    int n = ids.size();
+    for(int i=0; i<n; i++) {
+      ret.add(set.get(idAt(ids, i)));
     }
     return ret;
   }
@@ -304,8 +605,9 @@ public class AnnotationGraph
     if(ids == null) {
       return ret;
     }
-    for(Integer id : ids) {
-      ret.add(set.get(id));
+    int n = ids.size();
+    for(int i=0; i<n; i++) {
+      ret.add(set.get(idAt(ids, i)));
     }
     return ret;
   }
@@ -315,6 +617,76 @@ public class AnnotationGraph
     return getReferencingAnnotations(defaultName,ann);
   }
   
+  /**
+   * Return an iterator over the annotations this annotation points to.
+   * Unlike getAnnotations, this does not create a list: each annotation only gets looked up
+   * when the iterator gets to it. The edges must not be changed while the iterator is used,
+   * except by calling the iterator's remove method, which removes the edge to the annotation 
+   * last returned, exactly like removeEdge.
+   * @param edgeName
+   * @param ann
+   * @return 
+   */
+  public Iterator<Annotation> getAnnotationsIterator(String edgeName, Annotation ann) {
+    ensureActive();
+    ensureAnnotation(ann);
+    return new EdgeIterator(edgeName, ann, true);
+  }
+  
+  public Iterator<Annotation> getAnnotationsIterator(Annotation ann) {
+    ensureDefaultEdge();
+    return getAnnotationsIterator(defaultName, ann);
+  }
+  
+  /**
+   * Return an iterator over the annotations which point to this annotation.
+   * The remove method of the iterator removes the edge from the annotation last returned
+   * to this annotation.
+   * @param edgeName
+   * @param ann
+   * @return 
+   */
+  public Iterator<Annotation> getReferencingAnnotationsIterator(String edgeName, Annotation ann) {
+    ensureActive();
+    ensureAnnotation(ann);
+    return new EdgeIterator(edgeName, ann, false);
+  }
+  
+  public Iterator<Annotation> getReferencingAnnotationsIterator(Annotation ann) {
+    ensureDefaultEdge();
+    return getReferencingAnnotationsIterator(defaultName, ann);
+  }
+  
+  /**
+   * Return a cursor over the ids of the annotations this annotation points to.
+   * This does not box the ids or create an id list for the annotation. The edges must not be 
+   * changed while the cursor is used.
+   * @param edgeName
+   * @param ann
+   * @return 
+   */
+  public IntCursor getIdCursor(String edgeName, Annotation ann) {
+    ensureActive();
+    ensureAnnotation(ann);
+    return cursorOf(getToEdges(edgeName, ann));
+  }
+  
+  public IntCursor getIdCursor(Annotation ann) {
+    ensureDefaultEdge();
+    return getIdCursor(defaultName, ann);
+  }
+  
+  public IntCursor getReferencingIdCursor(String edgeName, Annotation ann) {
+    ensureActive();
+    ensureAnnotation(ann);
+    return cursorOf(getFromEdges(edgeName, ann));
+  }
+  
+  public IntCursor getReferencingIdCursor(Annotation ann) {
+    ensureDefaultEdge();
+    return getReferencingIdCursor(defaultName, ann);
+  }
+  
   
   public AnnotationSet getAnnotationSet(String edgeName, Annotation ann) {
     ensureActive();
@@ -324,8 +696,9 @@ public class AnnotationGraph
     if(ids == null) {
       return ret;
     }
-    for(Integer id : ids) {
-      ret.add(set.get(id));
+    int n = ids.size();
+    for(int i=0; i<n; i++) {
+      ret.add(set.get(idAt(ids, i)));
     }
     return ret;
   }
@@ -343,8 +716,9 @@ public class AnnotationGraph
     if(ids == null) {
       return ret;
     }
-    for(Integer id : ids) {
-      ret.add(set.get(id));
+    int n = ids.size();
+    for(int i=0; i<n; i++) {
+      ret.add(set.get(idAt(ids, i)));
     }
     return ret;
   }
@@ -362,8 +736,9 @@ public class AnnotationGraph
     if(ids == null) {
       return ret;
     }
-    for(Integer id : ids) {
-      ret.add(set.get(id).getFeatures());
+    int n = ids.size();
+    for(int i=0; i<n; i++) {
+      ret.add(set.get(idAt(ids, i)).getFeatures());
     }
     return ret;    
   }
@@ -381,8 +756,9 @@ public class AnnotationGraph
     if(ids == null) {
       return ret;
     }
-    for(Integer id : ids) {
-      ret.add(set.get(id).getFeatures());
+    int n = ids.size();
+    for(int i=0; i<n; i++) {
+      ret.add(set.get(idAt(ids, i)).getFeatures());
     }
     return ret;    
   }
@@ -410,6 +786,25 @@ public class AnnotationGraph
     return Collections.unmodifiableList(ids);
   }
   
+  /**
+   * Get a copy of the ids of those annotations to which this annotation points as an int array.
+   * Unlike getIds, this does not create an id list for the annotation if it does not have
+   * one yet.
+   * @param edgeName
+   * @param ann
+   * @return 
+   */
+  public int[] getIdArray(String edgeName, Annotation ann) {
+    ensureActive();
+    ensureAnnotation(ann);
+    return toIdArray(getToEdges(edgeName, ann));
+  }
+  
+  public int[] getIdArray(Annotation ann) {
+    ensureDefaultEdge();
+    return getIdArray(defaultName,ann);
+  }
+  
   public List<Integer> getIds(Annotation ann) {
     ensureDefaultEdge();
     return getIds(defaultName,ann);
@@ -422,6 +817,17 @@ public class AnnotationGraph
     return Collections.unmodifiableList(ids);    
   }
   
+  public int[] getReferencingIdArray(String edgeName, Annotation ann) {
+    ensureActive();
+    ensureAnnotation(ann);
+    return toIdArray(getFromEdges(edgeName, ann));
+  }
+  
+  public int[] getReferencingIdArray(Annotation ann) {
+    ensureDefaultEdge();
+    return getReferencingIdArray(defaultName,ann);
+  }
+  
   public List<Integer> getReferencingIds(Annotation ann) {
     ensureDefaultEdge();
     return getReferencingIds(defaultName,ann);
@@ -431,56 +837,233 @@ public class AnnotationGraph
   public AnnotationSet getTransitiveAnnotationSet(String edgeName, Annotation ann) {
     ensureActive();
     ensureAnnotation(ann);
-    AnnotationSet ret = new AnnotationSetImpl(doc);
-    List<Integer> ids = getToEdges(edgeName, ann);
-    if(ids != null) {
-      // to do this, we add the ids to the working queue, then process the queue
-      LinkedList<Integer> q = new LinkedList<Integer>();
-      q.addAll(ids);
-      while(q.peek() != null) {
-        Integer id = q.remove();
-        Annotation a = set.get(id);
-        if(!ret.contains(a)) {
-          ret.add(a);
-          ids = getToEdges(edgeName, a);
-          if(ids != null) {
-            q.addAll(ids);
-          }
-        }
-      }
+    return toAnnotationSet(newTraversal(edgeName).run(ann.getId()));
+  }
+  
+  /**
+   * Return the ids of all annotations reachable from ann via edgeName, in breadth first order.
+   * The annotation ann itself is only included if there is a path back to it.
+   * @param edgeName
+   * @param ann
+   * @return 
+   */
+  public int[] getTransitiveIds(String edgeName, Annotation ann) {
+    ensureActive();
+    ensureAnnotation(ann);
+    return newTraversal(edgeName).run(ann.getId());
+  }
+  
+  /**
+   * Return the annotations reachable from ann via at most maxDepth edges, in breadth first order.
+   * Unlike getTransitiveAnnotationSet this does not build an AnnotationSet with its indices.
+   * @param edgeName
+   * @param ann
+   * @param maxDepth the maximum number of edges to follow or GraphTraversal.UNLIMITED
+   * @return 
+   */
+  public List<Annotation> getTransitiveAnnotations(String edgeName, Annotation ann, int maxDepth) {
+    ensureActive();
+    ensureAnnotation(ann);
+    GraphTraversal traversal = newTraversal(edgeName);
+    traversal.setMaxDepth(maxDepth);
+    int[] ids = traversal.run(ann.getId());
+    List<Annotation> ret = new ArrayList<Annotation>(ids.length);
+    for(int id : ids) {
+      ret.add(annotationById(id));
     }
     return ret;
   }
   
+  /**
+   * Return the set of all annotations reachable from ann via any path that only uses edges
+   * with the given names. Different steps of a path can use different edge names.
+   * @param edgeNames
+   * @param ann
+   * @return 
+   */
+  public AnnotationSet getTransitiveAnnotationSet(Collection<String> edgeNames, Annotation ann) {
+    ensureActive();
+    ensureAnnotation(ann);
+    return toAnnotationSet(newTraversal(edgeNames).run(ann.getId()));
+  }
+  
+  public int[] getTransitiveIds(Collection<String> edgeNames, Annotation ann) {
+    ensureActive();
+    ensureAnnotation(ann);
+    return newTraversal(edgeNames).run(ann.getId());
+  }
+  
   /**
    * Return the set of all transitive annotations for all known edge names.
+   * This includes all annotations reachable over paths which mix edges with different
+   * names, all edge names are followed together in a single traversal.
    * @param ann
    * @return 
    */
   public AnnotationSet getFullTransitiveAnnotationSet(Annotation ann) {
     ensureActive();
     ensureAnnotation(ann);
-    AnnotationSet ret = new AnnotationSetImpl(doc);
-    for (String edgeName : edgeSet) {
-      List<Integer> ids = getToEdges(edgeName, ann);
-      if (ids != null) {
-        // to do this, we add the ids to the working queue, then process the queue
-        LinkedList<Integer> q = new LinkedList<Integer>();
-        q.addAll(ids);
-        while (q.peek() != null) {
-          Integer id = q.remove();
-          Annotation a = set.get(id);
-          if (!ret.contains(a)) {
-            ret.add(a);
-            ids = getToEdges(edgeName, a);
-            if (ids != null) {
-              q.addAll(ids);
+    return toAnnotationSet(newTraversal(edgeSet).run(ann.getId()));
+  }
+  
+  //////////////////////////////////////////////////////////////
+  /// CONNECTED COMPONENTS AND DISTANCES
+  //////////////////////////////////////////////////////////////
+  
+  /**
+   * Find the weakly connected components of the graph formed by the edges with the given 
+   * names, or all known names if none are given.
+   * This makes a single pass over the set, joining the two ends of each edge in the to 
+   * lists of all the edge names of an annotation with union-find.
+   * @param edgeNames
+   * @return an array indexed by annotation id, which holds the smallest annotation id of the
+   * component for each annotation in the set, and -1 for all other ids.
+   */
+  public int[] getComponentIds(String... edgeNames) {
+    ensureActive();
+    edgeNames = edgeNamesOrAll(edgeNames);
+    String[] toKeys = new String[edgeNames.length];
+    for(int e=0; e<edgeNames.length; e++) {
+      toKeys[e] = toEdgeNames.get(edgeNames[e]);
+    }
+    int[] parent = new int[maxAnnotationId()+1];
+    Arrays.fill(parent, -1);
+    for(Annotation ann : set) {
+      int from = ann.getId();
+      if(parent[from] < 0) {
+        parent[from] = from;
+      }
+      FeatureMap fm = ann.getFeatures();
+      for(String toKey : toKeys) {
+        List<Integer> ids = getIdList(fm, toKey);
+        if(ids == null) { continue; }
+        int n = ids.size();
+        for(int i=0; i<n; i++) {
+          // the targets are in the set as well, they may just not have been visited yet
+          int id = idAt(ids, i);
+          if(id < parent.length) {
+            if(parent[id] < 0) {
+              parent[id] = id;
             }
+            union(parent, from, id);
           }
         }
-      } // if ids != null
-    } // for
-    return ret;    
+      }
+    }
+    for(int i=0; i<parent.length; i++) {
+      if(parent[i] >= 0) {
+        parent[i] = findRoot(parent, i);
+      }
+    }
+    return parent;
+  }
+  
+  /**
+   * Return the annotation ids of each weakly connected component with at least minSize
+   * annotations, see getComponentIds. The components are ordered by their smallest id and
+   * the ids within a component are in ascending order.
+   * @param minSize
+   * @param edgeNames
+   * @return 
+   */
+  public int[][] getComponents(int minSize, String... edgeNames) {
+    int[] components = getComponentIds(edgeNames);
+    int[] sizes = new int[components.length];
+    for(int root : components) {
+      if(root >= 0) {
+        sizes[root]++;
+      }
+    }
+    // the position of each kept component in the result, or -1
+    int[] index = new int[components.length];
+    int nComponents = 0;
+    for(int i=0; i<sizes.length; i++) {
+      index[i] = sizes[i] > 0 && sizes[i] >= minSize ? nComponents++ : -1;
+    }
+    int[][] ret = new int[nComponents][];
+    for(int i=0; i<sizes.length; i++) {
+      if(index[i] >= 0) {
+        ret[index[i]] = new int[sizes[i]];
+        sizes[i] = 0;
+      }
+    }
+    for(int id=0; id<components.length; id++) {
+      int root = components[id];
+      if(root >= 0 && index[root] >= 0) {
+        ret[index[root]][sizes[root]++] = id;
+      }
+    }
+    return ret;
+  }
+  
+  /**
+   * Return the number of edges on the shortest path from the annotation to each annotation,
+   * following the edges with the given names, or all known names if none are given, in the
+   * given direction.
+   * @param ann
+   * @param direction
+   * @param edgeNames
+   * @return an array indexed by annotation id which holds the distance, 0 for the annotation 
+   * itself and -1 for all annotations which cannot be reached.
+   */
+  public int[] getDistances(Annotation ann, GraphTraversal.Direction direction, String... edgeNames) {
+    return distances(ann, null, direction, edgeNames);
+  }
+  
+  /**
+   * Return the ids of the annotations on a shortest path from one annotation to the other,
+   * including both, following the edges with the given names, or all known names if none
+   * are given, in the given direction.
+   * @param from
+   * @param to
+   * @param direction
+   * @param edgeNames
+   * @return the ids or an empty array if there is no path.
+   */
+  public int[] getShortestPath(Annotation from, Annotation to, GraphTraversal.Direction direction, String... edgeNames) {
+    ensureActive();
+    ensureAnnotation(to);
+    edgeNames = edgeNamesOrAll(edgeNames);
+    int[] dist = distances(from, to, direction, edgeNames);
+    int target = to.getId();
+    if(target >= dist.length || dist[target] < 0) {
+      return new int[0];
+    }
+    // walk back from the target, each step to a neighbour which is one edge closer to the start
+    int[] path = new int[dist[target]+1];
+    int current = target;
+    for(int d=dist[target]; d>0; d--) {
+      path[d] = current;
+      Annotation ann = annotationById(current);
+      int previous = -1;
+      for(int e=0; e<edgeNames.length && previous < 0; e++) {
+        if(direction != GraphTraversal.Direction.REVERSE) {
+          previous = closerNeighbour(getReferencingIdCursor(edgeNames[e], ann), dist, d);
+        }
+        if(previous < 0 && direction != GraphTraversal.Direction.FORWARD) {
+          previous = closerNeighbour(getIdCursor(edgeNames[e], ann), dist, d);
+        }
+      }
+      if(previous < 0) {
+        // the edges changed since the distances were computed
+        return new int[0];
+      }
+      current = previous;
+    }
+    path[0] = current;
+    return path;
+  }
+  
+  /**
+   * Return the annotations at the end of the path from the annotation.
+   * See PathQuery for the syntax of the path. To run the same path many times, compile it
+   * once with PathQuery.compile and use the methods of the query.
+   * @param path
+   * @param ann
+   * @return 
+   */
+  public List<Annotation> getPathAnnotations(String path, Annotation ann) {
+    return PathQuery.compile(path).getAnnotations(this, ann);
   }
   
   /**
@@ -517,6 +1100,89 @@ public class AnnotationGraph
     return getEdgeSize(defaultName, ann);
   }
   
+  //////////////////////////////////////////////////////////////
+  /// STREAMS
+  //////////////////////////////////////////////////////////////
+  
+  // All streams returned by these methods are sequential, sized and split well, so
+  // calling parallel() on them spreads the work evenly over all cores. The edges must
+  // not be changed while a stream is used.
+  
+  /**
+   * Return a stream of the ids of the annotations this annotation points to.
+   * @param edgeName
+   * @param ann
+   * @return 
+   */
+  public IntStream neighborIds(String edgeName, Annotation ann) {
+    ensureActive();
+    ensureAnnotation(ann);
+    List<Integer> ids = getToEdges(edgeName, ann);
+    if(ids instanceof IntList) {
+      return ((IntList)ids).intStream();
+    }
+    return Arrays.stream(toIdArray(ids));
+  }
+  
+  /**
+   * Return a stream of the annotations this annotation points to.
+   * @param edgeName
+   * @param ann
+   * @return 
+   */
+  public Stream<Annotation> neighbors(String edgeName, Annotation ann) {
+    final AnnotationSet annSet = set;
+    return neighborIds(edgeName, ann).mapToObj(new IntFunction<Annotation>() {
+      @Override
+      public Annotation apply(int id) {
+        return annSet.get(id);
+      }
+    });
+  }
+  
+  /**
+   * Return a stream of all annotations which have at least one edge with that name 
+   * pointing to another annotation, in order of increasing annotation id.
+   * Each call checks the to list of every annotation in the set, the annotations in id 
+   * order are kept between calls until the set changes.
+   * @param edgeName
+   * @return 
+   */
+  public Stream<Annotation> nodesWithEdges(String edgeName) {
+    ensureActive();
+    return Arrays.stream(getSourceAnnotations(edgeName));
+  }
+  
+  public IntStream nodeIdsWithEdges(String edgeName) {
+    ensureActive();
+    Annotation[] sources = getSourceAnnotations(edgeName);
+    int[] ids = new int[sources.length];
+    for(int i=0; i<sources.length; i++) {
+      ids[i] = sources[i].getId();
+    }
+    return Arrays.stream(ids);
+  }
+  
+  /**
+   * Return a stream of all edges with that name, ordered by the id of the source annotation
+   * and then by the order of the edges of the source annotation.
+   * As for nodesWithEdges, each call checks the to list of every annotation in the set.
+   * Parallel streams are split by number of edges rather than number of source annotations, 
+   * so annotations with many edges do not make one part much bigger than the others.
+   * @param edgeName
+   * @return 
+   */
+  public Stream<Edge> edges(String edgeName) {
+    ensureActive();
+    Annotation[] sources = getSourceAnnotations(edgeName);
+    String key = toEdgeNames.get(edgeName);
+    long[] edgeCounts = new long[sources.length+1];
+    for(int i=0; i<sources.length; i++) {
+      edgeCounts[i+1] = edgeCounts[i] + getIdList(sources[i].getFeatures(), key).size();
+    }
+    return StreamSupport.stream(new EdgeSpliterator(edgeName, key, set, sources, edgeCounts), false);
+  }
+  
   //////////////////////////////////////////////////////////////
   /// IN-PLACE MODIFICATION of EDGE LISTS
   //////////////////////////////////////////////////////////////
@@ -530,43 +1196,420 @@ public class AnnotationGraph
   public void grepEdges(String edgeName, Annotation ann, Predicate<Annotation> filter) {
     ensureActive();
     ensureAnnotation(ann);
-    List<Integer> ids = getToEdges(edgeName, ann);
+    List<Integer> ids = getWritableToEdges(edgeName, ann);
     if(ids != null) {
-      Iterator<Integer> it = ids.iterator();
-      while(it.hasNext()) {
-        Integer id = it.next();
+      // rebuild the list in a single pass instead of removing the elements one by one,
+      // this also keeps the index of a hashed list up to date
+      int thisId = ann.getId();
+      int[] oldIds = toIdArray(ids);
+      ids.clear();
+      EdgePropertyStore store = getPropertyStore(edgeName, false);
+      IntList kept = store != null && store.hasValues(thisId) ? new IntList(oldIds.length) : null;
+      for(int i=0; i<oldIds.length; i++) {
+        int id = oldIds[i];
         Annotation tmp = set.get(id);
-        if(!filter.test(tmp)) {
-          List<Integer> otherIds = getFromEdges(edgeName,tmp);
-          otherIds.remove(tmp.getId());
-          it.remove();
+        if(filter.test(tmp)) {
+          addId(ids, id);
+          if(kept != null) {
+            kept.addInt(i);
+          }
+        } else {
+          List<Integer> otherIds = getWritableFromEdges(edgeName,tmp);
+          if(otherIds != null) {
+            removeId(otherIds, thisId);
+            removeEmptyFromEdgeList(edgeName, tmp);
+          }
+        }
+      }
+      if(kept != null) {
+        store.select(thisId, kept.toIntArray());
+      }
+      removeEmptyToEdgeList(edgeName, ann);
+    }
+  }
+  
+  /**
+   * Filter all edges with the given name and keep those for which the filter returns true.
+   * The filter gets called with the source and the target annotation of each edge and gets
+   * called in parallel for different source annotations, if there are many of them, so it
+   * must be thread-safe and must not change the graph, the set or the annotations. 
+   * The graph is only changed after the filter has been called for all edges: then all the
+   * to lists and the from lists of the removed edges are updated in one batch, with each
+   * list rebuilt at most once.
+   * @param edgeName
+   * @param filter
+   * @return the number of removed edges
+   */
+  public int grepAllEdges(String edgeName, final BiPredicate<Annotation,Annotation> filter) {
+    ensureActive();
+    final String toKey = toEdgeNames.get(edgeName);
+    final Annotation[] sources = getSourceAnnotations(edgeName);
+    final int[][] oldIds = new int[sources.length][];
+    // the positions of the kept edges for each source, null if all edges are kept
+    final int[][] kept = new int[sources.length][];
+    IntStream range = IntStream.range(0, sources.length);
+    if(sources.length >= PARALLEL_GREP_MIN_SOURCES) {
+      range = range.parallel();
+    }
+    range.forEach(new IntConsumer() {
+      @Override
+      public void accept(int i) {
+        Annotation source = sources[i];
+        int[] ids = toIdArray(getIdList(source.getFeatures(), toKey));
+        IntList positions = null;
+        for(int k=0; k<ids.length; k++) {
+          boolean keep = filter.test(source, set.get(ids[k]));
+          if(!keep && positions == null) {
+            positions = new IntList(ids.length);
+            for(int j=0; j<k; j++) {
+              positions.addInt(j);
+            }
+          } else if(keep && positions != null) {
+            positions.addInt(k);
+          }
         }
+        oldIds[i] = ids;
+        if(positions != null) {
+          kept[i] = positions.toIntArray();
+        }
+      }
+    });
+    // forward edges: rebuild each changed to list and remember the removed edges
+    EdgePropertyStore store = getPropertyStore(edgeName, false);
+    IntList removedSources = new IntList();
+    IntList removedTargets = new IntList();
+    for(int i=0; i<sources.length; i++) {
+      if(kept[i] == null) { continue; }
+      int sourceId = sources[i].getId();
+      List<Integer> ids = getWritableIdList(sources[i].getFeatures(), toKey);
+      ids.clear();
+      int next = 0;
+      for(int k=0; k<oldIds[i].length; k++) {
+        if(next < kept[i].length && kept[i][next] == k) {
+          addId(ids, oldIds[i][k]);
+          next++;
+        } else {
+          removedSources.addInt(sourceId);
+          removedTargets.addInt(oldIds[i][k]);
+        }
+      }
+      if(store != null && store.hasValues(sourceId)) {
+        store.select(sourceId, kept[i]);
       }
+      removeEmptyToEdgeList(edgeName, sources[i]);
     }
+    // reverse edges: group the removed edges by target and rebuild each from list once
+    int n = removedTargets.size();
+    IntIntMap numbers = new IntIntMap();
+    List<Annotation> targets = new ArrayList<Annotation>();
+    int[] targetNumbers = new int[n];
+    for(int i=0; i<n; i++) {
+      targetNumbers[i] = numberAnnotation(removedTargets.getInt(i), numbers, targets);
+    }
+    int nTargets = targets.size();
+    int[] starts = new int[nTargets+1];
+    for(int number : targetNumbers) {
+      starts[number+1]++;
+    }
+    for(int t=0; t<nTargets; t++) {
+      starts[t+1] += starts[t];
+    }
+    int[] grouped = new int[n];
+    int[] fill = Arrays.copyOf(starts, nTargets);
+    for(int i=0; i<n; i++) {
+      grouped[fill[targetNumbers[i]]++] = removedSources.getInt(i);
+    }
+    String fromKey = fromEdgeNames.get(edgeName);
+    IntIntMap counts = new IntIntMap();
+    for(int t=0; t<nTargets; t++) {
+      Annotation target = targets.get(t);
+      List<Integer> ids = getWritableIdList(target.getFeatures(), fromKey);
+      if(ids == null) {
+        throw new GateRuntimeException("Unexpected inconsistency!");
+      }
+      // the number of edges to remove for each source, there may be several between two annotations
+      for(int j=starts[t]; j<starts[t+1]; j++) {
+        counts.put(grouped[j], counts.get(grouped[j], 0)+1);
+      }
+      removeCounted(ids, counts);
+      for(int j=starts[t]; j<starts[t+1]; j++) {
+        counts.remove(grouped[j]);
+      }
+      removeEmptyFromEdgeList(edgeName, target);
+    }
+    return n;
   }
   
   /**
    * Sort the edges list according to the comparator.
    * If there are no edges or just one edge, this does nothing. Otherwise,
-   * the edge list is sorted according to the sorter instance.
+   * the edge list is sorted according to the sorter instance. The sort is stable and
+   * each annotation gets looked up in the set only once, not for every comparison.
+   * Edges which are kept in document order cannot be sorted, since addEdge relies on their
+   * order, and trying to do so throws an exception.
    * @param edgeName
    * @param ann
    * @param sorter 
    */
-  public void sortEdges(String edgeName, Annotation ann, Comparator<Annotation> sorter) {
+  public void sortEdges(String edgeName, Annotation ann, final Comparator<Annotation> sorter) {
     ensureActive();
     ensureAnnotation(ann);
-    List<Integer> ids = getToEdges(edgeName, ann);
-    if(ids != null) {
-      // create a new comparator from the given one and use that for the sorting
-      ByIdComparator comp = new ByIdComparator(set, sorter);
-      ids.sort(comp);
+    ensureNotOrdered(edgeName);
+    List<Integer> ids = getWritableToEdges(edgeName, ann);
+    if(ids != null && ids.size() > 1) {
+      int[] oldIds = toIdArray(ids);
+      final Annotation[] anns = new Annotation[oldIds.length];
+      for(int i=0; i<oldIds.length; i++) {
+        anns[i] = set.get(oldIds[i]);
+      }
+      reorderEdges(edgeName, ann, ids, oldIds, new PositionComparator() {
+        @Override
+        public int compare(int p1, int p2) {
+          return sorter.compare(anns[p1], anns[p2]);
+        }
+      });
     }    
   }
+  
+  /**
+   * Sort the edges by the start offset and then the end offset of the target annotations.
+   * The sort is stable, so edges to annotations with the same offsets keep their order.
+   * @param edgeName
+   * @param ann 
+   */
+  public void sortEdgesByOffset(String edgeName, Annotation ann) {
+    ensureActive();
+    ensureAnnotation(ann);
+    List<Integer> ids = getWritableToEdges(edgeName, ann);
+    if(ids != null && ids.size() > 1) {
+      int[] oldIds = toIdArray(ids);
+      final long[] starts = new long[oldIds.length];
+      final long[] ends = new long[oldIds.length];
+      boolean sorted = true;
+      for(int i=0; i<oldIds.length; i++) {
+        Annotation a = set.get(oldIds[i]);
+        starts[i] = a.getStartNode().getOffset();
+        ends[i] = a.getEndNode().getOffset();
+        if(i > 0 && (starts[i] < starts[i-1] || starts[i] == starts[i-1] && ends[i] < ends[i-1])) {
+          sorted = false;
+        }
+      }
+      if(sorted) {
+        return;
+      }
+      reorderEdges(edgeName, ann, ids, oldIds, new PositionComparator() {
+        @Override
+        public int compare(int p1, int p2) {
+          int c = Long.compare(starts[p1], starts[p2]);
+          return c != 0 ? c : Long.compare(ends[p1], ends[p2]);
+        }
+      });
+    }
+  }
+  
+  /**
+   * Sort the edges by the value of a feature of the target annotations.
+   * If all values are numbers, they are compared as numbers. Otherwise the values are
+   * ordered by the name of their class first, and values of the same class are compared
+   * with compareTo if they are Comparable and by their string value if not.
+   * Annotations without the feature come last. The sort is stable.
+   * As for sortEdges, edges which are kept in document order cannot be sorted.
+   * @param edgeName
+   * @param ann
+   * @param feature
+   * @param descending 
+   */
+  public void sortEdgesByFeature(String edgeName, Annotation ann, String feature, final boolean descending) {
+    ensureActive();
+    ensureAnnotation(ann);
+    ensureNotOrdered(edgeName);
+    List<Integer> ids = getWritableToEdges(edgeName, ann);
+    if(ids != null && ids.size() > 1) {
+      int[] oldIds = toIdArray(ids);
+      final Object[] values = new Object[oldIds.length];
+      final double[] numbers = new double[oldIds.length];
+      boolean numeric = true;
+      for(int i=0; i<oldIds.length; i++) {
+        values[i] = set.get(oldIds[i]).getFeatures().get(feature);
+        if(values[i] instanceof Number) {
+          numbers[i] = ((Number)values[i]).doubleValue();
+        } else if(values[i] != null) {
+          numeric = false;
+        }
+      }
+      PositionComparator comp;
+      if(numeric) {
+        comp = new PositionComparator() {
+          @Override
+          public int compare(int p1, int p2) {
+            if(values[p1] == null || values[p2] == null) {
+              return values[p1] == null ? (values[p2] == null ? 0 : 1) : -1;
+            }
+            int c = Double.compare(numbers[p1], numbers[p2]);
+            return descending ? -c : c;
+          }
+        };
+      } else {
+        comp = new PositionComparator() {
+          @Override
+          public int compare(int p1, int p2) {
+            Object v1 = values[p1];
+            Object v2 = values[p2];
+            if(v1 == null || v2 == null) {
+              return v1 == null ? (v2 == null ? 0 : 1) : -1;
+            }
+            // ordering by class first keeps the order transitive for mixed values
+            int c = v1.getClass().getName().compareTo(v2.getClass().getName());
+            if(c == 0) {
+              if(v1 instanceof Comparable) {
+                c = ((Comparable<Object>)v1).compareTo(v2);
+              } else {
+                c = v1.toString().compareTo(v2.toString());
+              }
+            }
+            return descending ? -c : c;
+          }
+        };
+      }
+      reorderEdges(edgeName, ann, ids, oldIds, comp);
+    }
+  }
+  
+  /**
+   * Keep the edges with the given name in document order, or stop doing so.
+   * When switched on, the to lists of all annotations get sorted by the offsets of the 
+   * target annotations, as with sortEdgesByOffset, and from then on addEdge inserts each
+   * new edge at its position in document order and addEdges sorts the lists it changed,
+   * so the lists never need to get sorted again. Edges to annotations with the same 
+   * offsets are kept in the order they were added. While the setting is on, sortEdges and
+   * sortEdgesByFeature throw an exception for the edge name. The setting is stored in the 
+   * document.
+   * @param edgeName
+   * @param inOrder 
+   */
+  public void setKeepInDocumentOrder(String edgeName, boolean inOrder) {
+    ensureActive();
+    ensureEdge(edgeName);
+    if(inOrder == orderedEdges.contains(edgeName)) {
+      return;
+    }
+    List<String> orderedList = (List<String>)doc.getFeatures().get(AG_DFN_ORDERED);
+    if(orderedList == null) {
+      orderedList = new ArrayList<String>();
+    }
+    if(inOrder) {
+      orderedEdges.add(edgeName);
+      orderedList.add(edgeName);
+      for(Annotation ann : set) {
+        sortEdgesByOffset(edgeName, ann);
+      }
+    } else {
+      orderedEdges.remove(edgeName);
+      orderedList.remove(edgeName);
+    }
+    doc.getFeatures().put(AG_DFN_ORDERED, orderedList);
+  }
+  
+  public boolean isKeepInDocumentOrder(String edgeName) {
+    ensureActive();
+    ensureEdge(edgeName);
+    return orderedEdges.contains(edgeName);
+  }
 
   
   
   
+  //////////////////////////////////////////////////////////////
+  /// EDGE PROPERTIES
+  //////////////////////////////////////////////////////////////
+  
+  // Edge properties are typed values stored for each edge in an EdgePropertyStore per
+  // edge name, instead of in feature maps. If an edge occurs more than once between the
+  // same two annotations, the methods which take the target annotation use the first one.
+  // The bulk getters return the values for all edges of the annotation, in the same order
+  // as getIdArray. Edges without a value have the value 0 or null.
+  
+  public double getEdgeDouble(String edgeName, Annotation from, Annotation to, String key) {
+    int pos = edgePosition(edgeName, from, to);
+    EdgePropertyStore store = getPropertyStore(edgeName, false);
+    return store == null ? 0 : store.getDouble(from.getId(), pos, key);
+  }
+  
+  public void setEdgeDouble(String edgeName, Annotation from, Annotation to, String key, double value) {
+    int pos = edgePosition(edgeName, from, to);
+    getPropertyStore(edgeName, true).setDouble(from.getId(), pos, key, value);
+  }
+  
+  public int getEdgeInt(String edgeName, Annotation from, Annotation to, String key) {
+    int pos = edgePosition(edgeName, from, to);
+    EdgePropertyStore store = getPropertyStore(edgeName, false);
+    return store == null ? 0 : store.getInt(from.getId(), pos, key);
+  }
+  
+  public void setEdgeInt(String edgeName, Annotation from, Annotation to, String key, int value) {
+    int pos = edgePosition(edgeName, from, to);
+    getPropertyStore(edgeName, true).setInt(from.getId(), pos, key, value);
+  }
+  
+  public long getEdgeLong(String edgeName, Annotation from, Annotation to, String key) {
+    int pos = edgePosition(edgeName, from, to);
+    EdgePropertyStore store = getPropertyStore(edgeName, false);
+    return store == null ? 0 : store.getLong(from.getId(), pos, key);
+  }
+  
+  public void setEdgeLong(String edgeName, Annotation from, Annotation to, String key, long value) {
+    int pos = edgePosition(edgeName, from, to);
+    getPropertyStore(edgeName, true).setLong(from.getId(), pos, key, value);
+  }
+  
+  public String getEdgeString(String edgeName, Annotation from, Annotation to, String key) {
+    int pos = edgePosition(edgeName, from, to);
+    EdgePropertyStore store = getPropertyStore(edgeName, false);
+    return store == null ? null : store.getString(from.getId(), pos, key);
+  }
+  
+  public void setEdgeString(String edgeName, Annotation from, Annotation to, String key, String value) {
+    int pos = edgePosition(edgeName, from, to);
+    getPropertyStore(edgeName, true).setString(from.getId(), pos, key, value);
+  }
+  
+  public double[] getEdgeDoubles(String edgeName, Annotation ann, String key) {
+    int n = edgeCount(edgeName, ann);
+    EdgePropertyStore store = getPropertyStore(edgeName, false);
+    return store == null ? new double[n] : store.getDoubles(ann.getId(), key, n);
+  }
+  
+  public int[] getEdgeInts(String edgeName, Annotation ann, String key) {
+    int n = edgeCount(edgeName, ann);
+    EdgePropertyStore store = getPropertyStore(edgeName, false);
+    return store == null ? new int[n] : store.getInts(ann.getId(), key, n);
+  }
+  
+  public long[] getEdgeLongs(String edgeName, Annotation ann, String key) {
+    int n = edgeCount(edgeName, ann);
+    EdgePropertyStore store = getPropertyStore(edgeName, false);
+    return store == null ? new long[n] : store.getLongs(ann.getId(), key, n);
+  }
+  
+  public String[] getEdgeStrings(String edgeName, Annotation ann, String key) {
+    int n = edgeCount(edgeName, ann);
+    EdgePropertyStore store = getPropertyStore(edgeName, false);
+    return store == null ? new String[n] : store.getStrings(ann.getId(), key, n);
+  }
+  
+  /**
+   * Return the store with the edge properties for the edge name, or null if no property
+   * has been set for these edges yet.
+   * @param edgeName
+   * @return 
+   */
+  public EdgePropertyStore getEdgePropertyStore(String edgeName) {
+    ensureActive();
+    ensureEdge(edgeName);
+    return getPropertyStore(edgeName, false);
+  }
+  
+  
   /// METHODS TO HANDLE ANNOTATIONS, FEATURE MAPS etc. but not EDGES
 
   /**
@@ -586,6 +1629,76 @@ public class AnnotationGraph
     return ret;
   }
   
+  /**
+   * Remove many annotations from the set and update the edges of the remaining annotations.
+   * This does the same as removing each annotation from the set, but much faster: instead
+   * of updating the edge lists of the neighbours for each removed annotation, each list
+   * of each neighbour is filtered just once. Annotations which are not in the set for this 
+   * graph are ignored. The edge lists of the removed annotations themselves are not changed.
+   * @param anns 
+   */
+  public void removeAnnotations(Collection<Annotation> anns) {
+    ensureActive();
+    GraphMetrics m = metrics;
+    long startTime = m == null ? 0 : System.nanoTime();
+    IntIntMap removed = new IntIntMap(anns.size());
+    List<Annotation> toRemove = new ArrayList<Annotation>(anns.size());
+    for(Annotation ann : anns) {
+      if(set.get(ann.getId()) == ann && !removed.containsKey(ann.getId())) {
+        removed.put(ann.getId(), 1);
+        toRemove.add(ann);
+      }
+    }
+    ignoreRemovals = true;
+    try {
+      for(Annotation ann : toRemove) {
+        set.remove(ann);
+      }
+    } finally {
+      ignoreRemovals = false;
+    }
+    IntIntMap seen = new IntIntMap();
+    IntList affected = new IntList();
+    for(String edgeName : edgeSet) {
+      String toKey = toEdgeNames.get(edgeName);
+      String fromKey = fromEdgeNames.get(edgeName);
+      // collect the remaining annotations which have an edge to or from a removed one
+      seen.clear();
+      affected.clear();
+      for(Annotation ann : toRemove) {
+        FeatureMap fm = ann.getFeatures();
+        collectAffected(getIdList(fm, toKey), removed, seen, affected);
+        collectAffected(getIdList(fm, fromKey), removed, seen, affected);
+      }
+      EdgePropertyStore store = getPropertyStore(edgeName, false);
+      if(store != null) {
+        for(Annotation ann : toRemove) {
+          store.remove(ann.getId());
+        }
+      }
+      int n = affected.size();
+      for(int i=0; i<n; i++) {
+        Annotation a = set.get(affected.getInt(i));
+        if(a == null) { continue; }
+        FeatureMap fm = a.getFeatures();
+        List<Integer> ids = getWritableIdList(fm, toKey);
+        if(ids != null) {
+          if(store != null && store.hasValues(a.getId())) {
+            store.select(a.getId(), keptPositions(ids, removed));
+          }
+          removeIds(ids, removed);
+          removeEmptyToEdgeList(edgeName, a);
+        }
+        ids = getWritableIdList(fm, fromKey);
+        if(ids != null) {
+          removeIds(ids, removed);
+          removeEmptyFromEdgeList(edgeName, a);
+        }
+      }
+    }
+    if(m != null) { m.record(GraphMetrics.Operation.ANNOTATION_REMOVED, System.nanoTime()-startTime); }
+  }
+  
   
   
   ///// STATIC METHODS THAT HANDLE MORE THAN ONE ANNOTATION GRAPH
@@ -596,12 +1709,11 @@ public class AnnotationGraph
    * This will copy all annotations from the given collection which from ag1 to ag2. All annotations
    * in which must come from the set associated with ag1. This will copy the annotation type, offsets,
    * and will create a shallow copy of the feature map. All annotations pointed to by an annotation
-   * are recursively also copied in the same fashion. In other words, for each annotation in the
-   * which set, the transitiveAnnotationSet is first created and then copied to the target set. 
-   * If the which set contains annotations which are part of the transitive set of another annotation,
-   * then the transitive set of those annotations will be copied separately. In order to prevent
-   * multiple copies, the which collection should contain exactly the one annotation for each 
-   * transitive set that creates the maximal transitive set that one wants to copy. 
+   * are recursively also copied in the same fashion. In other words, the union of the 
+   * transitive annotation sets of all annotations in which, together with these annotations, 
+   * gets copied to the target set, and each annotation in that union gets copied exactly once.
+   * The edges between the copied annotations get copied too, in the same order, edges to or from
+   * annotations which do not get copied are dropped.
    * If no edgeNames are specified, the set of all transitive annotations for all known edge
    * names is copied, otherwise only those for the given edge names.
    * If which is null, then all annotations from the ag1-set will get copied. If which is empty,
@@ -611,20 +1723,62 @@ public class AnnotationGraph
    * @param ag1
    * @param ag2
    * @param which 
+   * @param edgeNames
+   * @return the copies, in the order the annotations in which were given, followed by the
+   * copies of the annotations reached from them
    */
-  public void copyAnnotations(AnnotationGraph ag1, AnnotationGraph ag2, 
+  public static List<Annotation> copySubgraph(AnnotationGraph ag1, AnnotationGraph ag2, 
           Collection<Annotation> which, String... edgeNames) {
-    // TODO!!
+    return copyClosure(ag1, ag2, getCopyClosure(ag1, which, edgeNames), edgeNames);
   }
+  
   /**
    * Move annotations.
-   * 
+   * This does the same as copySubgraph and then removes all the copied annotations from
+   * the set of ag1. The edges of the annotations which remain in ag1 get updated as described
+   * for removeAnnotations. 
    * <p>
    * The annotation set for the ag2 AnnotationGraph must be mutable for this to work.
+   * @param ag1
+   * @param ag2
+   * @param which 
+   * @param edgeNames
+   * @return the moved annotations in ag2, as for copySubgraph
+   */
+  public static List<Annotation> moveSubgraph(AnnotationGraph ag1, AnnotationGraph ag2,
+          Collection<Annotation> which, String... edgeNames) {
+    int[] ids = getCopyClosure(ag1, which, edgeNames);
+    List<Annotation> originals = new ArrayList<Annotation>(ids.length);
+    for(int id : ids) {
+      originals.add(ag1.annotationById(id));
+    }
+    List<Annotation> ret = copyClosure(ag1, ag2, ids, edgeNames);
+    ag1.removeAnnotations(originals);
+    return ret;
+  }
+  
+  /**
+   * Copy annotations from ag1 to ag2, see copySubgraph, which also returns the copies.
+   * @param ag1
+   * @param ag2
+   * @param which 
+   * @param edgeNames
+   */
+  public void copyAnnotations(AnnotationGraph ag1, AnnotationGraph ag2, 
+          Collection<Annotation> which, String... edgeNames) {
+    copySubgraph(ag1, ag2, which, edgeNames);
+  }
+  
+  /**
+   * Move annotations from ag1 to ag2, see moveSubgraph, which also returns the moved annotations.
+   * @param ag1
+   * @param ag2
+   * @param which 
+   * @param edgeNames
    */
   public void moveAnnotations(AnnotationGraph ag1, AnnotationGraph ag2,
           Collection<Annotation> which, String... edgeNames) {
-    /// TODO!!
+    moveSubgraph(ag1, ag2, which, edgeNames);
   }
   
   //////////////////////////////////////////////////////////////////////////
@@ -641,37 +1795,25 @@ public class AnnotationGraph
    * IMPORTANT: this requires that the original set for the AnnotationGraph is mutable and 
    * the range annotation will get added to this set! (This is necessary because all annotations
    * for which edges are created must be in the set for the AnnotationGraph)
+   * @param edgeName
    * @param subSet
    * @param type
+   * @param min
    * @return 
    */
   public List<Annotation> getCoextensiveRangeAnnotations(String edgeName, AnnotationSet subSet, String type, int min) {
     ensureActive();
-    // not sure what the most efficient way to find all clusters of coextensive annotations really
-    // is, and it probably depends on if there are many ranges or ranges with lots of coextensive
-    // annotations. This algorithms tries to also work well with the latter.
-    AnnotationSetImpl ranges = new AnnotationSetImpl(doc);
-    HashSet<Annotation> seen = new HashSet<Annotation>();
-    // store the annotations in a separate collection: if we use subSet directly and it
-    // is the same set as the one to which we add the new annotations we would get a 
-    // concurrent modification exception!
-    List<Annotation> tmpList = new ArrayList<Annotation>();
-    tmpList.addAll(subSet);
-    for(Annotation ann : tmpList) {
-      if(seen.contains(ann)) { continue; }
-      seen.add(ann);
-      ensureAnnotation(ann);
-      AnnotationSet coexts = Utils.getCoextensiveAnnotations(subSet, ann);
-      seen.addAll(coexts);
-      if(coexts.size() >= min) {
-        Annotation range = set.get(Utils.addAnn(set, ann, type, Utils.featureMap()));
-        ranges.add(range);
-        for(Annotation toAnn : coexts) {
-          this.addEdge(edgeName, range, toAnn);
-        }
-      }
-    }
-    return ranges.inDocumentOrder();
+    ensureEdge(edgeName);
+    // Sorting by start and end offset once puts all coextensive annotations next to each
+    // other, so all clusters can be found with a single scan, even if there are many ranges 
+    // or ranges with lots of coextensive annotations. The index is a copy of the subSet, so
+    // adding the range annotations is fine even if the subSet is the set for this graph.
+    GraphMetrics m = metrics;
+    long startTime = m == null ? 0 : System.nanoTime();
+    RangeIndex index = new RangeIndex(subSet);
+    List<Annotation> ranges = addRangeAnnotations(edgeName, index, index.coextensiveGroups(), type, min);
+    if(m != null) { m.record(GraphMetrics.Operation.CLUSTERING, System.nanoTime()-startTime); }
+    return ranges;
   }
   
   // TODO: getCoextensiveRangeAnnotationSet: same but the return type is AnnotationSet ?
@@ -695,106 +1837,90 @@ public class AnnotationGraph
    * IMPORTANT: this requires that the original set for the AnnotationGraph is mutable and 
    * the range annotation will get added to this set! (This is necessary because all annotations
    * for which edges are created must be in the set for the AnnotationGraph)
+   * @param edgeName
    * @param subSet
    * @param type
+   * @param min
    * @return 
    */
-  public List<Annotation> getSequOverlappingRangeAnnotations(String edgeName, AnnotationSet set, String type, int min) {
-    // rough outline of the algorithm:
-    // For each annotation ann from left to right which has not yet been seen do the following
-    // = find all overlapping annotations (regardless of already seen or not)
-    // = put all overlapping annotations on the seen list
-    //   
-    HashSet<Annotation> seen = new HashSet<>();
-    List<Annotation> ranges = new ArrayList<>();
-    for(Annotation ann : set) {
-      if(seen.contains(ann)) { continue; }
-      long minoffset = Utils.start(ann);
-      long maxoffset = Utils.end(ann);
-      // the initial set of annotations overlapping with the seed ann
-      AnnotationSet overlappings = Utils.getOverlappingAnnotations(set,ann);
-      for(Annotation o : overlappings) {
-        seen.add(o);
-        long s = Utils.start(o);
-        long e = Utils.end(o);
-        if(s < minoffset) { minoffset = s; }
-        if(e > maxoffset) { maxoffset = e; }        
-      }
-      // now create the actual range annotation from the minimal and maximal offset of all 
-      // overlapping annotations
-      if(overlappings.size() > min) {
-        Annotation range = set.get(Utils.addAnn(set, minoffset, maxoffset, type, Utils.featureMap()));
+  public List<Annotation> getSequOverlappingRangeAnnotations(String edgeName, AnnotationSet subSet, String type, int min) {
+    ensureActive();
+    ensureEdge(edgeName);
+    // The clusters get created lazily from left to right, so only the edge ids of the range
+    // annotations get collected here, until all edges get added in bulk at the end.
+    GraphMetrics m = metrics;
+    long startTime = m == null ? 0 : System.nanoTime();
+    RangeIndex index = new RangeIndex(subSet);
+    for(int i=0; i<index.size(); i++) {
+      ensureAnnotation(index.get(i));
+    }
+    List<Annotation> ranges = new ArrayList<Annotation>();
+    IntList fromIds = new IntList();
+    IntList toIds = new IntList();
+    Iterator<int[]> clusters = index.sequentialOverlapClusters().iterator();
+    while(clusters.hasNext()) {
+      int[] cluster = clusters.next();
+      if(cluster.length > min) {
+        Annotation range = set.get(Utils.addAnn(set, index.getStart(cluster[0]), 
+                index.getMaxEnd(cluster), type, Utils.featureMap()));
         ranges.add(range);
-        for(Annotation toAnn : overlappings) {
-          this.addEdge(edgeName, range, toAnn);
+        for(int pos : cluster) {
+          fromIds.addInt(range.getId());
+          toIds.addInt(index.get(pos).getId());
         }
       }
     }
+    addEdges(edgeName, fromIds.toIntArray(), toIds.toIntArray());
+    if(m != null) { m.record(GraphMetrics.Operation.CLUSTERING, System.nanoTime()-startTime); }
     return ranges;
   }
   
+  /**
+   * Return the clusters used by getSequOverlappingRangeAnnotations as a lazy stream.
+   * Each cluster is a list of the annotations overlapping some seed annotation, including 
+   * the seed, in offset order. The clusters get computed one at a time as the stream gets 
+   * consumed, ordered by the start offset of their seeds. The annotations do not need to be 
+   * in the set for this graph and no annotations or edges get created.
+   * @param subSet
+   * @return 
+   */
+  public Stream<List<Annotation>> getSequOverlappingClusters(AnnotationSet subSet) {
+    final RangeIndex index = new RangeIndex(subSet);
+    return index.sequentialOverlapClusters().map(new Function<int[],List<Annotation>>() {
+      @Override
+      public List<Annotation> apply(int[] cluster) {
+        List<Annotation> ret = new ArrayList<Annotation>(cluster.length);
+        for(int pos : cluster) {
+          ret.add(index.get(pos));
+        }
+        return ret;
+      }
+    });
+  }
 
   /**
    * Return a list of annotations pointing to sets of annotations where each annotation overlaps
    * with at least one other annotation of the set. 
-   * @param edge
-   * @param set
+   * The sets are the connected components of the overlap relation: each annotation from subSet
+   * is in exactly one set, and two annotations are in the same set if and only if there is a 
+   * chain of overlapping annotations between them. A range annotation spanning all annotations
+   * of the set is only created for sets with more than min annotations. The range annotations
+   * get added to the set of this graph and are returned ordered by increasing start offset. 
+   * @param edgeName
+   * @param subSet
    * @param type
    * @param min
    * @return 
    */
-  public List<Annotation> getMaxOverlappingRangeAnnotations(String edgeName, AnnotationSet set, String type, int min) {
-    // rough outline of the algorithm:
-    // For each annotation ann from left to right which has not yet been seen do the following
-    // = find all overlapping annotations (regardless of already seen or not)
-    // = put all overlapping annotations on the seen list
-    // = recursively add all annotations that overlap with any of the overlapping ones into the 
-    //   cluster and also on the seen list until no new annotations can be added.
-    //   
-    HashSet<Annotation> seen = new HashSet<>();
-    List<Annotation> ranges = new ArrayList<>();
-    for(Annotation ann : set) {
-      if(seen.contains(ann)) { continue; }
-      seen.add(ann);
-      // the final set of overlapping annotations
-      AnnotationSetImpl cluster = new AnnotationSetImpl(doc);
-      cluster.add(ann);
-      long minoffset = Utils.start(ann);
-      long maxoffset = Utils.end(ann);
-      // the initial set of annotations overlapping with the seed ann
-      AnnotationSet overlappings = Utils.getOverlappingAnnotations(set,ann);
-      cluster.addAll(overlappings);
-      // a queue of annotations still to expand ... 
-      LinkedList<Annotation> toProcess = new LinkedList<>();      
-      // add all annotations to the queue. This will include the one we are currently on,
-      // but since that one is already in seen, we wont expand it again.      
-      for(Annotation overlapping : toProcess) {
-        if(seen.contains(overlapping)) { continue; }
-        // now find the overlapping ones for that annotation
-        overlappings = Utils.getOverlappingAnnotations(set,overlapping);
-        // for each of the now overlapping ones, if we have not seen it, add it to the cluster
-        // and also schedule for recursive expansion
-        for(Annotation o : overlappings) {
-          if(!seen.contains(o)) {
-            toProcess.add(o); // for recursively finding more overlaps...
-            cluster.add(o);
-            long s = Utils.start(o);
-            long e = Utils.end(o);
-            if(s < minoffset) { minoffset = s; }
-            if(e > maxoffset) { maxoffset = e; }
-          }
-        }
-      }
-      // now create the actual range annotation from the minimal and maximal offset of all 
-      // overlapping annotations
-      if(cluster.size() > min) {
-        Annotation range = set.get(Utils.addAnn(set, minoffset, maxoffset, type, Utils.featureMap()));
-        ranges.add(range);
-        for(Annotation toAnn : cluster) {
-          this.addEdge(edgeName, range, toAnn);
-        }
-      }
-    }
+  public List<Annotation> getMaxOverlappingRangeAnnotations(String edgeName, AnnotationSet subSet, String type, int min) {
+    ensureActive();
+    ensureEdge(edgeName);
+    // a single sweep over the annotations in start offset order finds all the components
+    GraphMetrics m = metrics;
+    long startTime = m == null ? 0 : System.nanoTime();
+    RangeIndex index = new RangeIndex(subSet);
+    List<Annotation> ranges = addRangeAnnotations(edgeName, index, index.overlapComponents(), type, min+1);
+    if(m != null) { m.record(GraphMetrics.Operation.CLUSTERING, System.nanoTime()-startTime); }
     return ranges;
   }
   
@@ -812,17 +1938,22 @@ public class AnnotationGraph
   public void addSequenceEdges(String edgeName, Annotation ann, Collection<Annotation> anns) {
     ensureActive();
     ensureAnnotation(ann);
-    List<Integer> ids = getToEdgesList(edgeName, ann);
     Collection<Annotation> use = anns;
     if(anns instanceof AnnotationSet) {
       use = ((AnnotationSet)anns).inDocumentOrder();
     }
+    int[] fromIds = new int[use.size()];
+    int[] toIds = new int[use.size()];
+    int i = 0;
     Iterator<Annotation> it = use.iterator();
     while(it.hasNext()) {
       Annotation tmp = it.next();
       ensureAnnotation(tmp);
-      this.addEdge(edgeName, ann, tmp);
+      fromIds[i] = ann.getId();
+      toIds[i] = tmp.getId();
+      i++;
     }
+    addEdges(edgeName, fromIds, toIds);
   }
   
   /**
@@ -882,6 +2013,12 @@ public class AnnotationGraph
     }
   }
   
+  protected void ensureNotOrdered(String edgeName) {
+    if(orderedEdges.contains(edgeName)) {
+      throw new GateRuntimeException("Edges with that name are kept in document order and cannot be sorted otherwise: "+edgeName);
+    }
+  }
+  
   protected void ensureDefaultEdge() {
     if(defaultName == null) {
       throw new GateRuntimeException("Cannot use a method that requires a default edge because the default edge is not set");
@@ -895,25 +2032,99 @@ public class AnnotationGraph
   }
   
   /**
-   * Get the list of ids of annotations this annotation points to or null.
-   * @param edgeName
-   * @param ann
-   * @return 
+   * Return the edge id list stored under key in the feature map, or null, for reading only.
+   * If the list is still in the encoded form created by encodeEdgeLists, the decoded list
+   * comes from a cache and the feature map does not change, so the returned list must not
+   * be changed. Methods which change the list must use getWritableIdList.
    */
-  protected List<Integer> getToEdges(String edgeName, Annotation ann) {
-    ensureEdge(edgeName);
-    return (List<Integer>)ann.getFeatures().get(toEdgeNames.get(edgeName));
+  protected List<Integer> getIdList(FeatureMap fm, String key) {
+    Object value = fm.get(key);
+    if(value == null || value instanceof List) {
+      return (List<Integer>)value;
+    }
+    checkEncoded(key, value);
+    List<Integer> ret = decodedLists.get(value);
+    if(ret == null) {
+      ret = decodeIdList((String)value);
+      decodedLists.put((String)value, ret);
+    }
+    return ret;
   }
   
   /**
-   * Return the list of ids of annotation that point to this annotation or null.
-   * @param edgeName
-   * @param ann
-   * @return 
+   * Return the edge id list stored under key in the feature map, or null, for changing it.
+   * If the list is still in the encoded form created by encodeEdgeLists, it gets decoded
+   * and the feature value gets replaced by the decoded list.
    */
-  protected List<Integer> getFromEdges(String edgeName, Annotation ann) {
-    ensureEdge(edgeName);
-    return (List<Integer>)ann.getFeatures().get(fromEdgeNames.get(edgeName));
+  protected List<Integer> getWritableIdList(FeatureMap fm, String key) {
+    Object value = fm.get(key);
+    if(value == null || value instanceof List) {
+      return (List<Integer>)value;
+    }
+    checkEncoded(key, value);
+    List<Integer> ret = decodeIdList((String)value);
+    fm.put(key, ret);
+    return ret;
+  }
+  
+  protected static void checkEncoded(String key, Object value) {
+    if(!EdgeListCodec.isEncoded(value)) {
+      throw new GateRuntimeException("Feature "+key+" is not an edge list: "+value);
+    }
+  }
+  
+  protected List<Integer> decodeIdList(String value) {
+    int[] ids = EdgeListCodec.decodeFromString(value);
+    List<Integer> ret = newIdList();
+    for(int id : ids) {
+      addId(ret, id);
+    }
+    return ret;
+  }
+  
+  protected void encodeIdList(FeatureMap fm, String key) {
+    Object value = fm.get(key);
+    if(value instanceof List) {
+      fm.put(key, EdgeListCodec.encodeToString((List<Integer>)value));
+    }
+  }
+  
+  /**
+   * Get the list of ids of annotations this annotation points to or null.
+   * @param edgeName
+   * @param ann
+   * @return 
+   */
+  protected List<Integer> getToEdges(String edgeName, Annotation ann) {
+    ensureEdge(edgeName);
+    return getIdList(ann.getFeatures(), toEdgeNames.get(edgeName));
+  }
+  
+  /**
+   * Return the list of ids of annotation that point to this annotation or null.
+   * @param edgeName
+   * @param ann
+   * @return 
+   */
+  protected List<Integer> getFromEdges(String edgeName, Annotation ann) {
+    ensureEdge(edgeName);
+    return getIdList(ann.getFeatures(), fromEdgeNames.get(edgeName));
+  }
+  
+  /**
+   * Like getToEdges, but for changing the list.
+   */
+  protected List<Integer> getWritableToEdges(String edgeName, Annotation ann) {
+    ensureEdge(edgeName);
+    return getWritableIdList(ann.getFeatures(), toEdgeNames.get(edgeName));
+  }
+  
+  /**
+   * Like getFromEdges, but for changing the list.
+   */
+  protected List<Integer> getWritableFromEdges(String edgeName, Annotation ann) {
+    ensureEdge(edgeName);
+    return getWritableIdList(ann.getFeatures(), fromEdgeNames.get(edgeName));
   }
   
   /**
@@ -923,33 +2134,725 @@ public class AnnotationGraph
    * @return 
    */
   protected List<Integer> getToEdgesList(String edgeName, Annotation ann) {
-    List<Integer> ret = getToEdges(edgeName,ann);
+    List<Integer> ret = getWritableToEdges(edgeName,ann);
     if(ret==null) {
-      ret = new ArrayList<Integer>();
+      ret = newIdList();
       ann.getFeatures().put(toEdgeNames.get(edgeName), ret);
     }
     return ret;
   }
   
   protected List<Integer> getFromEdgesList(String edgeName, Annotation ann) {
-    List<Integer> ret = getFromEdges(edgeName,ann);
+    List<Integer> ret = getWritableFromEdges(edgeName,ann);
     if(ret==null) {
-      ret = new ArrayList<Integer>();
+      ret = newIdList();
       ann.getFeatures().put(fromEdgeNames.get(edgeName), ret);
     }
     return ret;
   }
   
+  /**
+   * Return the number for the annotation id, giving it the next number if it does not have one yet.
+   * Throws an exception if there is no annotation with that id in our set.
+   */
+  protected int numberAnnotation(int id, IntIntMap numbers, List<Annotation> anns) {
+    int number = numbers.get(id, -1);
+    if(number < 0) {
+      Annotation ann = set.get(id);
+      if(ann == null) {
+        throw new GateRuntimeException("No annotation with id "+id+" in the set for this AnnotationGraph");
+      }
+      number = anns.size();
+      anns.add(ann);
+      numbers.put(id, number);
+    }
+    return number;
+  }
+  
+  /**
+   * Append values[i] to the list stored under the feature key of annotation anns[keys[i]], for all i.
+   * The values are grouped by key with a counting sort first, so that each list only gets
+   * fetched (or created) and grown once.
+   */
+  protected void appendGrouped(String featureKey, int[] keys, int[] values, List<Annotation> anns) {
+    int nAnns = anns.size();
+    int[] starts = new int[nAnns+1];
+    for(int key : keys) {
+      starts[key+1]++;
+    }
+    for(int i=0; i<nAnns; i++) {
+      starts[i+1] += starts[i];
+    }
+    int[] grouped = new int[values.length];
+    int[] fill = Arrays.copyOf(starts, nAnns);
+    for(int i=0; i<keys.length; i++) {
+      grouped[fill[keys[i]]++] = values[i];
+    }
+    for(int a=0; a<nAnns; a++) {
+      if(starts[a] == starts[a+1]) { continue; }
+      FeatureMap fm = anns.get(a).getFeatures();
+      List<Integer> ids = getWritableIdList(fm, featureKey);
+      if(ids == null) {
+        ids = newIdList();
+        fm.put(featureKey, ids);
+      }
+      if(ids instanceof IntList) {
+        ((IntList)ids).ensureCapacity(ids.size()+starts[a+1]-starts[a]);
+      }
+      for(int j=starts[a]; j<starts[a+1]; j++) {
+        addId(ids, grouped[j]);
+      }
+    }
+  }
+  
+  /**
+   * Create a new empty id list of the kind configured by the edge storage mode.
+   * @return 
+   */
+  protected List<Integer> newIdList() {
+    if(edgeStorage == EdgeStorage.BOXED) {
+      return new ArrayList<Integer>();
+    } else if(edgeStorage == EdgeStorage.HASHED) {
+      return new IndexedIntList();
+    } else {
+      return new IntList();
+    }
+  }
+  
+  // The following methods work on any List<Integer> but avoid boxing if the list is an IntList
+  
+  protected static int idAt(List<Integer> ids, int index) {
+    if(ids instanceof IntList) {
+      return ((IntList)ids).getInt(index);
+    } else {
+      return ids.get(index);
+    }
+  }
+  
+  protected static void addId(List<Integer> ids, int id) {
+    if(ids instanceof IntList) {
+      ((IntList)ids).addInt(id);
+    } else {
+      ids.add(id);
+    }
+  }
+  
+  protected static boolean containsId(List<Integer> ids, int id) {
+    if(ids instanceof IntList) {
+      return ((IntList)ids).containsInt(id);
+    } else {
+      return ids.contains(id);
+    }
+  }
+  
+  protected static boolean removeId(List<Integer> ids, int id) {
+    if(ids instanceof IntList) {
+      return ((IntList)ids).removeInt(id);
+    } else {
+      return ids.remove((Integer)id);
+    }
+  }
+  
+  /**
+   * Add all ids from the list which are neither removed nor seen to the affected list.
+   */
+  protected static void collectAffected(List<Integer> ids, IntIntMap removed, IntIntMap seen, IntList affected) {
+    if(ids == null) {
+      return;
+    }
+    int n = ids.size();
+    for(int i=0; i<n; i++) {
+      int id = idAt(ids, i);
+      if(!removed.containsKey(id) && !seen.containsKey(id)) {
+        seen.put(id, 1);
+        affected.addInt(id);
+      }
+    }
+  }
+  
+  /**
+   * Remove all ids which are keys in the map, in a single pass over the list.
+   */
+  protected static int removeIds(List<Integer> ids, final IntIntMap remove) {
+    if(ids instanceof IntList) {
+      return ((IntList)ids).removeIntIf(new IntPredicate() {
+        @Override
+        public boolean test(int id) {
+          return remove.containsKey(id);
+        }
+      });
+    } else {
+      int oldSize = ids.size();
+      ids.removeIf(new Predicate<Integer>() {
+        @Override
+        public boolean test(Integer id) {
+          return remove.containsKey(id);
+        }
+      });
+      return oldSize - ids.size();
+    }
+  }
+  
+  /**
+   * Return the position of the first edge from the annotation to the other annotation, 
+   * which is the position its properties have in the property store.
+   */
+  protected int edgePosition(String edgeName, Annotation from, Annotation to) {
+    ensureActive();
+    ensureAnnotation(from);
+    ensureAnnotation(to);
+    List<Integer> ids = getToEdges(edgeName, from);
+    int pos = ids == null ? -1 : indexOfId(ids, to.getId());
+    if(pos < 0) {
+      throw new GateRuntimeException("No edge "+edgeName+" between annotations "+from+" and "+to);
+    }
+    return pos;
+  }
+  
+  protected int edgeCount(String edgeName, Annotation ann) {
+    ensureActive();
+    ensureAnnotation(ann);
+    List<Integer> ids = getToEdges(edgeName, ann);
+    return ids == null ? 0 : ids.size();
+  }
+  
+  protected EdgePropertyStore getPropertyStore(String edgeName, boolean create) {
+    synchronized(propertyStores) {
+      EdgePropertyStore store = propertyStores.get(edgeName);
+      if(store == null) {
+        store = (EdgePropertyStore)doc.getFeatures().get(AG_DFN_PROPS+edgeName);
+        if(store == null && create) {
+          store = new EdgePropertyStore();
+          doc.getFeatures().put(AG_DFN_PROPS+edgeName, store);
+        }
+        if(store != null) {
+          propertyStores.put(edgeName, store);
+        }
+      }
+      return store;
+    }
+  }
+  
+  /**
+   * Insert the edge to the annotation after all edges to annotations which do not come 
+   * after it in document order, found by binary search.
+   */
+  protected void insertInDocumentOrder(String edgeName, Annotation from, List<Integer> ids, Annotation to) {
+    if(ids instanceof IndexedIntList && ((IndexedIntList)ids).containsInt(to.getId())) {
+      return;
+    }
+    long start = to.getStartNode().getOffset();
+    long end = to.getEndNode().getOffset();
+    int low = 0;
+    int high = ids.size();
+    while(low < high) {
+      int mid = (low + high) >>> 1;
+      Annotation a = set.get(idAt(ids, mid));
+      long midStart = a.getStartNode().getOffset();
+      if(midStart < start || midStart == start && a.getEndNode().getOffset() <= end) {
+        low = mid+1;
+      } else {
+        high = mid;
+      }
+    }
+    if(low == ids.size()) {
+      addId(ids, to.getId());
+      return;
+    }
+    if(ids instanceof IntList) {
+      ((IntList)ids).addInt(low, to.getId());
+    } else {
+      ids.add(low, to.getId());
+    }
+    EdgePropertyStore store = getPropertyStore(edgeName, false);
+    if(store != null) {
+      store.insertAt(from.getId(), low);
+    }
+  }
+  
+  /**
+   * Put the ids into the order given by sorting their positions with the comparator and
+   * let the edge properties follow.
+   */
+  protected void reorderEdges(String edgeName, Annotation ann, List<Integer> ids, int[] oldIds, PositionComparator comp) {
+    int[] order = new int[oldIds.length];
+    for(int i=0; i<order.length; i++) {
+      order[i] = i;
+    }
+    sortPositions(order, new int[order.length], 0, order.length, comp);
+    ids.clear();
+    for(int i=0; i<order.length; i++) {
+      addId(ids, oldIds[order[i]]);
+    }
+    EdgePropertyStore store = getPropertyStore(edgeName, false);
+    if(store != null) {
+      store.select(ann.getId(), order);
+    }
+  }
+  
+  /**
+   * Stable merge sort of the positions from start to end, using tmp as work space.
+   */
+  protected static void sortPositions(int[] positions, int[] tmp, int start, int end, PositionComparator comp) {
+    if(end - start < 8) {
+      for(int i=start+1; i<end; i++) {
+        int p = positions[i];
+        int j = i;
+        while(j > start && comp.compare(positions[j-1], p) > 0) {
+          positions[j] = positions[j-1];
+          j--;
+        }
+        positions[j] = p;
+      }
+      return;
+    }
+    int mid = (start + end) >>> 1;
+    sortPositions(positions, tmp, start, mid, comp);
+    sortPositions(positions, tmp, mid, end, comp);
+    if(comp.compare(positions[mid-1], positions[mid]) <= 0) {
+      return;
+    }
+    System.arraycopy(positions, start, tmp, start, end-start);
+    int i = start;
+    int j = mid;
+    for(int k=start; k<end; k++) {
+      if(j >= end || i < mid && comp.compare(tmp[i], tmp[j]) <= 0) {
+        positions[k] = tmp[i++];
+      } else {
+        positions[k] = tmp[j++];
+      }
+    }
+  }
+  
+  protected static int indexOfId(List<Integer> ids, int id) {
+    if(ids instanceof IntList) {
+      return ((IntList)ids).indexOfInt(id);
+    } else {
+      return ids.indexOf(id);
+    }
+  }
+  
+  /**
+   * Return the positions of the ids which are not keys in the map.
+   */
+  protected static int[] keptPositions(List<Integer> ids, IntIntMap remove) {
+    int n = ids.size();
+    IntList kept = new IntList(n);
+    for(int i=0; i<n; i++) {
+      if(!remove.containsKey(idAt(ids, i))) {
+        kept.addInt(i);
+      }
+    }
+    return kept.toIntArray();
+  }
+  
+  /**
+   * Remove as many occurrences of each id as the map has as its value, the first ones, 
+   * in a single pass over the list.
+   */
+  protected static void removeCounted(List<Integer> ids, final IntIntMap counts) {
+    if(ids instanceof IntList) {
+      ((IntList)ids).removeIntIf(new IntPredicate() {
+        @Override
+        public boolean test(int id) {
+          return decrement(counts, id);
+        }
+      });
+    } else {
+      ids.removeIf(new Predicate<Integer>() {
+        @Override
+        public boolean test(Integer id) {
+          return decrement(counts, id);
+        }
+      });
+    }
+  }
+  
+  protected static boolean decrement(IntIntMap counts, int id) {
+    int count = counts.get(id, 0);
+    if(count <= 0) {
+      return false;
+    }
+    counts.put(id, count-1);
+    return true;
+  }
+  
+  protected static IntCursor cursorOf(final List<Integer> ids) {
+    if(ids == null || ids.isEmpty()) {
+      return IntCursor.EMPTY;
+    }
+    if(ids instanceof IntList) {
+      return ((IntList)ids).cursor();
+    }
+    return new IntCursor() {
+      int pos = 0;
+      @Override
+      public boolean hasNext() {
+        return pos < ids.size();
+      }
+      @Override
+      public int next() {
+        return ids.get(pos++);
+      }
+    };
+  }
+  
+  /**
+   * Return the annotation with the given id from our set, or null if there is none.
+   * Traversals, path queries and the transitive query methods look up the annotations
+   * they reach through this, so that a subclass can guard the lookups against
+   * concurrent changes of the set.
+   */
+  protected Annotation annotationById(int id) {
+    return set.get(id);
+  }
+
+  /**
+   * Run the writer as a change of the whole graph. This just runs it, ConcurrentAnnotationGraph
+   * runs it with all stripes locked for writing.
+   */
+  protected <T> T writeAll(Supplier<T> writer) {
+    return writer.get();
+  }
+  
+  /**
+   * Create the traversal used by the transitive query methods.
+   */
+  protected GraphTraversal newTraversal(String... edgeNames) {
+    return new GraphTraversal(this, edgeNames);
+  }
+  
+  protected GraphTraversal newTraversal(Collection<String> edgeNames) {
+    return new GraphTraversal(this, edgeNames);
+  }
+  
+  /**
+   * Breadth first search which stores the depth of each reached annotation, until the stop
+   * annotation is reached if it is not null.
+   */
+  protected int[] distances(Annotation ann, Annotation stop, GraphTraversal.Direction direction, String... edgeNames) {
+    ensureActive();
+    ensureAnnotation(ann);
+    edgeNames = edgeNamesOrAll(edgeNames);
+    final int[] dist = new int[maxAnnotationId()+1];
+    Arrays.fill(dist, -1);
+    dist[ann.getId()] = 0;
+    final int stopId = stop == null ? -1 : stop.getId();
+    GraphTraversal traversal = newTraversal(edgeNames);
+    traversal.setDirection(direction);
+    if(stopId != ann.getId()) {
+      traversal.setVisitor(new GraphTraversal.Visitor() {
+        @Override
+        public boolean visit(int id, int depth) {
+          // ids of annotations added after the array was created are left out
+          if(id < dist.length && dist[id] < 0) {
+            dist[id] = depth;
+          }
+          return id != stopId;
+        }
+      });
+      traversal.run(ann.getId());
+    }
+    return dist;
+  }
+  
+  /**
+   * Return an upper bound for the ids of the annotations in the set, which is kept up to 
+   * date as annotations get added, so arrays indexed by id can be sized without a scan.
+   */
+  protected int maxAnnotationId() {
+    return maxId.get();
+  }
+  
+  protected void raiseMaxAnnotationId(int id) {
+    int current = maxId.get();
+    while(id > current && !maxId.compareAndSet(current, id)) {
+      current = maxId.get();
+    }
+  }
+  
+  /**
+   * Return all known edge names if none are given, after checking that all given names 
+   * are known.
+   */
+  protected String[] edgeNamesOrAll(String... edgeNames) {
+    if(edgeNames.length == 0) {
+      return edgeSet.toArray(new String[edgeSet.size()]);
+    }
+    for(String edgeName : edgeNames) {
+      ensureEdge(edgeName);
+    }
+    return edgeNames;
+  }
+  
+  /**
+   * Return the first id from the cursor which has distance d-1, or -1.
+   */
+  protected static int closerNeighbour(IntCursor cursor, int[] dist, int d) {
+    while(cursor.hasNext()) {
+      int id = cursor.next();
+      if(id < dist.length && dist[id] == d-1) {
+        return id;
+      }
+    }
+    return -1;
+  }
+  
+  /**
+   * Return the root of the union-find tree of id, halving the path on the way.
+   */
+  protected static int findRoot(int[] parent, int id) {
+    while(parent[id] != id) {
+      parent[id] = parent[parent[id]];
+      id = parent[id];
+    }
+    return id;
+  }
+  
+  /**
+   * Join the union-find trees of the two ids, the smaller root becomes the root of both.
+   */
+  protected static void union(int[] parent, int id1, int id2) {
+    int root1 = findRoot(parent, id1);
+    int root2 = findRoot(parent, id2);
+    if(root1 < root2) {
+      parent[root2] = root1;
+    } else if(root2 < root1) {
+      parent[root1] = root2;
+    }
+  }
+  
+  /**
+   * Return all annotations which have a non-empty to list for the edge, sorted by id.
+   * This is a pass over all annotations of the set, but the set only gets sorted by id
+   * again after it changed.
+   */
+  protected Annotation[] getSourceAnnotations(String edgeName) {
+    ensureEdge(edgeName);
+    String key = toEdgeNames.get(edgeName);
+    List<Annotation> sources = new ArrayList<Annotation>();
+    for(Annotation ann : annotationsInIdOrder()) {
+      List<Integer> ids = getIdList(ann.getFeatures(), key);
+      if(ids != null && !ids.isEmpty()) {
+        sources.add(ann);
+      }
+    }
+    return sources.toArray(new Annotation[sources.size()]);
+  }
+  
+  /**
+   * Return the annotations of the set sorted by id, from the last call if the set has not 
+   * changed since. The returned array must not be changed.
+   */
+  protected Annotation[] annotationsInIdOrder() {
+    // read the version first, so a change while sorting makes the result outdated at once
+    int version = setVersion.get();
+    IdOrder order = idOrder;
+    if(order != null && order.version == version) {
+      return order.annotations;
+    }
+    Annotation[] anns = set.toArray(new Annotation[set.size()]);
+    Arrays.sort(anns, new Comparator<Annotation>() {
+      @Override
+      public int compare(Annotation a1, Annotation a2) {
+        return a1.getId().compareTo(a2.getId());
+      }
+    });
+    idOrder = new IdOrder(version, anns);
+    return anns;
+  }
+  
+  protected static class IdOrder {
+    protected final int version;
+    protected final Annotation[] annotations;
+    
+    protected IdOrder(int version, Annotation[] annotations) {
+      this.version = version;
+      this.annotations = annotations;
+    }
+  }
+  
+  /**
+   * Create a range annotation for each group of the index which has at least min annotations
+   * and add edges from it to all the annotations of the group. The range annotations span the 
+   * group and get added to the set of this graph, the edges for all groups get added in bulk.
+   * @return the range annotations, in the order of the groups
+   */
+  protected List<Annotation> addRangeAnnotations(String edgeName, RangeIndex index, int[] bounds, String type, int min) {
+    // check that all annotations which get edges are in our set before changing anything
+    int nEdges = 0;
+    for(int g=0; g+1<bounds.length; g++) {
+      if(bounds[g+1]-bounds[g] >= min) {
+        for(int i=bounds[g]; i<bounds[g+1]; i++) {
+          ensureAnnotation(index.get(i));
+        }
+        nEdges += bounds[g+1]-bounds[g];
+      }
+    }
+    List<Annotation> ranges = new ArrayList<Annotation>();
+    int[] fromIds = new int[nEdges];
+    int[] toIds = new int[nEdges];
+    int e = 0;
+    for(int g=0; g+1<bounds.length; g++) {
+      int first = bounds[g];
+      int last = bounds[g+1];
+      if(last-first < min) { continue; }
+      Annotation range = set.get(Utils.addAnn(set, index.getStart(first), index.getMaxEnd(first, last), type, Utils.featureMap()));
+      ranges.add(range);
+      for(int i=first; i<last; i++) {
+        fromIds[e] = range.getId();
+        toIds[e] = index.get(i).getId();
+        e++;
+      }
+    }
+    addEdges(edgeName, fromIds, toIds);
+    return ranges;
+  }
+  
+  /**
+   * Return the ids of the annotations in which, followed by the ids of all annotations reachable 
+   * from them over the given edges, each id just once.
+   */
+  protected static int[] getCopyClosure(AnnotationGraph ag, Collection<Annotation> which, String... edgeNames) {
+    ag.ensureActive();
+    if(which == null) {
+      which = ag.set;
+    }
+    IntIntMap seen = new IntIntMap(which.size());
+    IntList ids = new IntList(which.size());
+    for(Annotation ann : which) {
+      ag.ensureAnnotation(ann);
+      if(!seen.containsKey(ann.getId())) {
+        seen.put(ann.getId(), 1);
+        ids.addInt(ann.getId());
+      }
+    }
+    if(ids.isEmpty()) {
+      return new int[0];
+    }
+    GraphTraversal traversal = edgeNames.length == 0 ? 
+            ag.newTraversal(ag.edgeSet) : ag.newTraversal(edgeNames);
+    // a single traversal from all the start annotations at once
+    for(int id : traversal.run(ids.toIntArray())) {
+      if(!seen.containsKey(id)) {
+        seen.put(id, 1);
+        ids.addInt(id);
+      }
+    }
+    return ids.toIntArray();
+  }
+  
+  /**
+   * Copy the annotations with the given ids and the edges between them from ag1 to ag2.
+   * Everything gets read from ag1 first, through its public methods, and then ag2 gets
+   * changed in one go with writeAll, so that the copy is atomic for other threads using ag2
+   * and never holds the locks of both graphs at the same time.
+   */
+  protected static List<Annotation> copyClosure(final AnnotationGraph ag1, final AnnotationGraph ag2, 
+          final int[] ids, String... edgeNames) {
+    if(edgeNames.length == 0) {
+      edgeNames = ag1.getEdgeNames().toArray(new String[0]);
+    }
+    final String[] names = edgeNames;
+    ag2.ensureActive();
+    ag2.addEdgeNames(names);
+    final int n = ids.length;
+    final Annotation[] from = new Annotation[n];
+    final FeatureMap[] features = new FeatureMap[n];
+    final int[][][] toIds = new int[names.length][n][];
+    final int[][][] fromIds = new int[names.length][n][];
+    for(int i=0; i<n; i++) {
+      from[i] = ag1.annotationById(ids[i]);
+      features[i] = ag1.getFeatureMapCopy(from[i]);
+      for(int e=0; e<names.length; e++) {
+        toIds[e][i] = ag1.getIdArray(names[e], from[i]);
+        fromIds[e][i] = ag1.getReferencingIdArray(names[e], from[i]);
+      }
+    }
+    return ag2.writeAll(new Supplier<List<Annotation>>() {
+      @Override
+      public List<Annotation> get() {
+        // create all the copies first, remembering the new id for each old id
+        IntIntMap newIds = new IntIntMap(n);
+        Annotation[] to = new Annotation[n];
+        for(int i=0; i<n; i++) {
+          to[i] = ag2.set.get(Utils.addAnn(ag2.set, from[i], from[i].getType(), features[i]));
+          newIds.put(ids[i], to[i].getId());
+        }
+        // then translate the edge lists of each copied annotation in one go
+        for(int e=0; e<names.length; e++) {
+          String toToKey = ag2.toEdgeNames.get(names[e]);
+          String toFromKey = ag2.fromEdgeNames.get(names[e]);
+          EdgePropertyStore store = ag1.getPropertyStore(names[e], false);
+          for(int i=0; i<n; i++) {
+            copyIds(ag2, toIds[e][i], newIds, to[i], toToKey);
+            copyIds(ag2, fromIds[e][i], newIds, to[i], toFromKey);
+            if(store != null && store.hasValues(ids[i])) {
+              // the copied to list keeps the edges to the copied annotations, in the same order
+              IntList copied = new IntList();
+              for(int k=0; k<toIds[e][i].length; k++) {
+                if(newIds.containsKey(toIds[e][i][k])) {
+                  copied.addInt(k);
+                }
+              }
+              store.copyTo(ids[i], copied.toIntArray(), ag2.getPropertyStore(names[e], true), to[i].getId());
+            }
+          }
+        }
+        return Arrays.asList(to);
+      }
+    });
+  }
+  
+  /**
+   * Store the new ids for all ids of the list which have a new id in a new list of ag under key.
+   */
+  protected static void copyIds(AnnotationGraph ag, int[] ids, IntIntMap newIds, Annotation target, String key) {
+    List<Integer> copy = ag.newIdList();
+    for(int i=0; i<ids.length; i++) {
+      int newId = newIds.get(ids[i], -1);
+      if(newId >= 0) {
+        addId(copy, newId);
+      }
+    }
+    if(!copy.isEmpty()) {
+      target.getFeatures().put(key, copy);
+    }
+  }
+  
+  protected AnnotationSet toAnnotationSet(int[] ids) {
+    AnnotationSet ret = new AnnotationSetImpl(doc);
+    for(int id : ids) {
+      ret.add(annotationById(id));
+    }
+    return ret;
+  }
+  
+  protected static int[] toIdArray(List<Integer> ids) {
+    if(ids == null) {
+      return new int[0];
+    }
+    if(ids instanceof IntList) {
+      return ((IntList)ids).toIntArray();
+    }
+    int n = ids.size();
+    int[] ret = new int[n];
+    for(int i=0; i<n; i++) {
+      ret[i] = ids.get(i);
+    }
+    return ret;
+  }
+  
   protected void removeEmptyToEdgeList(String edgeName, Annotation ann) {
     FeatureMap fm = ann.getFeatures();
-    List<Integer> l = (List<Integer>)fm.get(toEdgeNames.get(edgeName));
+    List<Integer> l = getIdList(fm, toEdgeNames.get(edgeName));
     if(l != null && l.isEmpty()) {
       fm.remove(toEdgeNames.get(edgeName));
     }
   }
   protected void removeEmptyFromEdgeList(String edgeName, Annotation ann) {
     FeatureMap fm = ann.getFeatures();
-    List<Integer> l = (List<Integer>)fm.get(fromEdgeNames.get(edgeName));
+    List<Integer> l = getIdList(fm, fromEdgeNames.get(edgeName));
     if(l != null && l.isEmpty()) {
       fm.remove(fromEdgeNames.get(edgeName));
     }
@@ -963,39 +2866,158 @@ public class AnnotationGraph
   }
   
   protected void deActivate() {
+    if(!isActive) {
+      return;
+    }
     isActive = false;
+    set.removeAnnotationSetListener(this);
+    synchronized(registry) {
+      List<WeakReference<AnnotationGraph>> refs = registry.get(doc);
+      if(refs != null) {
+        Iterator<WeakReference<AnnotationGraph>> it = refs.iterator();
+        while(it.hasNext()) {
+          AnnotationGraph ag = it.next().get();
+          if(ag == null || ag == this) {
+            it.remove();
+          }
+        }
+        if(refs.isEmpty()) {
+          registry.remove(doc);
+        }
+      }
+    }
     doc = null;
     set = null;
     edgeSet = null;
     toEdgeNames = null;
     fromEdgeNames = null;
+    orderedEdges = null;
+  }
+
+  protected static void register(AnnotationGraph ag) {
+    synchronized(registry) {
+      if(unloadListener == null) {
+        unloadListener = new UnloadListener();
+        Factory.addCreoleListener(unloadListener);
+      }
+      List<WeakReference<AnnotationGraph>> refs = registry.get(ag.doc);
+      if(refs == null) {
+        refs = new ArrayList<WeakReference<AnnotationGraph>>(2);
+        registry.put(ag.doc, refs);
+      }
+      refs.add(new WeakReference<AnnotationGraph>(ag));
+    }
+  }
+  
+  /**
+   * De-activate all graphs of a document.
+   */
+  protected static void deActivateAll(Document doc) {
+    List<AnnotationGraph> graphs = new ArrayList<AnnotationGraph>();
+    synchronized(registry) {
+      List<WeakReference<AnnotationGraph>> refs = registry.get(doc);
+      if(refs == null) {
+        return;
+      }
+      for(WeakReference<AnnotationGraph> ref : refs) {
+        AnnotationGraph ag = ref.get();
+        if(ag != null) { graphs.add(ag); }
+      }
+    }
+    for(AnnotationGraph ag : graphs) {
+      ag.deActivate();
+    }
   }
 
   ////////////////////////////////////////////////////////////////////////
   /// INTERNAL CLASSES
   ///////////////////////////////////////////////////////////////////////
   
-  protected static class ByIdComparator 
-          implements Comparator<Integer> {
-
-    protected Comparator<Annotation> comparator;
-    protected AnnotationSet set;
-    public ByIdComparator(AnnotationSet set, Comparator<Annotation> outer) {
-      this.set = set;
-      this.comparator = outer;
-    }
-    
+  /**
+   * The CreoleListener shared by all graphs: when a document gets unloaded, all of 
+   * its graphs get de-activated.
+   */
+  protected static class UnloadListener implements CreoleListener {
     @Override
-    public int compare(Integer o1, Integer o2) {
-      return comparator.compare(set.get(o1), set.get(o2));
+    public void resourceUnloaded(CreoleEvent ce) {
+      if(ce.getResource() instanceof Document) {
+        deActivateAll((Document)ce.getResource());
+      }
     }
+    @Override
+    public void resourceLoaded(CreoleEvent ce) { }
+    @Override
+    public void datastoreOpened(CreoleEvent ce) { }
+    @Override
+    public void datastoreCreated(CreoleEvent ce) { }
+    @Override
+    public void datastoreClosed(CreoleEvent ce) { }
+    @Override
+    public void resourceRenamed(Resource rsrc, String string, String string1) { }
+  }
   
+  /**
+   * Compares two positions of an edge list, by keys computed for all positions beforehand.
+   */
+  protected static interface PositionComparator {
+    public int compare(int p1, int p2);
   }
   
   
   
   
   
+  /**
+   * Iterates over the to or from list of an annotation by position and looks up each
+   * annotation when it is needed. Removing goes through removeEdge, so both the to
+   * and the from list are updated.
+   */
+  protected class EdgeIterator implements Iterator<Annotation> {
+    protected final String edgeName;
+    protected final Annotation ann;
+    protected final boolean forward;
+    protected List<Integer> ids;
+    protected int pos = 0;
+    protected Annotation last = null;
+
+    protected EdgeIterator(String edgeName, Annotation ann, boolean forward) {
+      this.edgeName = edgeName;
+      this.ann = ann;
+      this.forward = forward;
+      // writable, since remove() changes the same list
+      ids = forward ? getWritableToEdges(edgeName, ann) : getWritableFromEdges(edgeName, ann);
+    }
+
+    @Override
+    public boolean hasNext() {
+      return ids != null && pos < ids.size();
+    }
+
+    @Override
+    public Annotation next() {
+      if(!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      last = set.get(idAt(ids, pos++));
+      return last;
+    }
+
+    @Override
+    public void remove() {
+      if(last == null) {
+        throw new IllegalStateException();
+      }
+      if(forward) {
+        removeEdge(edgeName, ann, last);
+      } else {
+        removeEdge(edgeName, last, ann);
+      }
+      // removeEdge drops the list from the feature map once it is empty
+      pos--;
+      last = null;
+    }
+  }
+  
   //////////////////////////////////////////////////////////////////////////
   //// LISTENERS
   /////////////////////////////////////////////////////////////////////////
@@ -1004,27 +3026,44 @@ public class AnnotationGraph
   
   @Override
   public void annotationAdded(AnnotationSetEvent ase) {
-    // do nothinig, we do not care about added annotations
+    // only the largest id and the version are needed, the edges of new annotations are 
+    // added explicitly
+    raiseMaxAnnotationId(ase.getAnnotation().getId());
+    setVersion.incrementAndGet();
   }
 
   @Override
   public void annotationRemoved(AnnotationSetEvent ase) {
+    setVersion.incrementAndGet();
     // if an annotation gets removed, we check if it has incoming or outgoing 
     // edges for any of the known edges. If yes, the edge information in all the 
     // connected annotations is updated accordingly
+    if(ignoreRemovals || !isActive) {
+      return;
+    }
+    GraphMetrics m = metrics;
+    long startTime = m == null ? 0 : System.nanoTime();
     Annotation ann = ase.getAnnotation();
-    System.err.println("DEBUG annotationRemoved for "+ann);
     Integer thisId = ann.getId();
+    IntIntMap removed = null;
     for(String edgeName : edgeSet) {
+      EdgePropertyStore store = getPropertyStore(edgeName, false);
+      if(store != null) {
+        store.remove(thisId);
+      }
       // check the outgoing edges: for each outgoign edge, remove 
       // this annotation id from the other annotation's from list
       List<Integer> ids = getToEdges(edgeName, ann);
       if(ids != null) {
-        for(Integer otherId : ids) {
-          Annotation a = set.get(otherId);
-          List<Integer> otherIds = getFromEdges(edgeName,a);
+        int n = ids.size();
+        for(int i=0; i<n; i++) {
+          Annotation a = set.get(idAt(ids, i));
+          // null for an edge to the annotation itself
+          if(a == null) { continue; }
+          List<Integer> otherIds = getWritableFromEdges(edgeName,a);
           if(otherIds != null) {
-            otherIds.remove(thisId);
+            // there may be several edges between the same two annotations
+            while(removeId(otherIds, thisId)) { }
             removeEmptyFromEdgeList(edgeName,a);
           }
         }
@@ -1033,16 +3072,28 @@ public class AnnotationGraph
       // this annotation id from the other annotation's to list
       ids = getFromEdges(edgeName, ann);
       if(ids != null) {
-        for(Integer otherId : ids) {
-          Annotation a = set.get(otherId);
-          List<Integer> otherIds = getToEdges(edgeName,a);
+        int n = ids.size();
+        for(int i=0; i<n; i++) {
+          Annotation a = set.get(idAt(ids, i));
+          // null for an edge to the annotation itself
+          if(a == null) { continue; }
+          List<Integer> otherIds = getWritableToEdges(edgeName,a);
           if(otherIds != null) {
-            otherIds.remove(thisId);
+            if(store != null && store.hasValues(a.getId())) {
+              if(removed == null) {
+                removed = new IntIntMap();
+                removed.put(thisId, 1);
+              }
+              store.select(a.getId(), keptPositions(otherIds, removed));
+            }
+            // there may be several edges between the same two annotations
+            while(removeId(otherIds, thisId)) { }
             removeEmptyToEdgeList(edgeName,a);
           }
         }
       }
     }
+    if(m != null) { m.record(GraphMetrics.Operation.ANNOTATION_REMOVED, System.nanoTime()-startTime); }
   }
 
   @Override
@@ -1063,38 +3114,5 @@ public class AnnotationGraph
   public void contentEdited(DocumentEvent de) {
     // do not care about this
   }
-
-  @Override
-  public void resourceLoaded(CreoleEvent ce) {
-    // do not care
-  }
-
-  @Override
-  public void resourceUnloaded(CreoleEvent ce) {
-    // if our document got unloaded, de-activate
-    if((ce.getResource() instanceof Document) && (ce.getResource().equals(doc))) {
-      deActivate();
-    }
-  }
-
-  @Override
-  public void datastoreOpened(CreoleEvent ce) {
-    // do not care
-  }
-
-  @Override
-  public void datastoreCreated(CreoleEvent ce) {
-    // do not care
-  }
-
-  @Override
-  public void datastoreClosed(CreoleEvent ce) {
-    // do not care
-  }
-
-  @Override
-  public void resourceRenamed(Resource rsrc, String string, String string1) {
-    // do not care
-  }
   
 }
@@ -0,0 +1,203 @@
+package gate.plugins.annotationgraphs;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Utils;
+import gate.creole.AbstractLanguageAnalyser;
+import gate.creole.ExecutionException;
+import gate.creole.metadata.CreoleParameter;
+import gate.creole.metadata.CreoleResource;
+import gate.creole.metadata.Optional;
+import gate.creole.metadata.RunTime;
+
+/**
+ * A processing resource which adds edges between the annotations of a document.
+ * <p>
+ * The annotations of the input type are either used as a whole, or, if a container type
+ * is given, separately for the annotations contained in each container annotation, e.g.
+ * the tokens of each sentence. The operation decides which edges get created:
+ * <ul>
+ * <li>SEQUENCE: edges from each annotation to the next one in document order, using the
+ * edge name, and if a reverse edge name is given, also edges back to the previous one.
+ * <li>CONTAINED: edges from the container annotation to each contained annotation, in
+ * document order. This needs a container type.
+ * <li>COEXTENSIVE, MAX_OVERLAPPING, SEQU_OVERLAPPING: range annotations of the range type
+ * for the groups of coextensive or overlapping annotations, with edges to the annotations
+ * of the group. The minimum size is passed on as the min parameter of the corresponding 
+ * methods of AnnotationGraph.
+ * </ul>
+ * All annotations must be in the input set, the edges get stored in the graph for that set.
+ * To process a corpus on several threads, use ParallelCorpusExecutor.
+ *
+ * @author Johann Petrak
+ */
+@CreoleResource(
+        name = "Annotation Graph Builder",
+        comment = "Add edges between annotations, e.g. sequences or ranges of overlapping annotations")
+public class AnnotationGraphBuilder extends AbstractLanguageAnalyser {
+
+  private static final long serialVersionUID = 1L;
+
+  public static enum Operation {
+    SEQUENCE,
+    CONTAINED,
+    COEXTENSIVE,
+    MAX_OVERLAPPING,
+    SEQU_OVERLAPPING
+  }
+
+  protected String inputAnnotationSet = "";
+  protected String inputType;
+  protected String containerType;
+  protected Operation operation = Operation.SEQUENCE;
+  protected String edgeName;
+  protected String reverseEdgeName;
+  protected String rangeType = "Range";
+  protected Integer minSize = 1;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "The annotation set which contains the annotations and gets the graph", defaultValue = "")
+  public void setInputAnnotationSet(String name) {
+    inputAnnotationSet = name;
+  }
+
+  public String getInputAnnotationSet() {
+    return inputAnnotationSet;
+  }
+
+  @RunTime
+  @CreoleParameter(comment = "The type of the annotations to connect")
+  public void setInputType(String type) {
+    inputType = type;
+  }
+
+  public String getInputType() {
+    return inputType;
+  }
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "If given, process the annotations within each annotation of this type separately")
+  public void setContainerType(String type) {
+    containerType = type;
+  }
+
+  public String getContainerType() {
+    return containerType;
+  }
+
+  @RunTime
+  @CreoleParameter(comment = "Which edges to create", defaultValue = "SEQUENCE")
+  public void setOperation(Operation operation) {
+    this.operation = operation;
+  }
+
+  public Operation getOperation() {
+    return operation;
+  }
+
+  @RunTime
+  @CreoleParameter(comment = "The name of the edges to create")
+  public void setEdgeName(String name) {
+    edgeName = name;
+  }
+
+  public String getEdgeName() {
+    return edgeName;
+  }
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "For SEQUENCE, the name of the edges to the previous annotation")
+  public void setReverseEdgeName(String name) {
+    reverseEdgeName = name;
+  }
+
+  public String getReverseEdgeName() {
+    return reverseEdgeName;
+  }
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "The type of the range annotations to create", defaultValue = "Range")
+  public void setRangeType(String type) {
+    rangeType = type;
+  }
+
+  public String getRangeType() {
+    return rangeType;
+  }
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "Only create ranges with at least (COEXTENSIVE) or more than (overlapping operations) this many annotations", defaultValue = "1")
+  public void setMinSize(Integer min) {
+    minSize = min;
+  }
+
+  public Integer getMinSize() {
+    return minSize;
+  }
+
+  @Override
+  public void execute() throws ExecutionException {
+    if(document == null) {
+      throw new ExecutionException("No document to process");
+    }
+    if(inputType == null || inputType.isEmpty()) {
+      throw new ExecutionException("Parameter inputType must be set");
+    }
+    if(edgeName == null || edgeName.isEmpty()) {
+      throw new ExecutionException("Parameter edgeName must be set");
+    }
+    boolean haveContainers = containerType != null && !containerType.isEmpty();
+    if(operation == Operation.CONTAINED && !haveContainers) {
+      throw new ExecutionException("Operation CONTAINED needs parameter containerType");
+    }
+    AnnotationSet set = document.getAnnotations(inputAnnotationSet == null ? "" : inputAnnotationSet);
+    AnnotationGraph ag = AnnotationGraph.getAnnotationGraph(document, set);
+    ag.addEdgeName(edgeName);
+    if(operation == Operation.SEQUENCE && reverseEdgeName != null && !reverseEdgeName.isEmpty()) {
+      ag.addEdgeName(reverseEdgeName);
+    }
+    AnnotationSet anns = set.get(inputType);
+    if(!haveContainers) {
+      process(ag, null, anns);
+    } else {
+      // the containers get fetched before anything is added, so new range annotations
+      // never become containers themselves
+      for(Annotation container : set.get(containerType).inDocumentOrder()) {
+        if(isInterrupted()) {
+          throw new ExecutionException("Execution of "+getClass().getSimpleName()+" was interrupted");
+        }
+        process(ag, container, anns.getContained(Utils.start(container), Utils.end(container)));
+      }
+    }
+  }
+
+  protected void process(AnnotationGraph ag, Annotation container, AnnotationSet anns) {
+    int min = minSize == null ? 1 : minSize;
+    switch(operation) {
+      case SEQUENCE:
+        if(anns.size() > 1) {
+          ag.makeSequence(reverseEdgeName == null || reverseEdgeName.isEmpty() ? null : reverseEdgeName,
+                  edgeName, anns);
+        }
+        break;
+      case CONTAINED:
+        ag.addSequenceEdges(edgeName, container, anns);
+        break;
+      case COEXTENSIVE:
+        ag.getCoextensiveRangeAnnotations(edgeName, anns, rangeType, min);
+        break;
+      case MAX_OVERLAPPING:
+        ag.getMaxOverlappingRangeAnnotations(edgeName, anns, rangeType, min);
+        break;
+      case SEQU_OVERLAPPING:
+        ag.getSequOverlappingRangeAnnotations(edgeName, anns, rangeType, min);
+        break;
+    }
+  }
+
+}
@@ -0,0 +1,1132 @@
+package gate.plugins.annotationgraphs;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.FeatureMap;
+import gate.event.AnnotationSetEvent;
+import gate.util.GateRuntimeException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * An AnnotationGraph which can be used by several threads at the same time.
+ * <p>
+ * The annotations are spread over a fixed number of lock stripes by their id, each stripe
+ * is a StampedLock which guards the edge lists in the feature maps of its annotations.
+ * Methods which read the edges of one annotation first try an optimistic read of its stripe
+ * and only take the read lock if a writer changed the stripe in the meantime, so readers
+ * never block each other and hardly ever block on writers. Methods which change the edges
+ * between annotations lock the stripes of all the annotations involved, in stripe order,
+ * so writers of different parts of the graph run in parallel. Methods which change the
+ * graph as a whole, i.e. the edge names, the edge storage, or the annotations in the set,
+ * lock all stripes.
+ * <p>
+ * The consistency model is:
+ * <ul>
+ * <li>Adding or removing an edge is atomic: the to list of the source and the from list of
+ * the target are changed together.
+ * <li>Every method which reads the edges of one annotation sees them at a single point in time.
+ * Methods which return id lists, cursors, iterators or streams for one annotation return
+ * a copy, so unlike for AnnotationGraph they do not reflect later changes and getIds
+ * does not create an empty list for the annotation.
+ * <li>Transitive queries and path queries read each annotation they reach at a single
+ * point in time, but not all of them at the same point in time, so a query running next
+ * to writers may see some changes and miss others, like the iterators of the
+ * java.util.concurrent collections. An annotation which gets removed while the query runs
+ * is either still reached or not reached at all.
+ * <li>snapshot(), getStatistics(), getComponentIds(), edges(edgeName) and
+ * nodesWithEdges(edgeName) lock all stripes for reading and reflect a single point in time.
+ * </ul>
+ * Annotations must only be added to or removed from the set through the methods of this
+ * graph or while no other thread uses the graph, since GATE annotation sets themselves are
+ * not thread-safe. The comparator of sortEdges and the filters of grepEdges and
+ * grepAllEdges are called while stripes are locked, so they must not use this graph.
+ * The static copySubgraph and moveSubgraph methods change the target graph atomically,
+ * but they are not atomic with respect to other threads using the source graph.
+ *
+ * @author Johann Petrak
+ */
+public class ConcurrentAnnotationGraph extends AnnotationGraph {
+
+  public static final int DEFAULT_STRIPES = 64;
+
+  protected final StampedLock[] stripes;
+  protected final int stripeMask;
+  // the thread which holds all stripes for writing, so that methods called while doing
+  // that do not try to lock again (StampedLock is not reentrant)
+  protected volatile Thread exclusiveOwner = null;
+  // true after encodeEdgeLists, until the lists get decoded again
+  protected volatile boolean encoded = false;
+
+  public ConcurrentAnnotationGraph(Document doc, AnnotationSet set) {
+    this(doc, set, DEFAULT_STRIPES);
+  }
+
+  /**
+   * Create a graph with the given number of lock stripes, which gets rounded up to a power of two.
+   * @param doc
+   * @param set
+   * @param nStripes
+   */
+  public ConcurrentAnnotationGraph(Document doc, AnnotationSet set, int nStripes) {
+    this(doc, set, newStripes(nStripes));
+  }
+
+  // the graph only gets registered and starts listening to the set once the stripes exist
+  private ConcurrentAnnotationGraph(Document doc, AnnotationSet set, StampedLock[] stripes) {
+    super(doc, set, false);
+    this.stripes = stripes;
+    stripeMask = stripes.length-1;
+    // lists encoded in the document get decoded right away, so that readers never
+    // need to change a feature map
+    decodeEdgeLists();
+    activate();
+  }
+
+  protected static StampedLock[] newStripes(int nStripes) {
+    if(nStripes < 1) {
+      throw new GateRuntimeException("Number of lock stripes must be at least 1: "+nStripes);
+    }
+    int n = Integer.highestOneBit(nStripes);
+    if(n < nStripes) {
+      n *= 2;
+    }
+    StampedLock[] stripes = new StampedLock[n];
+    for(int i=0; i<n; i++) {
+      stripes[i] = new StampedLock();
+    }
+    return stripes;
+  }
+
+  /**
+   * Return the concurrent graph for the given document and set, creating it if necessary.
+   * This works like AnnotationGraph.getAnnotationGraph, but it is an error if a graph which
+   * is not a ConcurrentAnnotationGraph is already active for the set.
+   * @param doc
+   * @param set
+   * @return
+   */
+  public static ConcurrentAnnotationGraph getConcurrentAnnotationGraph(Document doc, AnnotationSet set) {
+    if(!set.getDocument().equals(doc)) {
+      throw new GateRuntimeException("AnnotationSet is not from the given document!");
+    }
+    synchronized(registry) {
+      List<WeakReference<AnnotationGraph>> refs = registry.get(doc);
+      if(refs != null) {
+        for(WeakReference<AnnotationGraph> ref : refs) {
+          AnnotationGraph ag = ref.get();
+          if(ag != null && ag.isActive && ag.set == set) {
+            if(ag instanceof ConcurrentAnnotationGraph) {
+              return (ConcurrentAnnotationGraph)ag;
+            }
+            throw new GateRuntimeException("A non-concurrent AnnotationGraph is already active for document "+
+                    ag.docName+" set "+ag.setName+", it must be closed first");
+          }
+        }
+      }
+      return new ConcurrentAnnotationGraph(doc, set);
+    }
+  }
+
+  //////////////////////////////
+  // METHODS WHICH CHANGE THE WHOLE GRAPH
+  //////////////////////////////
+
+  @Override
+  public void addEdgeName(final String name) {
+    writeAll(new Supplier<Void>() {
+      @Override
+      public Void get() {
+        ConcurrentAnnotationGraph.super.addEdgeName(name);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public void removeEdgeName(final String name) {
+    writeAll(new Supplier<Void>() {
+      @Override
+      public Void get() {
+        ConcurrentAnnotationGraph.super.removeEdgeName(name);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Return a copy of the known edge names.
+   * @return
+   */
+  @Override
+  public Collection<String> getEdgeNames() {
+    return readAny(new Supplier<Collection<String>>() {
+      @Override
+      public Collection<String> get() {
+        ensureActive();
+        return Collections.unmodifiableCollection(new ArrayList<String>(edgeSet));
+      }
+    });
+  }
+
+  @Override
+  public FrozenAnnotationGraph snapshot() {
+    return readAll(new Supplier<FrozenAnnotationGraph>() {
+      @Override
+      public FrozenAnnotationGraph get() {
+        return ConcurrentAnnotationGraph.super.snapshot();
+      }
+    });
+  }
+
+  @Override
+  public int[] getComponentIds(final String... edgeNames) {
+    return readAll(new Supplier<int[]>() {
+      @Override
+      public int[] get() {
+        return ConcurrentAnnotationGraph.super.getComponentIds(edgeNames);
+      }
+    });
+  }
+
+  @Override
+  public GraphStatistics getStatistics() {
+    return readAll(new Supplier<GraphStatistics>() {
+      @Override
+      public GraphStatistics get() {
+        return ConcurrentAnnotationGraph.super.getStatistics();
+      }
+    });
+  }
+
+  /**
+   * Replace all edge lists by their encoded form.
+   * The lists get decoded again, all at once, by the next method which uses an edge list.
+   */
+  @Override
+  public void encodeEdgeLists() {
+    writeAll(new Supplier<Void>() {
+      @Override
+      public Void get() {
+        ConcurrentAnnotationGraph.super.encodeEdgeLists();
+        encoded = true;
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public void setEdgeStorage(final EdgeStorage storage) {
+    writeAll(new Supplier<Void>() {
+      @Override
+      public Void get() {
+        ConcurrentAnnotationGraph.super.setEdgeStorage(storage);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public void setDefaultEdgeName(final String name) {
+    writeAll(new Supplier<Void>() {
+      @Override
+      public Void get() {
+        ConcurrentAnnotationGraph.super.setDefaultEdgeName(name);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public void addEdges(final String edgeName, final int[] fromIds, final int[] toIds) {
+    writeAll(new Supplier<Void>() {
+      @Override
+      public Void get() {
+        ConcurrentAnnotationGraph.super.addEdges(edgeName, fromIds, toIds);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public void removeAnnotations(final Collection<Annotation> anns) {
+    writeAll(new Supplier<Void>() {
+      @Override
+      public Void get() {
+        ConcurrentAnnotationGraph.super.removeAnnotations(anns);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public List<Annotation> getCoextensiveRangeAnnotations(final String edgeName, final AnnotationSet subSet,
+          final String type, final int min) {
+    return writeAll(new Supplier<List<Annotation>>() {
+      @Override
+      public List<Annotation> get() {
+        return ConcurrentAnnotationGraph.super.getCoextensiveRangeAnnotations(edgeName, subSet, type, min);
+      }
+    });
+  }
+
+  @Override
+  public List<Annotation> getSequOverlappingRangeAnnotations(final String edgeName, final AnnotationSet subSet,
+          final String type, final int min) {
+    return writeAll(new Supplier<List<Annotation>>() {
+      @Override
+      public List<Annotation> get() {
+        return ConcurrentAnnotationGraph.super.getSequOverlappingRangeAnnotations(edgeName, subSet, type, min);
+      }
+    });
+  }
+
+  @Override
+  public List<Annotation> getMaxOverlappingRangeAnnotations(final String edgeName, final AnnotationSet subSet,
+          final String type, final int min) {
+    return writeAll(new Supplier<List<Annotation>>() {
+      @Override
+      public List<Annotation> get() {
+        return ConcurrentAnnotationGraph.super.getMaxOverlappingRangeAnnotations(edgeName, subSet, type, min);
+      }
+    });
+  }
+
+  @Override
+  public Stream<Edge> edges(final String edgeName) {
+    // collect the edges while all stripes are locked, the stream then works on the copy
+    List<Edge> edges = readAll(new Supplier<List<Edge>>() {
+      @Override
+      public List<Edge> get() {
+        ensureActive();
+        String key = toEdgeNames.get(edgeName);
+        List<Edge> ret = new ArrayList<Edge>();
+        for(Annotation source : getSourceAnnotations(edgeName)) {
+          List<Integer> ids = getIdList(source.getFeatures(), key);
+          int n = ids.size();
+          for(int i=0; i<n; i++) {
+            ret.add(new Edge(edgeName, source, set.get(idAt(ids, i))));
+          }
+        }
+        return ret;
+      }
+    });
+    return edges.stream();
+  }
+
+  @Override
+  public Stream<Annotation> nodesWithEdges(final String edgeName) {
+    return readAll(new Supplier<Stream<Annotation>>() {
+      @Override
+      public Stream<Annotation> get() {
+        return ConcurrentAnnotationGraph.super.nodesWithEdges(edgeName);
+      }
+    });
+  }
+
+  @Override
+  public IntStream nodeIdsWithEdges(final String edgeName) {
+    return readAll(new Supplier<IntStream>() {
+      @Override
+      public IntStream get() {
+        return ConcurrentAnnotationGraph.super.nodeIdsWithEdges(edgeName);
+      }
+    });
+  }
+
+  //////////////////////////////
+  // METHODS WHICH CHANGE THE EDGES OF SOME ANNOTATIONS
+  //////////////////////////////
+
+  @Override
+  public void addEdge(final String edgeName, final Annotation from, final Annotation to) {
+    writeNodes(new Supplier<Void>() {
+      @Override
+      public Void get() {
+        ConcurrentAnnotationGraph.super.addEdge(edgeName, from, to);
+        return null;
+      }
+    }, from.getId(), to.getId());
+  }
+
+  @Override
+  public void removeEdge(final String edgeName, final Annotation from, final Annotation to) {
+    writeNodes(new Supplier<Void>() {
+      @Override
+      public Void get() {
+        ConcurrentAnnotationGraph.super.removeEdge(edgeName, from, to);
+        return null;
+      }
+    }, from.getId(), to.getId());
+  }
+
+  @Override
+  public void removeEdges(final String edgeName, final Annotation ann) {
+    writeNeighbourhood(edgeName, ann, new Supplier<Void>() {
+      @Override
+      public Void get() {
+        ConcurrentAnnotationGraph.super.removeEdges(edgeName, ann);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public int grepAllEdges(final String edgeName, final BiPredicate<Annotation,Annotation> filter) {
+    return writeAll(new Supplier<Integer>() {
+      @Override
+      public Integer get() {
+        return ConcurrentAnnotationGraph.super.grepAllEdges(edgeName, filter);
+      }
+    });
+  }
+
+  @Override
+  public void grepEdges(final String edgeName, final Annotation ann, final Predicate<Annotation> filter) {
+    writeNeighbourhood(edgeName, ann, new Supplier<Void>() {
+      @Override
+      public Void get() {
+        ConcurrentAnnotationGraph.super.grepEdges(edgeName, ann, filter);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public void sortEdgesByOffset(final String edgeName, final Annotation ann) {
+    writeNodes(new Supplier<Void>() {
+      @Override
+      public Void get() {
+        ConcurrentAnnotationGraph.super.sortEdgesByOffset(edgeName, ann);
+        return null;
+      }
+    }, ann.getId());
+  }
+
+  @Override
+  public void sortEdgesByFeature(final String edgeName, final Annotation ann, final String feature, final boolean descending) {
+    writeNodes(new Supplier<Void>() {
+      @Override
+      public Void get() {
+        ConcurrentAnnotationGraph.super.sortEdgesByFeature(edgeName, ann, feature, descending);
+        return null;
+      }
+    }, ann.getId());
+  }
+
+  @Override
+  public void setKeepInDocumentOrder(final String edgeName, final boolean inOrder) {
+    writeAll(new Supplier<Void>() {
+      @Override
+      public Void get() {
+        ConcurrentAnnotationGraph.super.setKeepInDocumentOrder(edgeName, inOrder);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public boolean isKeepInDocumentOrder(final String edgeName) {
+    return readAny(new Supplier<Boolean>() {
+      @Override
+      public Boolean get() {
+        return ConcurrentAnnotationGraph.super.isKeepInDocumentOrder(edgeName);
+      }
+    });
+  }
+
+  @Override
+  public void sortEdges(final String edgeName, final Annotation ann, final Comparator<Annotation> sorter) {
+    writeNodes(new Supplier<Void>() {
+      @Override
+      public Void get() {
+        ConcurrentAnnotationGraph.super.sortEdges(edgeName, ann, sorter);
+        return null;
+      }
+    }, ann.getId());
+  }
+
+  //////////////////////////////
+  // METHODS WHICH READ THE EDGES OF ONE ANNOTATION
+  //////////////////////////////
+
+  @Override
+  public boolean hasEdge(final String edgeName, final Annotation from, final Annotation to) {
+    return readNode(from, new Supplier<Boolean>() {
+      @Override
+      public Boolean get() {
+        return ConcurrentAnnotationGraph.super.hasEdge(edgeName, from, to);
+      }
+    });
+  }
+
+  @Override
+  public boolean hasEdges(final String edgeName, final Annotation ann) {
+    return readNode(ann, new Supplier<Boolean>() {
+      @Override
+      public Boolean get() {
+        return ConcurrentAnnotationGraph.super.hasEdges(edgeName, ann);
+      }
+    });
+  }
+
+  @Override
+  public boolean hasReferencingEdges(final String edgeName, final Annotation ann) {
+    return readNode(ann, new Supplier<Boolean>() {
+      @Override
+      public Boolean get() {
+        return ConcurrentAnnotationGraph.super.hasReferencingEdges(edgeName, ann);
+      }
+    });
+  }
+
+  @Override
+  public double getEdgeDouble(final String edgeName, final Annotation from, final Annotation to, final String key) {
+    return readNode(from, new Supplier<Double>() {
+      @Override
+      public Double get() {
+        return ConcurrentAnnotationGraph.super.getEdgeDouble(edgeName, from, to, key);
+      }
+    });
+  }
+
+  @Override
+  public void setEdgeDouble(final String edgeName, final Annotation from, final Annotation to, final String key, final double value) {
+    writeNodes(new Supplier<Void>() {
+      @Override
+      public Void get() {
+        ConcurrentAnnotationGraph.super.setEdgeDouble(edgeName, from, to, key, value);
+        return null;
+      }
+    }, from.getId());
+  }
+
+  @Override
+  public double[] getEdgeDoubles(final String edgeName, final Annotation ann, final String key) {
+    return readNode(ann, new Supplier<double[]>() {
+      @Override
+      public double[] get() {
+        return ConcurrentAnnotationGraph.super.getEdgeDoubles(edgeName, ann, key);
+      }
+    });
+  }
+
+  @Override
+  public int getEdgeInt(final String edgeName, final Annotation from, final Annotation to, final String key) {
+    return readNode(from, new Supplier<Integer>() {
+      @Override
+      public Integer get() {
+        return ConcurrentAnnotationGraph.super.getEdgeInt(edgeName, from, to, key);
+      }
+    });
+  }
+
+  @Override
+  public void setEdgeInt(final String edgeName, final Annotation from, final Annotation to, final String key, final int value) {
+    writeNodes(new Supplier<Void>() {
+      @Override
+      public Void get() {
+        ConcurrentAnnotationGraph.super.setEdgeInt(edgeName, from, to, key, value);
+        return null;
+      }
+    }, from.getId());
+  }
+
+  @Override
+  public int[] getEdgeInts(final String edgeName, final Annotation ann, final String key) {
+    return readNode(ann, new Supplier<int[]>() {
+      @Override
+      public int[] get() {
+        return ConcurrentAnnotationGraph.super.getEdgeInts(edgeName, ann, key);
+      }
+    });
+  }
+
+  @Override
+  public long getEdgeLong(final String edgeName, final Annotation from, final Annotation to, final String key) {
+    return readNode(from, new Supplier<Long>() {
+      @Override
+      public Long get() {
+        return ConcurrentAnnotationGraph.super.getEdgeLong(edgeName, from, to, key);
+      }
+    });
+  }
+
+  @Override
+  public void setEdgeLong(final String edgeName, final Annotation from, final Annotation to, final String key, final long value) {
+    writeNodes(new Supplier<Void>() {
+      @Override
+      public Void get() {
+        ConcurrentAnnotationGraph.super.setEdgeLong(edgeName, from, to, key, value);
+        return null;
+      }
+    }, from.getId());
+  }
+
+  @Override
+  public long[] getEdgeLongs(final String edgeName, final Annotation ann, final String key) {
+    return readNode(ann, new Supplier<long[]>() {
+      @Override
+      public long[] get() {
+        return ConcurrentAnnotationGraph.super.getEdgeLongs(edgeName, ann, key);
+      }
+    });
+  }
+
+  @Override
+  public String getEdgeString(final String edgeName, final Annotation from, final Annotation to, final String key) {
+    return readNode(from, new Supplier<String>() {
+      @Override
+      public String get() {
+        return ConcurrentAnnotationGraph.super.getEdgeString(edgeName, from, to, key);
+      }
+    });
+  }
+
+  @Override
+  public void setEdgeString(final String edgeName, final Annotation from, final Annotation to, final String key, final String value) {
+    writeNodes(new Supplier<Void>() {
+      @Override
+      public Void get() {
+        ConcurrentAnnotationGraph.super.setEdgeString(edgeName, from, to, key, value);
+        return null;
+      }
+    }, from.getId());
+  }
+
+  @Override
+  public String[] getEdgeStrings(final String edgeName, final Annotation ann, final String key) {
+    return readNode(ann, new Supplier<String[]>() {
+      @Override
+      public String[] get() {
+        return ConcurrentAnnotationGraph.super.getEdgeStrings(edgeName, ann, key);
+      }
+    });
+  }
+
+  @Override
+  public int getEdgeSize(final String edgeName, final Annotation ann) {
+    return readNode(ann, new Supplier<Integer>() {
+      @Override
+      public Integer get() {
+        return ConcurrentAnnotationGraph.super.getEdgeSize(edgeName, ann);
+      }
+    });
+  }
+
+  @Override
+  public List<Annotation> getAnnotations(final String edgeName, final Annotation ann) {
+    return readNode(ann, new Supplier<List<Annotation>>() {
+      @Override
+      public List<Annotation> get() {
+        return ConcurrentAnnotationGraph.super.getAnnotations(edgeName, ann);
+      }
+    });
+  }
+
+  @Override
+  public List<Annotation> getReferencingAnnotations(final String edgeName, final Annotation ann) {
+    return readNode(ann, new Supplier<List<Annotation>>() {
+      @Override
+      public List<Annotation> get() {
+        return ConcurrentAnnotationGraph.super.getReferencingAnnotations(edgeName, ann);
+      }
+    });
+  }
+
+  @Override
+  public AnnotationSet getAnnotationSet(final String edgeName, final Annotation ann) {
+    return readNode(ann, new Supplier<AnnotationSet>() {
+      @Override
+      public AnnotationSet get() {
+        return ConcurrentAnnotationGraph.super.getAnnotationSet(edgeName, ann);
+      }
+    });
+  }
+
+  @Override
+  public AnnotationSet getReferencingAnnotationSet(final String edgeName, final Annotation ann) {
+    return readNode(ann, new Supplier<AnnotationSet>() {
+      @Override
+      public AnnotationSet get() {
+        return ConcurrentAnnotationGraph.super.getReferencingAnnotationSet(edgeName, ann);
+      }
+    });
+  }
+
+  @Override
+  public List<FeatureMap> getFeatureMaps(final String edgeName, final Annotation ann) {
+    return readNode(ann, new Supplier<List<FeatureMap>>() {
+      @Override
+      public List<FeatureMap> get() {
+        return ConcurrentAnnotationGraph.super.getFeatureMaps(edgeName, ann);
+      }
+    });
+  }
+
+  @Override
+  public List<FeatureMap> getReferencingFeatureMaps(final String edgeName, final Annotation ann) {
+    return readNode(ann, new Supplier<List<FeatureMap>>() {
+      @Override
+      public List<FeatureMap> get() {
+        return ConcurrentAnnotationGraph.super.getReferencingFeatureMaps(edgeName, ann);
+      }
+    });
+  }
+
+  @Override
+  public FeatureMap getFeatureMapCopy(final Annotation ann) {
+    return readNode(ann, new Supplier<FeatureMap>() {
+      @Override
+      public FeatureMap get() {
+        return ConcurrentAnnotationGraph.super.getFeatureMapCopy(ann);
+      }
+    });
+  }
+
+  @Override
+  public int[] getIdArray(final String edgeName, final Annotation ann) {
+    return readNode(ann, new Supplier<int[]>() {
+      @Override
+      public int[] get() {
+        return ConcurrentAnnotationGraph.super.getIdArray(edgeName, ann);
+      }
+    });
+  }
+
+  @Override
+  public int[] getReferencingIdArray(final String edgeName, final Annotation ann) {
+    return readNode(ann, new Supplier<int[]>() {
+      @Override
+      public int[] get() {
+        return ConcurrentAnnotationGraph.super.getReferencingIdArray(edgeName, ann);
+      }
+    });
+  }
+
+  /**
+   * Return a copy of the ids of the annotations this annotation points to.
+   * Unlike for AnnotationGraph, the list does not change with the edges.
+   * @param edgeName
+   * @param ann
+   * @return
+   */
+  @Override
+  public List<Integer> getIds(String edgeName, Annotation ann) {
+    return Collections.<Integer>unmodifiableList(new IntList(getIdArray(edgeName, ann)));
+  }
+
+  @Override
+  public List<Integer> getReferencingIds(String edgeName, Annotation ann) {
+    return Collections.<Integer>unmodifiableList(new IntList(getReferencingIdArray(edgeName, ann)));
+  }
+
+  @Override
+  public IntCursor getIdCursor(String edgeName, Annotation ann) {
+    return new IntList(getIdArray(edgeName, ann)).cursor();
+  }
+
+  @Override
+  public IntCursor getReferencingIdCursor(String edgeName, Annotation ann) {
+    return new IntList(getReferencingIdArray(edgeName, ann)).cursor();
+  }
+
+  @Override
+  public IntStream neighborIds(String edgeName, Annotation ann) {
+    return Arrays.stream(getIdArray(edgeName, ann));
+  }
+
+  @Override
+  public Iterator<Annotation> getAnnotationsIterator(String edgeName, Annotation ann) {
+    return new CopyEdgeIterator(edgeName, ann, true, getAnnotations(edgeName, ann));
+  }
+
+  @Override
+  public Iterator<Annotation> getReferencingAnnotationsIterator(String edgeName, Annotation ann) {
+    return new CopyEdgeIterator(edgeName, ann, false, getReferencingAnnotations(edgeName, ann));
+  }
+
+  /////////////////////////////
+  // HELPER METHODS
+  /////////////////////////////
+
+  @Override
+  protected GraphTraversal newTraversal(final String... edgeNames) {
+    return readAny(new Supplier<GraphTraversal>() {
+      @Override
+      public GraphTraversal get() {
+        return new ConcurrentTraversal(edgeNames);
+      }
+    });
+  }
+
+  @Override
+  protected GraphTraversal newTraversal(final Collection<String> edgeNames) {
+    return readAny(new Supplier<GraphTraversal>() {
+      @Override
+      public GraphTraversal get() {
+        return new ConcurrentTraversal(edgeNames.toArray(new String[edgeNames.size()]));
+      }
+    });
+  }
+
+  /**
+   * Look up the annotation while no method which changes the set can run. Those lock all
+   * stripes, so an optimistic read of any one stripe is enough.
+   */
+  @Override
+  protected Annotation annotationById(final int id) {
+    if(holdsAll()) {
+      return set.get(id);
+    }
+    return readStripe(stripes[0], new Supplier<Annotation>() {
+      @Override
+      public Annotation get() {
+        return set.get(id);
+      }
+    });
+  }
+
+  @Override
+  protected void deActivate() {
+    writeAll(new Supplier<Void>() {
+      @Override
+      public Void get() {
+        ConcurrentAnnotationGraph.super.deActivate();
+        return null;
+      }
+    });
+  }
+
+  protected int stripeOf(int id) {
+    // spread the bits, so that ids which differ by a multiple of the stripe count still differ
+    int h = id * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & stripeMask;
+  }
+
+  protected boolean holdsAll() {
+    return exclusiveOwner == Thread.currentThread();
+  }
+
+  /**
+   * Run the reader for the annotation, first as an optimistic read of its stripe and
+   * if that fails, with the read lock of the stripe.
+   * Exceptions thrown by the reader are only passed on if the optimistic read was valid,
+   * otherwise they are caused by a concurrent change and the reader gets run again.
+   */
+  protected <T> T readNode(Annotation ann, Supplier<T> reader) {
+    ensureDecoded();
+    if(holdsAll()) {
+      return reader.get();
+    }
+    return readStripe(stripes[stripeOf(ann.getId())], reader);
+  }
+
+  /**
+   * Run the reader as an optimistic read of the stripe, and if that fails, with its read lock.
+   */
+  protected <T> T readStripe(StampedLock lock, Supplier<T> reader) {
+    long stamp = lock.tryOptimisticRead();
+    if(stamp != 0) {
+      try {
+        T ret = reader.get();
+        if(lock.validate(stamp)) {
+          return ret;
+        }
+      } catch(RuntimeException ex) {
+        if(lock.validate(stamp)) {
+          throw ex;
+        }
+      }
+    }
+    stamp = lock.readLock();
+    try {
+      return reader.get();
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Run the reader while no method which changes the whole graph can run, for reading
+   * the edge names. Since those methods lock all stripes, locking any one is enough.
+   */
+  protected <T> T readAny(Supplier<T> reader) {
+    if(holdsAll()) {
+      return reader.get();
+    }
+    StampedLock lock = stripes[0];
+    long stamp = lock.readLock();
+    try {
+      return reader.get();
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  protected <T> T readAll(Supplier<T> reader) {
+    ensureDecoded();
+    if(holdsAll()) {
+      return reader.get();
+    }
+    long[] stamps = new long[stripes.length];
+    for(int i=0; i<stripes.length; i++) {
+      stamps[i] = stripes[i].readLock();
+    }
+    try {
+      return reader.get();
+    } finally {
+      for(int i=stripes.length-1; i>=0; i--) {
+        stripes[i].unlockRead(stamps[i]);
+      }
+    }
+  }
+
+  @Override
+  protected <T> T writeAll(Supplier<T> writer) {
+    if(holdsAll()) {
+      return writer.get();
+    }
+    long[] stamps = new long[stripes.length];
+    for(int i=0; i<stripes.length; i++) {
+      stamps[i] = stripes[i].writeLock();
+    }
+    exclusiveOwner = Thread.currentThread();
+    try {
+      return writer.get();
+    } finally {
+      exclusiveOwner = null;
+      for(int i=stripes.length-1; i>=0; i--) {
+        stripes[i].unlockWrite(stamps[i]);
+      }
+    }
+  }
+
+  /**
+   * Run the writer with the stripes of all the given annotation ids locked for writing.
+   */
+  protected <T> T writeNodes(Supplier<T> writer, int... ids) {
+    ensureDecoded();
+    if(holdsAll()) {
+      return writer.get();
+    }
+    long[] stamps = lockStripes(ids);
+    try {
+      return writer.get();
+    } finally {
+      unlockStripes(stamps);
+    }
+  }
+
+  /**
+   * Run the writer with the stripes of the annotation and all annotations it has edges
+   * to locked for writing. The edges are read first and are checked again once the stripes
+   * are locked, since a writer of another stripe could have added an edge in the meantime.
+   */
+  protected <T> T writeNeighbourhood(String edgeName, Annotation ann, Supplier<T> writer) {
+    ensureDecoded();
+    if(holdsAll()) {
+      return writer.get();
+    }
+    while(true) {
+      int[] ids = getIdArray(edgeName, ann);
+      int[] locked = Arrays.copyOf(ids, ids.length+1);
+      locked[ids.length] = ann.getId();
+      long[] stamps = lockStripes(locked);
+      try {
+        List<Integer> current = getToEdges(edgeName, ann);
+        boolean covered = true;
+        int n = current == null ? 0 : current.size();
+        for(int i=0; i<n && covered; i++) {
+          covered = stamps[stripeOf(idAt(current, i))] != 0;
+        }
+        if(covered) {
+          return writer.get();
+        }
+      } finally {
+        unlockStripes(stamps);
+      }
+    }
+  }
+
+  /**
+   * Lock the stripes of the ids for writing, in stripe order so that writers cannot deadlock.
+   * @return the stamp for each stripe, 0 for the stripes which did not get locked
+   */
+  protected long[] lockStripes(int... ids) {
+    boolean[] needed = new boolean[stripes.length];
+    for(int id : ids) {
+      needed[stripeOf(id)] = true;
+    }
+    long[] stamps = new long[stripes.length];
+    for(int i=0; i<stripes.length; i++) {
+      if(needed[i]) {
+        stamps[i] = stripes[i].writeLock();
+      }
+    }
+    return stamps;
+  }
+
+  protected void unlockStripes(long[] stamps) {
+    for(int i=stripes.length-1; i>=0; i--) {
+      if(stamps[i] != 0) {
+        stripes[i].unlockWrite(stamps[i]);
+      }
+    }
+  }
+
+  /**
+   * Decode all encoded edge lists, if encodeEdgeLists was called.
+   */
+  protected void ensureDecoded() {
+    if(encoded && !holdsAll()) {
+      writeAll(new Supplier<Void>() {
+        @Override
+        public Void get() {
+          if(encoded) {
+            decodeEdgeLists();
+            encoded = false;
+          }
+          return null;
+        }
+      });
+    }
+  }
+
+  protected void decodeEdgeLists() {
+    for(Annotation ann : set) {
+      FeatureMap fm = ann.getFeatures();
+      for(String edgeName : edgeSet) {
+        shareReads(getWritableIdList(fm, toEdgeNames.get(edgeName)));
+        shareReads(getWritableIdList(fm, fromEdgeNames.get(edgeName)));
+      }
+    }
+  }
+
+  /**
+   * Hashed id lists are created in shared read mode, so that reading them never
+   * squeezes out holes while another thread holds the stripe for writing.
+   */
+  @Override
+  protected List<Integer> newIdList() {
+    return shareReads(super.newIdList());
+  }
+
+  protected static List<Integer> shareReads(List<Integer> ids) {
+    if(ids instanceof IndexedIntList) {
+      ((IndexedIntList)ids).setSharedReads(true);
+    }
+    return ids;
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  /// INTERNAL CLASSES
+  ///////////////////////////////////////////////////////////////////////
+
+  /**
+   * A traversal which reads the edge list of each annotation it expands as an optimistic
+   * read of the annotation's stripe.
+   */
+  protected class ConcurrentTraversal extends GraphTraversal {
+    protected ConcurrentTraversal(String... edgeNames) {
+      super(ConcurrentAnnotationGraph.this, edgeNames);
+    }
+
+    @Override
+    protected int expand(final Annotation ann, final String key, int tail) {
+      int[] ids = readNode(ann, new Supplier<int[]>() {
+        @Override
+        public int[] get() {
+          return toIdArray(getIdList(ann.getFeatures(), key));
+        }
+      });
+      for(int id : ids) {
+        if(!visited.get(id)) {
+          visited.set(id);
+          if(tail == queue.length) {
+            queue = Arrays.copyOf(queue, queue.length*2);
+          }
+          queue[tail++] = id;
+        }
+      }
+      return tail;
+    }
+  }
+
+  /**
+   * Iterates over a copy of the to or from list of an annotation. Removing goes through
+   * removeEdge, so it changes the graph, but not the copy.
+   */
+  protected class CopyEdgeIterator implements Iterator<Annotation> {
+    protected final String edgeName;
+    protected final Annotation ann;
+    protected final boolean forward;
+    protected final List<Annotation> anns;
+    protected int pos = 0;
+    protected Annotation last = null;
+
+    protected CopyEdgeIterator(String edgeName, Annotation ann, boolean forward, List<Annotation> anns) {
+      this.edgeName = edgeName;
+      this.ann = ann;
+      this.forward = forward;
+      this.anns = anns;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return pos < anns.size();
+    }
+
+    @Override
+    public Annotation next() {
+      if(!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      last = anns.get(pos++);
+      return last;
+    }
+
+    @Override
+    public void remove() {
+      if(last == null) {
+        throw new IllegalStateException();
+      }
+      if(forward) {
+        removeEdge(edgeName, ann, last);
+      } else {
+        removeEdge(edgeName, last, ann);
+      }
+      last = null;
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////
+  //// LISTENERS
+  /////////////////////////////////////////////////////////////////////////
+
+  @Override
+  public void annotationRemoved(final AnnotationSetEvent ase) {
+    writeAll(new Supplier<Void>() {
+      @Override
+      public Void get() {
+        ConcurrentAnnotationGraph.super.annotationRemoved(ase);
+        return null;
+      }
+    });
+  }
+
+}
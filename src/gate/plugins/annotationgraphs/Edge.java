@@ -0,0 +1,49 @@
+package gate.plugins.annotationgraphs;
+
+import gate.Annotation;
+
+/**
+ * One edge of an AnnotationGraph, as returned by AnnotationGraph.edges.
+ * This is just a value object: changing the graph does not change an Edge object
+ * and an Edge object cannot be used to change the graph.
+ *
+ * @author Johann Petrak
+ */
+public class Edge {
+
+  protected final String edgeName;
+  protected final Annotation from;
+  protected final Annotation to;
+
+  public Edge(String edgeName, Annotation from, Annotation to) {
+    this.edgeName = edgeName;
+    this.from = from;
+    this.to = to;
+  }
+
+  public String getEdgeName() {
+    return edgeName;
+  }
+
+  public Annotation getFrom() {
+    return from;
+  }
+
+  public Annotation getTo() {
+    return to;
+  }
+
+  public int getFromId() {
+    return from.getId();
+  }
+
+  public int getToId() {
+    return to.getId();
+  }
+
+  @Override
+  public String toString() {
+    return "Edge("+edgeName+": "+from.getId()+" -> "+to.getId()+")";
+  }
+
+}
@@ -0,0 +1,140 @@
+package gate.plugins.annotationgraphs;
+
+import gate.util.GateRuntimeException;
+import java.io.ByteArrayOutputStream;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Compact encoding of edge id lists.
+ * <p>
+ * A list gets encoded as the number of ids followed by the difference of each id to the
+ * previous one (the first one to 0). The differences are zig-zag encoded, so that small
+ * negative differences also become small numbers, and all numbers are written as
+ * variable length integers with 7 bits per byte. Since annotation ids are mostly small
+ * and edges mostly link annotations which were created close to each other, most ids
+ * take just one or two bytes.
+ * <p>
+ * For storing the lists as feature values in formats which can only store strings
+ * well, like GATE XML, the bytes get Base64-encoded and prefixed with a marker, so that
+ * an encoded list can be recognized when the feature value gets read.
+ *
+ * @author Johann Petrak
+ */
+public class EdgeListCodec {
+
+  /**
+   * The prefix of a string feature value which contains an encoded edge list.
+   */
+  public static final String PREFIX = "_agv1:";
+
+  public static byte[] encode(List<Integer> ids) {
+    int n = ids.size();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(n*2+5);
+    writeVarInt(out, n);
+    int prev = 0;
+    for(int i=0; i<n; i++) {
+      int id = AnnotationGraph.idAt(ids, i);
+      writeVarInt(out, zigZag(id - prev));
+      prev = id;
+    }
+    return out.toByteArray();
+  }
+
+  public static byte[] encode(int[] ids, int from, int to) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream((to-from)*2+5);
+    writeVarInt(out, to-from);
+    int prev = 0;
+    for(int i=from; i<to; i++) {
+      writeVarInt(out, zigZag(ids[i] - prev));
+      prev = ids[i];
+    }
+    return out.toByteArray();
+  }
+
+  public static int[] decode(byte[] bytes) {
+    int[] pos = new int[]{0};
+    int n = readVarInt(bytes, pos);
+    int[] ret = new int[n];
+    int prev = 0;
+    for(int i=0; i<n; i++) {
+      prev += unZigZag(readVarInt(bytes, pos));
+      ret[i] = prev;
+    }
+    return ret;
+  }
+
+  /**
+   * Encode the list as a string, which can be stored as a feature value in any format.
+   * @param ids
+   * @return
+   */
+  public static String encodeToString(List<Integer> ids) {
+    return PREFIX + Base64.getEncoder().encodeToString(encode(ids));
+  }
+
+  public static int[] decodeFromString(String value) {
+    if(!isEncoded(value)) {
+      throw new GateRuntimeException("Not an encoded edge list: "+value);
+    }
+    return decode(Base64.getDecoder().decode(value.substring(PREFIX.length())));
+  }
+
+  /**
+   * Return the number of ids in an encoded string without decoding the ids.
+   * Only the first few characters get decoded, since the number of ids comes first.
+   * @param value
+   * @return
+   */
+  public static int sizeOf(String value) {
+    if(!isEncoded(value)) {
+      throw new GateRuntimeException("Not an encoded edge list: "+value);
+    }
+    // 8 Base64 characters give 6 bytes, enough for any variable length int
+    int end = Math.min(value.length(), PREFIX.length()+8);
+    byte[] bytes = Base64.getDecoder().decode(value.substring(PREFIX.length(), end));
+    return readVarInt(bytes, new int[]{0});
+  }
+
+  /**
+   * Check if a feature value is an encoded edge list.
+   * @param value
+   * @return
+   */
+  public static boolean isEncoded(Object value) {
+    return (value instanceof String) && ((String)value).startsWith(PREFIX);
+  }
+
+  protected static int zigZag(int value) {
+    return (value << 1) ^ (value >> 31);
+  }
+
+  protected static int unZigZag(int value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  protected static void writeVarInt(ByteArrayOutputStream out, int value) {
+    while((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  protected static int readVarInt(byte[] bytes, int[] pos) {
+    int value = 0;
+    int shift = 0;
+    while(true) {
+      if(pos[0] >= bytes.length || shift > 28) {
+        throw new GateRuntimeException("Malformed encoded edge list");
+      }
+      byte b = bytes[pos[0]++];
+      value |= (b & 0x7F) << shift;
+      if((b & 0x80) == 0) {
+        return value;
+      }
+      shift += 7;
+    }
+  }
+
+}
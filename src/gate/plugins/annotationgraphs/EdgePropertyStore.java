@@ -0,0 +1,579 @@
+package gate.plugins.annotationgraphs;
+
+import gate.util.GateRuntimeException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The properties of the edges with one name, stored in columns.
+ * <p>
+ * Each property key is one column of a primitive type: double, int, long or string, where
+ * strings are interned in a dictionary of the store and the column holds the dictionary
+ * codes. Within a column, each source annotation has one array of values which lines up
+ * with its to list: the value at position i belongs to the edge at position i of the list.
+ * The arrays only get as long as the last position which has a value, all later positions
+ * have the default value, which is 0 for numbers and null for strings. So edges which get
+ * added after a value was set do not need to touch the columns at all.
+ * <p>
+ * The AnnotationGraph keeps the columns lined up when it removes, filters or sorts edges.
+ * The store is kept in the document features, so it is saved with the document in formats
+ * which support serializable feature values. All methods are synchronized, since the edges
+ * of different source annotations may get changed by different threads of a
+ * ConcurrentAnnotationGraph.
+ *
+ * @author Johann Petrak
+ */
+public class EdgePropertyStore implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  public static enum Type {
+    DOUBLE,
+    INT,
+    LONG,
+    STRING
+  }
+
+  // the slot of each source annotation id which has values in any column
+  protected IntIntMap slots = new IntIntMap();
+  protected IntList freeSlots = new IntList();
+  protected int nSlots = 0;
+  protected Map<String,Column> columns = new HashMap<String,Column>();
+  // the interned strings, the code of a string is its position plus 1, 0 stands for null
+  protected List<String> strings = new ArrayList<String>();
+  protected Map<String,Integer> stringCodes = new HashMap<String,Integer>();
+
+  public synchronized Collection<String> getKeys() {
+    return Collections.unmodifiableCollection(new ArrayList<String>(columns.keySet()));
+  }
+
+  public synchronized Type getType(String key) {
+    Column column = columns.get(key);
+    return column == null ? null : column.type;
+  }
+
+  /**
+   * Remove the column for the key.
+   * @param key
+   */
+  public synchronized void removeKey(String key) {
+    columns.remove(key);
+  }
+
+  public synchronized double getDouble(int sourceId, int pos, String key) {
+    DoubleColumn column = (DoubleColumn)getColumn(key, Type.DOUBLE, false);
+    int slot = slots.get(sourceId, -1);
+    if(column == null || slot < 0) {
+      return 0;
+    }
+    double[] values = column.values[slot];
+    return values == null || pos >= values.length ? 0 : values[pos];
+  }
+
+  public synchronized void setDouble(int sourceId, int pos, String key, double value) {
+    DoubleColumn column = (DoubleColumn)getColumn(key, Type.DOUBLE, true);
+    int slot = slotFor(sourceId);
+    double[] values = column.values[slot];
+    if(values == null || pos >= values.length) {
+      values = values == null ? new double[pos+1] : Arrays.copyOf(values, Math.max(pos+1, values.length*2));
+      column.values[slot] = values;
+    }
+    values[pos] = value;
+  }
+
+  public synchronized int getInt(int sourceId, int pos, String key) {
+    return getCode(sourceId, pos, key, Type.INT);
+  }
+
+  public synchronized void setInt(int sourceId, int pos, String key, int value) {
+    setCode(sourceId, pos, key, Type.INT, value);
+  }
+
+  public synchronized long getLong(int sourceId, int pos, String key) {
+    LongColumn column = (LongColumn)getColumn(key, Type.LONG, false);
+    int slot = slots.get(sourceId, -1);
+    if(column == null || slot < 0) {
+      return 0;
+    }
+    long[] values = column.values[slot];
+    return values == null || pos >= values.length ? 0 : values[pos];
+  }
+
+  public synchronized void setLong(int sourceId, int pos, String key, long value) {
+    LongColumn column = (LongColumn)getColumn(key, Type.LONG, true);
+    int slot = slotFor(sourceId);
+    long[] values = column.values[slot];
+    if(values == null || pos >= values.length) {
+      values = values == null ? new long[pos+1] : Arrays.copyOf(values, Math.max(pos+1, values.length*2));
+      column.values[slot] = values;
+    }
+    values[pos] = value;
+  }
+
+  public synchronized String getString(int sourceId, int pos, String key) {
+    int code = getCode(sourceId, pos, key, Type.STRING);
+    return code == 0 ? null : strings.get(code-1);
+  }
+
+  public synchronized void setString(int sourceId, int pos, String key, String value) {
+    int code = 0;
+    if(value != null) {
+      Integer known = stringCodes.get(value);
+      if(known == null) {
+        strings.add(value);
+        known = strings.size();
+        stringCodes.put(value, known);
+      }
+      code = known;
+    }
+    setCode(sourceId, pos, key, Type.STRING, code);
+  }
+
+  /**
+   * Return the values of the column for the first n edges of the source annotation.
+   * @param sourceId
+   * @param key
+   * @param n
+   * @return
+   */
+  public synchronized double[] getDoubles(int sourceId, String key, int n) {
+    DoubleColumn column = (DoubleColumn)getColumn(key, Type.DOUBLE, false);
+    int slot = slots.get(sourceId, -1);
+    double[] ret = new double[n];
+    if(column != null && slot >= 0 && column.values[slot] != null) {
+      double[] values = column.values[slot];
+      System.arraycopy(values, 0, ret, 0, Math.min(n, values.length));
+    }
+    return ret;
+  }
+
+  public synchronized int[] getInts(int sourceId, String key, int n) {
+    return getCodes(sourceId, key, Type.INT, n);
+  }
+
+  public synchronized long[] getLongs(int sourceId, String key, int n) {
+    LongColumn column = (LongColumn)getColumn(key, Type.LONG, false);
+    int slot = slots.get(sourceId, -1);
+    long[] ret = new long[n];
+    if(column != null && slot >= 0 && column.values[slot] != null) {
+      long[] values = column.values[slot];
+      System.arraycopy(values, 0, ret, 0, Math.min(n, values.length));
+    }
+    return ret;
+  }
+
+  public synchronized String[] getStrings(int sourceId, String key, int n) {
+    int[] codes = getCodes(sourceId, key, Type.STRING, n);
+    String[] ret = new String[n];
+    for(int i=0; i<n; i++) {
+      ret[i] = codes[i] == 0 ? null : strings.get(codes[i]-1);
+    }
+    return ret;
+  }
+
+  /**
+   * Re-arrange the values of all columns for the source annotation, so that the new
+   * position i gets the value of the old position positions[i]. This is used when edges
+   * get removed or re-ordered.
+   * @param sourceId
+   * @param positions
+   */
+  public synchronized void select(int sourceId, int[] positions) {
+    int slot = slots.get(sourceId, -1);
+    if(slot < 0) {
+      return;
+    }
+    for(Column column : columns.values()) {
+      column.select(slot, positions);
+    }
+  }
+
+  /**
+   * Remove the values at the position for the source annotation, the values at all
+   * later positions move one position down.
+   * @param sourceId
+   * @param pos
+   */
+  public synchronized void removeAt(int sourceId, int pos) {
+    int slot = slots.get(sourceId, -1);
+    if(slot < 0) {
+      return;
+    }
+    for(Column column : columns.values()) {
+      column.removeAt(slot, pos);
+    }
+  }
+
+  /**
+   * Insert the default values at the position for the source annotation, the values at the
+   * position and all later positions move one position up.
+   * @param sourceId
+   * @param pos
+   */
+  public synchronized void insertAt(int sourceId, int pos) {
+    int slot = slots.get(sourceId, -1);
+    if(slot < 0) {
+      return;
+    }
+    for(Column column : columns.values()) {
+      column.insertAt(slot, pos);
+    }
+  }
+
+  /**
+   * Remove all values for the source annotation.
+   * @param sourceId
+   */
+  public synchronized void remove(int sourceId) {
+    int slot = slots.get(sourceId, -1);
+    if(slot < 0) {
+      return;
+    }
+    for(Column column : columns.values()) {
+      column.clear(slot);
+    }
+    slots.remove(sourceId);
+    freeSlots.addInt(slot);
+  }
+
+  public synchronized boolean hasValues(int sourceId) {
+    return slots.containsKey(sourceId);
+  }
+
+  /**
+   * Copy the values at the given positions for the source annotation to the target store,
+   * where they become the values at positions 0, 1, ... of the target source annotation.
+   * @param sourceId
+   * @param positions
+   * @param target
+   * @param targetSourceId
+   */
+  public void copyTo(int sourceId, int[] positions, EdgePropertyStore target, int targetSourceId) {
+    // lock the stores one after the other, never both at the same time
+    Map<String,Object> copies = new HashMap<String,Object>();
+    synchronized(this) {
+      int slot = slots.get(sourceId, -1);
+      if(slot < 0) {
+        return;
+      }
+      for(Map.Entry<String,Column> entry : columns.entrySet()) {
+        Column column = entry.getValue();
+        if(column.type == Type.DOUBLE) {
+          copies.put(entry.getKey(), getDoubles(sourceId, entry.getKey(), positions));
+        } else if(column.type == Type.LONG) {
+          copies.put(entry.getKey(), getLongs(sourceId, entry.getKey(), positions));
+        } else if(column.type == Type.INT) {
+          copies.put(entry.getKey(), getCodes(sourceId, entry.getKey(), Type.INT, positions));
+        } else {
+          int[] codes = getCodes(sourceId, entry.getKey(), Type.STRING, positions);
+          String[] values = new String[codes.length];
+          for(int i=0; i<codes.length; i++) {
+            values[i] = codes[i] == 0 ? null : strings.get(codes[i]-1);
+          }
+          copies.put(entry.getKey(), values);
+        }
+      }
+    }
+    synchronized(target) {
+      for(Map.Entry<String,Object> entry : copies.entrySet()) {
+        Object values = entry.getValue();
+        String key = entry.getKey();
+        for(int i=0; i<positions.length; i++) {
+          if(values instanceof double[]) {
+            target.setDouble(targetSourceId, i, key, ((double[])values)[i]);
+          } else if(values instanceof long[]) {
+            target.setLong(targetSourceId, i, key, ((long[])values)[i]);
+          } else if(values instanceof int[]) {
+            target.setInt(targetSourceId, i, key, ((int[])values)[i]);
+          } else {
+            target.setString(targetSourceId, i, key, ((String[])values)[i]);
+          }
+        }
+      }
+    }
+  }
+
+  /////////////////////////////
+  // HELPER METHODS
+  /////////////////////////////
+
+  protected Column getColumn(String key, Type type, boolean create) {
+    Column column = columns.get(key);
+    if(column == null) {
+      if(!create) {
+        return null;
+      }
+      if(type == Type.DOUBLE) {
+        column = new DoubleColumn();
+      } else if(type == Type.LONG) {
+        column = new LongColumn();
+      } else {
+        column = new IntColumn(type);
+      }
+      column.grow(Math.max(nSlots, 8));
+      columns.put(key, column);
+    } else if(column.type != type) {
+      throw new GateRuntimeException("Edge property "+key+" has type "+column.type+", not "+type);
+    }
+    return column;
+  }
+
+  protected int slotFor(int sourceId) {
+    int slot = slots.get(sourceId, -1);
+    if(slot < 0) {
+      if(!freeSlots.isEmpty()) {
+        slot = freeSlots.removeIntAt(freeSlots.size()-1);
+      } else {
+        slot = nSlots++;
+        for(Column column : columns.values()) {
+          if(slot >= column.capacity()) {
+            column.grow(Math.max(nSlots, column.capacity()*2));
+          }
+        }
+      }
+      slots.put(sourceId, slot);
+    }
+    return slot;
+  }
+
+  protected int getCode(int sourceId, int pos, String key, Type type) {
+    IntColumn column = (IntColumn)getColumn(key, type, false);
+    int slot = slots.get(sourceId, -1);
+    if(column == null || slot < 0) {
+      return 0;
+    }
+    int[] values = column.values[slot];
+    return values == null || pos >= values.length ? 0 : values[pos];
+  }
+
+  protected void setCode(int sourceId, int pos, String key, Type type, int value) {
+    IntColumn column = (IntColumn)getColumn(key, type, true);
+    int slot = slotFor(sourceId);
+    int[] values = column.values[slot];
+    if(values == null || pos >= values.length) {
+      values = values == null ? new int[pos+1] : Arrays.copyOf(values, Math.max(pos+1, values.length*2));
+      column.values[slot] = values;
+    }
+    values[pos] = value;
+  }
+
+  protected int[] getCodes(int sourceId, String key, Type type, int n) {
+    IntColumn column = (IntColumn)getColumn(key, type, false);
+    int slot = slots.get(sourceId, -1);
+    int[] ret = new int[n];
+    if(column != null && slot >= 0 && column.values[slot] != null) {
+      int[] values = column.values[slot];
+      System.arraycopy(values, 0, ret, 0, Math.min(n, values.length));
+    }
+    return ret;
+  }
+
+  protected double[] getDoubles(int sourceId, String key, int[] positions) {
+    double[] ret = new double[positions.length];
+    for(int i=0; i<positions.length; i++) {
+      ret[i] = getDouble(sourceId, positions[i], key);
+    }
+    return ret;
+  }
+
+  protected long[] getLongs(int sourceId, String key, int[] positions) {
+    long[] ret = new long[positions.length];
+    for(int i=0; i<positions.length; i++) {
+      ret[i] = getLong(sourceId, positions[i], key);
+    }
+    return ret;
+  }
+
+  protected int[] getCodes(int sourceId, String key, Type type, int[] positions) {
+    int[] ret = new int[positions.length];
+    for(int i=0; i<positions.length; i++) {
+      ret[i] = getCode(sourceId, positions[i], key, type);
+    }
+    return ret;
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  /// INTERNAL CLASSES
+  ///////////////////////////////////////////////////////////////////////
+
+  /**
+   * One column: an array of values for each slot, lined up with the to list of the source
+   * annotation of the slot, or null if the slot has no values for this column.
+   */
+  protected static abstract class Column implements Serializable {
+    private static final long serialVersionUID = 1L;
+    protected Type type;
+    protected abstract int capacity();
+    protected abstract void grow(int capacity);
+    protected abstract void clear(int slot);
+    protected abstract void select(int slot, int[] positions);
+    protected abstract void removeAt(int slot, int pos);
+    protected abstract void insertAt(int slot, int pos);
+  }
+
+  protected static class DoubleColumn extends Column {
+    private static final long serialVersionUID = 1L;
+    protected double[][] values = new double[0][];
+    protected DoubleColumn() {
+      type = Type.DOUBLE;
+    }
+    @Override
+    protected int capacity() {
+      return values.length;
+    }
+    @Override
+    protected void grow(int capacity) {
+      values = Arrays.copyOf(values, capacity);
+    }
+    @Override
+    protected void clear(int slot) {
+      values[slot] = null;
+    }
+    @Override
+    protected void select(int slot, int[] positions) {
+      double[] old = values[slot];
+      if(old == null) {
+        return;
+      }
+      double[] selected = new double[positions.length];
+      for(int i=0; i<positions.length; i++) {
+        if(positions[i] < old.length) {
+          selected[i] = old[positions[i]];
+        }
+      }
+      values[slot] = selected;
+    }
+    @Override
+    protected void removeAt(int slot, int pos) {
+      double[] old = values[slot];
+      if(old != null && pos < old.length) {
+        System.arraycopy(old, pos+1, old, pos, old.length-pos-1);
+        old[old.length-1] = 0;
+      }
+    }
+    @Override
+    protected void insertAt(int slot, int pos) {
+      double[] old = values[slot];
+      if(old != null && pos < old.length) {
+        double[] grown = Arrays.copyOf(old, old.length+1);
+        System.arraycopy(old, pos, grown, pos+1, old.length-pos);
+        grown[pos] = 0;
+        values[slot] = grown;
+      }
+    }
+  }
+
+  protected static class LongColumn extends Column {
+    private static final long serialVersionUID = 1L;
+    protected long[][] values = new long[0][];
+    protected LongColumn() {
+      type = Type.LONG;
+    }
+    @Override
+    protected int capacity() {
+      return values.length;
+    }
+    @Override
+    protected void grow(int capacity) {
+      values = Arrays.copyOf(values, capacity);
+    }
+    @Override
+    protected void clear(int slot) {
+      values[slot] = null;
+    }
+    @Override
+    protected void select(int slot, int[] positions) {
+      long[] old = values[slot];
+      if(old == null) {
+        return;
+      }
+      long[] selected = new long[positions.length];
+      for(int i=0; i<positions.length; i++) {
+        if(positions[i] < old.length) {
+          selected[i] = old[positions[i]];
+        }
+      }
+      values[slot] = selected;
+    }
+    @Override
+    protected void removeAt(int slot, int pos) {
+      long[] old = values[slot];
+      if(old != null && pos < old.length) {
+        System.arraycopy(old, pos+1, old, pos, old.length-pos-1);
+        old[old.length-1] = 0;
+      }
+    }
+    @Override
+    protected void insertAt(int slot, int pos) {
+      long[] old = values[slot];
+      if(old != null && pos < old.length) {
+        long[] grown = Arrays.copyOf(old, old.length+1);
+        System.arraycopy(old, pos, grown, pos+1, old.length-pos);
+        grown[pos] = 0;
+        values[slot] = grown;
+      }
+    }
+  }
+
+  /**
+   * A column of int values, also used for the codes of string values.
+   */
+  protected static class IntColumn extends Column {
+    private static final long serialVersionUID = 1L;
+    protected int[][] values = new int[0][];
+    protected IntColumn(Type type) {
+      this.type = type;
+    }
+    @Override
+    protected int capacity() {
+      return values.length;
+    }
+    @Override
+    protected void grow(int capacity) {
+      values = Arrays.copyOf(values, capacity);
+    }
+    @Override
+    protected void clear(int slot) {
+      values[slot] = null;
+    }
+    @Override
+    protected void select(int slot, int[] positions) {
+      int[] old = values[slot];
+      if(old == null) {
+        return;
+      }
+      int[] selected = new int[positions.length];
+      for(int i=0; i<positions.length; i++) {
+        if(positions[i] < old.length) {
+          selected[i] = old[positions[i]];
+        }
+      }
+      values[slot] = selected;
+    }
+    @Override
+    protected void removeAt(int slot, int pos) {
+      int[] old = values[slot];
+      if(old != null && pos < old.length) {
+        System.arraycopy(old, pos+1, old, pos, old.length-pos-1);
+        old[old.length-1] = 0;
+      }
+    }
+    @Override
+    protected void insertAt(int slot, int pos) {
+      int[] old = values[slot];
+      if(old != null && pos < old.length) {
+        int[] grown = Arrays.copyOf(old, old.length+1);
+        System.arraycopy(old, pos, grown, pos+1, old.length-pos);
+        grown[pos] = 0;
+        values[slot] = grown;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,98 @@
+package gate.plugins.annotationgraphs;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A spliterator over all edges with one name of an AnnotationGraph.
+ * It works on an array of the source annotations which have at least one edge, together
+ * with the running total of their edge counts. This makes it possible to split at the
+ * source annotation which divides the remaining edges best, so that hubs with very many 
+ * edges do not end up in a single chunk, and to always know the exact size of each chunk.
+ * <p>
+ * The edges must not be changed while the spliterator is used.
+ *
+ * @author Johann Petrak
+ */
+class EdgeSpliterator implements Spliterator<Edge> {
+
+  protected final String edgeName;
+  protected final String key;
+  protected final AnnotationSet set;
+  protected final Annotation[] sources;
+  // edgeCounts[i] is the number of edges of sources[0] up to sources[i-1]
+  protected final long[] edgeCounts;
+  protected int current;
+  protected final int end;
+  protected int pos = 0;
+  protected List<Integer> ids = null;
+
+  EdgeSpliterator(String edgeName, String key, AnnotationSet set, Annotation[] sources, long[] edgeCounts) {
+    this(edgeName, key, set, sources, edgeCounts, 0, sources.length);
+  }
+
+  protected EdgeSpliterator(String edgeName, String key, AnnotationSet set, Annotation[] sources, 
+          long[] edgeCounts, int current, int end) {
+    this.edgeName = edgeName;
+    this.key = key;
+    this.set = set;
+    this.sources = sources;
+    this.edgeCounts = edgeCounts;
+    this.current = current;
+    this.end = end;
+  }
+
+  @Override
+  public boolean tryAdvance(Consumer<? super Edge> action) {
+    while(current < end) {
+      if(ids == null) {
+        ids = (List<Integer>)sources[current].getFeatures().get(key);
+      }
+      if(ids != null && pos < ids.size()) {
+        action.accept(new Edge(edgeName, sources[current], set.get(AnnotationGraph.idAt(ids, pos++))));
+        return true;
+      }
+      current++;
+      pos = 0;
+      ids = null;
+    }
+    return false;
+  }
+
+  @Override
+  public Spliterator<Edge> trySplit() {
+    // only split at source boundaries, and never split off the source we are in the middle of
+    int lo = pos == 0 ? current : current+1;
+    if(end - lo < 2) {
+      return null;
+    }
+    long half = (edgeCounts[lo] + edgeCounts[end]) / 2;
+    int mid = Arrays.binarySearch(edgeCounts, lo+1, end, half);
+    if(mid < 0) {
+      mid = -mid-1;
+    }
+    mid = Math.max(lo+1, Math.min(mid, end-1));
+    EdgeSpliterator prefix = new EdgeSpliterator(edgeName, key, set, sources, edgeCounts, current, mid);
+    prefix.pos = pos;
+    prefix.ids = ids;
+    current = mid;
+    pos = 0;
+    ids = null;
+    return prefix;
+  }
+
+  @Override
+  public long estimateSize() {
+    return edgeCounts[end] - edgeCounts[current] - pos;
+  }
+
+  @Override
+  public int characteristics() {
+    return ORDERED | SIZED | SUBSIZED | NONNULL;
+  }
+
+}
@@ -0,0 +1,370 @@
+package gate.plugins.annotationgraphs;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.annotation.AnnotationSetImpl;
+import gate.util.GateRuntimeException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * An immutable, read-only snapshot of an AnnotationGraph.
+ * <p>
+ * A snapshot gets created with AnnotationGraph.snapshot() and compiles the edges for
+ * each edge name into compressed sparse row (CSR) arrays: for each edge name there is
+ * one array of offsets and one array of targets for the forward edges and the same
+ * for the reverse edges. All nodes are numbered by their position in the snapshot,
+ * so traversals only touch a few flat int arrays instead of feature maps and lists.
+ * <p>
+ * The snapshot does not change when the AnnotationGraph, the annotation set or the
+ * annotations change after it was created. It should only be used while the graph
+ * does not get modified any more, e.g. in the read-only parts of a pipeline.
+ *
+ * @author Johann Petrak
+ */
+public class FrozenAnnotationGraph {
+
+  protected Document doc;
+  protected String setName;
+  protected String defaultName;
+
+  // the annotations of the set and their ids, sorted by id. The position
+  // in these arrays is the node number used in the CSR arrays.
+  protected Annotation[] nodes;
+  protected int[] nodeIds;
+  // if not null, maps an annotation id directly to a node number or -1, otherwise
+  // the node number is found by binary search in nodeIds
+  protected int[] idToNode;
+
+  protected Map<String,Csr> edges;
+
+  /**
+   * The CSR arrays for one edge name.
+   * The forward targets of node n are forwardTargets[forwardOffsets[n]] up to but
+   * excluding forwardTargets[forwardOffsets[n+1]], same for the reverse edges.
+   */
+  protected static class Csr {
+    protected int[] forwardOffsets;
+    protected int[] forwardTargets;
+    protected int[] reverseOffsets;
+    protected int[] reverseSources;
+  }
+
+  protected FrozenAnnotationGraph(AnnotationGraph ag) {
+    doc = ag.doc;
+    setName = ag.setName;
+    defaultName = ag.defaultName;
+    AnnotationSet set = ag.set;
+    int n = set.size();
+    nodeIds = new int[n];
+    int i = 0;
+    int maxId = -1;
+    for(Annotation ann : set) {
+      nodeIds[i++] = ann.getId();
+    }
+    Arrays.sort(nodeIds);
+    if(n > 0) {
+      maxId = nodeIds[n-1];
+    }
+    nodes = new Annotation[n];
+    for(i=0; i<n; i++) {
+      nodes[i] = set.get(nodeIds[i]);
+    }
+    // use a direct lookup table if the ids are not too sparse
+    if(maxId >= 0 && maxId < 4L*n + 64) {
+      idToNode = new int[maxId+1];
+      Arrays.fill(idToNode, -1);
+      for(i=0; i<n; i++) {
+        idToNode[nodeIds[i]] = i;
+      }
+    }
+    edges = new HashMap<String,Csr>();
+    for(String edgeName : ag.edgeSet) {
+      edges.put(edgeName, compile(ag, edgeName));
+    }
+  }
+
+  protected Csr compile(AnnotationGraph ag, String edgeName) {
+    int n = nodes.length;
+    String toKey = ag.toEdgeNames.get(edgeName);
+    Csr csr = new Csr();
+    // first pass: out degrees of all nodes
+    int[] offsets = new int[n+1];
+    for(int i=0; i<n; i++) {
+      List<Integer> ids = ag.getIdList(nodes[i].getFeatures(), toKey);
+      offsets[i+1] = offsets[i] + (ids == null ? 0 : ids.size());
+    }
+    // second pass: targets, counting the in degrees as we go
+    int[] targets = new int[offsets[n]];
+    int[] reverseOffsets = new int[n+1];
+    for(int i=0; i<n; i++) {
+      List<Integer> ids = ag.getIdList(nodes[i].getFeatures(), toKey);
+      if(ids == null) { continue; }
+      int pos = offsets[i];
+      int size = ids.size();
+      for(int j=0; j<size; j++) {
+        int target = nodeOf(AnnotationGraph.idAt(ids, j));
+        if(target < 0) {
+          throw new GateRuntimeException("Edge "+edgeName+" of annotation "+nodeIds[i]+
+                  " points to an annotation which is not in the set");
+        }
+        targets[pos++] = target;
+        reverseOffsets[target+1]++;
+      }
+    }
+    // the reverse edges are created from the forward edges with a counting sort pass
+    for(int i=0; i<n; i++) {
+      reverseOffsets[i+1] += reverseOffsets[i];
+    }
+    int[] sources = new int[targets.length];
+    int[] fill = Arrays.copyOf(reverseOffsets, n);
+    for(int i=0; i<n; i++) {
+      for(int j=offsets[i]; j<offsets[i+1]; j++) {
+        sources[fill[targets[j]]++] = i;
+      }
+    }
+    csr.forwardOffsets = offsets;
+    csr.forwardTargets = targets;
+    csr.reverseOffsets = reverseOffsets;
+    csr.reverseSources = sources;
+    return csr;
+  }
+
+  //////////////////////////////
+  // START OF API METHODS
+  //////////////////////////////
+
+  public Document getDocument() {
+    return doc;
+  }
+
+  public String getSetName() {
+    return setName;
+  }
+
+  public Collection<String> getEdgeNames() {
+    return Collections.unmodifiableCollection(edges.keySet());
+  }
+
+  /**
+   * The number of annotations in the snapshot.
+   * @return
+   */
+  public int getNodeCount() {
+    return nodes.length;
+  }
+
+  /**
+   * The total number of edges with the given name.
+   * @param edgeName
+   * @return
+   */
+  public int getEdgeCount(String edgeName) {
+    return getCsr(edgeName).forwardTargets.length;
+  }
+
+  public boolean hasEdge(String edgeName, Annotation from, Annotation to) {
+    Csr csr = getCsr(edgeName);
+    int f = ensureNode(from);
+    int t = ensureNode(to);
+    for(int j=csr.forwardOffsets[f]; j<csr.forwardOffsets[f+1]; j++) {
+      if(csr.forwardTargets[j] == t) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public int getEdgeSize(String edgeName, Annotation ann) {
+    Csr csr = getCsr(edgeName);
+    int node = ensureNode(ann);
+    return csr.forwardOffsets[node+1] - csr.forwardOffsets[node];
+  }
+
+  public int getEdgeSize(Annotation ann) {
+    ensureDefaultEdge();
+    return getEdgeSize(defaultName, ann);
+  }
+
+  public int getReferencingEdgeSize(String edgeName, Annotation ann) {
+    Csr csr = getCsr(edgeName);
+    int node = ensureNode(ann);
+    return csr.reverseOffsets[node+1] - csr.reverseOffsets[node];
+  }
+
+  /**
+   * Return an immutable list of the annotations this annotation points to.
+   * @param edgeName
+   * @param ann
+   * @return
+   */
+  public List<Annotation> getAnnotations(String edgeName, Annotation ann) {
+    Csr csr = getCsr(edgeName);
+    int node = ensureNode(ann);
+    return new NodeList(csr.forwardTargets, csr.forwardOffsets[node], csr.forwardOffsets[node+1]);
+  }
+
+  public List<Annotation> getAnnotations(Annotation ann) {
+    ensureDefaultEdge();
+    return getAnnotations(defaultName, ann);
+  }
+
+  /**
+   * Return an immutable list of the annotations which point to this annotation.
+   * @param edgeName
+   * @param ann
+   * @return
+   */
+  public List<Annotation> getReferencingAnnotations(String edgeName, Annotation ann) {
+    Csr csr = getCsr(edgeName);
+    int node = ensureNode(ann);
+    return new NodeList(csr.reverseSources, csr.reverseOffsets[node], csr.reverseOffsets[node+1]);
+  }
+
+  public List<Annotation> getReferencingAnnotations(Annotation ann) {
+    ensureDefaultEdge();
+    return getReferencingAnnotations(defaultName, ann);
+  }
+
+  public int[] getIds(String edgeName, Annotation ann) {
+    Csr csr = getCsr(edgeName);
+    int node = ensureNode(ann);
+    return toIds(csr.forwardTargets, csr.forwardOffsets[node], csr.forwardOffsets[node+1]);
+  }
+
+  public int[] getReferencingIds(String edgeName, Annotation ann) {
+    Csr csr = getCsr(edgeName);
+    int node = ensureNode(ann);
+    return toIds(csr.reverseSources, csr.reverseOffsets[node], csr.reverseOffsets[node+1]);
+  }
+
+  /**
+   * Return the set of all annotations reachable from ann by following edges with this name.
+   * As for AnnotationGraph.getTransitiveAnnotationSet, ann itself is only included if
+   * it can be reached from itself.
+   * @param edgeName
+   * @param ann
+   * @return
+   */
+  public AnnotationSet getTransitiveAnnotationSet(String edgeName, Annotation ann) {
+    Csr csr = getCsr(edgeName);
+    int start = ensureNode(ann);
+    int[] offsets = csr.forwardOffsets;
+    int[] targets = csr.forwardTargets;
+    boolean[] seen = new boolean[nodes.length];
+    // every node gets queued at most once
+    int[] queue = new int[nodes.length];
+    int head = 0;
+    int tail = 0;
+    AnnotationSet ret = new AnnotationSetImpl(doc);
+    int node = start;
+    while(true) {
+      for(int j=offsets[node]; j<offsets[node+1]; j++) {
+        int t = targets[j];
+        if(!seen[t]) {
+          seen[t] = true;
+          ret.add(nodes[t]);
+          queue[tail++] = t;
+        }
+      }
+      if(head == tail) {
+        break;
+      }
+      node = queue[head++];
+    }
+    return ret;
+  }
+
+  public AnnotationSet getTransitiveAnnotationSet(Annotation ann) {
+    ensureDefaultEdge();
+    return getTransitiveAnnotationSet(defaultName, ann);
+  }
+
+  //////////////////////////////
+  // END OF API METHODS
+  //////////////////////////////
+
+  /////////////////////////////
+  // HELPER METHODS
+  /////////////////////////////
+
+  protected Csr getCsr(String edgeName) {
+    Csr csr = edges.get(edgeName);
+    if(csr == null) {
+      throw new GateRuntimeException("No edge with that name in the snapshot for document "+
+              doc.getName()+" set "+setName+": "+edgeName);
+    }
+    return csr;
+  }
+
+  protected void ensureDefaultEdge() {
+    if(defaultName == null) {
+      throw new GateRuntimeException("Cannot use a method that requires a default edge because the default edge is not set");
+    }
+  }
+
+  /**
+   * Return the node number for an annotation id or -1 if the id is not in the snapshot.
+   * @param id
+   * @return
+   */
+  protected int nodeOf(int id) {
+    if(idToNode != null) {
+      return (id >= 0 && id < idToNode.length) ? idToNode[id] : -1;
+    }
+    int pos = Arrays.binarySearch(nodeIds, id);
+    return pos < 0 ? -1 : pos;
+  }
+
+  protected int ensureNode(Annotation ann) {
+    int node = nodeOf(ann.getId());
+    if(node < 0 || !nodes[node].equals(ann)) {
+      throw new GateRuntimeException("Annotation is not from the snapshot of the AnnotationGraph: "+ann);
+    }
+    return node;
+  }
+
+  protected int[] toIds(int[] nodeNumbers, int from, int to) {
+    int[] ret = new int[to-from];
+    for(int j=from; j<to; j++) {
+      ret[j-from] = nodeIds[nodeNumbers[j]];
+    }
+    return ret;
+  }
+
+  /**
+   * An immutable list view of a range of one of the CSR target arrays.
+   */
+  protected class NodeList extends AbstractList<Annotation> implements RandomAccess {
+    protected final int[] nodeNumbers;
+    protected final int from;
+    protected final int to;
+
+    protected NodeList(int[] nodeNumbers, int from, int to) {
+      this.nodeNumbers = nodeNumbers;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    public Annotation get(int index) {
+      if(index < 0 || index >= to-from) {
+        throw new IndexOutOfBoundsException("Index: "+index+", Size: "+(to-from));
+      }
+      return nodes[nodeNumbers[from+index]];
+    }
+
+    @Override
+    public int size() {
+      return to-from;
+    }
+  }
+
+}
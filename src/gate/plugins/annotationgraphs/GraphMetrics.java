@@ -0,0 +1,39 @@
+package gate.plugins.annotationgraphs;
+
+/**
+ * Receives timings of the expensive operations of all AnnotationGraphs.
+ * <p>
+ * An implementation gets installed with AnnotationGraph.setMetrics and is shared by all
+ * graphs, so it must be thread-safe. When no metrics are installed (the default), the 
+ * only cost of the instrumentation is a check for null per operation.
+ * The sizes and degree distributions of a graph are not pushed to the metrics, they
+ * can be computed when needed with AnnotationGraph.getStatistics.
+ *
+ * @author Johann Petrak
+ */
+public interface GraphMetrics {
+
+  public static enum Operation {
+    /**
+     * Updating the edges after one annotation got removed from the set, or after a
+     * batch of annotations got removed with removeAnnotations.
+     */
+    ANNOTATION_REMOVED,
+    /**
+     * A traversal for one of the transitive query methods or a GraphTraversal.
+     */
+    TRANSITIVE_QUERY,
+    /**
+     * One of the methods which create range annotations for clusters.
+     */
+    CLUSTERING
+  }
+
+  /**
+   * Called after each operation.
+   * @param operation
+   * @param nanos the time the operation took, in nanoseconds
+   */
+  public void record(Operation operation, long nanos);
+
+}
@@ -0,0 +1,334 @@
+package gate.plugins.annotationgraphs;
+
+import gate.util.GateRuntimeException;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads a snapshot file written by GraphSnapshotWriter.
+ * <p>
+ * The file gets memory mapped, so opening it only reads the directory and the string table,
+ * and the edges of a document only get paged in when they are accessed. Each document is
+ * mapped separately when it is first used, so the file as a whole can be larger than 2GB.
+ * All methods work with the annotation ids from the original documents, the GATE documents
+ * are never needed. The reader can be used by several threads at the same time.
+ *
+ * @author Johann Petrak
+ */
+public class GraphSnapshotReader implements Closeable {
+
+  protected RandomAccessFile raf;
+  protected FileChannel channel;
+  protected String[] strings;
+  protected int[] docNames;
+  protected long[] docOffsets;
+  protected long[] docLengths;
+  protected Map<String,Integer> docNumbers = new HashMap<String,Integer>();
+  protected DocumentGraph[] docs;
+
+  public GraphSnapshotReader(File file) throws IOException {
+    raf = new RandomAccessFile(file, "r");
+    channel = raf.getChannel();
+    try {
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, GraphSnapshotWriter.HEADER_SIZE);
+      if(header.getInt(0) != GraphSnapshotWriter.MAGIC) {
+        throw new GateRuntimeException("Not a graph snapshot file: "+file);
+      }
+      if(header.getInt(4) != GraphSnapshotWriter.VERSION) {
+        throw new GateRuntimeException("Unsupported graph snapshot version "+header.getInt(4)+" in "+file);
+      }
+      int nDocs = header.getInt(8);
+      long directoryOffset = header.getLong(16);
+      long stringsOffset = header.getLong(24);
+      ByteBuffer strs = channel.map(FileChannel.MapMode.READ_ONLY, stringsOffset, channel.size()-stringsOffset);
+      strings = new String[strs.getInt()];
+      for(int i=0; i<strings.length; i++) {
+        byte[] bytes = new byte[strs.getInt()];
+        strs.get(bytes);
+        strings[i] = new String(bytes, StandardCharsets.UTF_8);
+      }
+      ByteBuffer dir = channel.map(FileChannel.MapMode.READ_ONLY, directoryOffset, stringsOffset-directoryOffset);
+      docNames = new int[nDocs];
+      docOffsets = new long[nDocs];
+      docLengths = new long[nDocs];
+      for(int i=0; i<nDocs; i++) {
+        docNames[i] = dir.getInt();
+        docOffsets[i] = dir.getLong();
+        docLengths[i] = dir.getLong();
+        if(!docNumbers.containsKey(strings[docNames[i]])) {
+          docNumbers.put(strings[docNames[i]], i);
+        }
+      }
+      docs = new DocumentGraph[nDocs];
+    } catch(IOException ex) {
+      raf.close();
+      throw ex;
+    } catch(RuntimeException ex) {
+      raf.close();
+      throw ex;
+    }
+  }
+
+  public int getDocumentCount() {
+    return docNames.length;
+  }
+
+  public String getDocumentName(int doc) {
+    return strings[docNames[doc]];
+  }
+
+  /**
+   * Return the number of the first document with the given name, or -1.
+   * @param name
+   * @return
+   */
+  public int getDocumentNumber(String name) {
+    Integer number = docNumbers.get(name);
+    return number == null ? -1 : number;
+  }
+
+  public synchronized DocumentGraph getDocument(int doc) throws IOException {
+    if(docs[doc] == null) {
+      docs[doc] = new DocumentGraph(doc, channel.map(FileChannel.MapMode.READ_ONLY, docOffsets[doc], docLengths[doc]));
+    }
+    return docs[doc];
+  }
+
+  @Override
+  public void close() throws IOException {
+    raf.close();
+  }
+
+  /**
+   * The graph of one document in a snapshot file.
+   * Annotations which are not in the snapshot have no edges and no type or offsets.
+   */
+  public class DocumentGraph {
+    protected final int number;
+    protected final MappedByteBuffer buffer;
+    protected final int n;
+    protected final String setName;
+    // the positions of the ids, start offsets, end offsets and types
+    protected final int idsPos;
+    protected final int startsPos;
+    protected final int endsPos;
+    protected final int typesPos;
+    // for each edge name the number of edges and the positions of the four CSR arrays
+    protected final Map<String,int[]> edgeNames = new LinkedHashMap<String,int[]>();
+
+    protected DocumentGraph(int number, MappedByteBuffer buffer) {
+      this.number = number;
+      this.buffer = buffer;
+      n = buffer.getInt(0);
+      int nEdgeNames = buffer.getInt(4);
+      int setNameNumber = buffer.getInt(8);
+      setName = setNameNumber < 0 ? null : strings[setNameNumber];
+      idsPos = 12;
+      startsPos = idsPos + 4*n;
+      endsPos = startsPos + 8*n;
+      typesPos = endsPos + 8*n;
+      int pos = typesPos + 4*n;
+      for(int e=0; e<nEdgeNames; e++) {
+        String name = strings[buffer.getInt(pos)];
+        int m = buffer.getInt(pos+4);
+        int forwardOffsetsPos = pos+8;
+        int forwardTargetsPos = forwardOffsetsPos + 4*(n+1);
+        int reverseOffsetsPos = forwardTargetsPos + 4*m;
+        int reverseSourcesPos = reverseOffsetsPos + 4*(n+1);
+        edgeNames.put(name, new int[]{m, forwardOffsetsPos, forwardTargetsPos, reverseOffsetsPos, reverseSourcesPos});
+        pos = reverseSourcesPos + 4*m;
+      }
+    }
+
+    public String getName() {
+      return getDocumentName(number);
+    }
+
+    public String getSetName() {
+      return setName;
+    }
+
+    public int getNodeCount() {
+      return n;
+    }
+
+    public Collection<String> getEdgeNames() {
+      return Collections.unmodifiableCollection(edgeNames.keySet());
+    }
+
+    /**
+     * Check if the snapshot has edges with the given name. The documents in one file can have
+     * different edge names, and for a name which is not in the snapshot of this document, 
+     * the methods which return edges return none.
+     * @param edgeName
+     * @return 
+     */
+    public boolean hasEdgeName(String edgeName) {
+      return edgeNames.containsKey(edgeName);
+    }
+
+    public int getEdgeCount(String edgeName) {
+      int[] edge = edgeNames.get(edgeName);
+      return edge == null ? 0 : edge[0];
+    }
+
+    /**
+     * Return the ids of all annotations in the snapshot, in increasing order.
+     * @return
+     */
+    public int[] getAnnotationIds() {
+      int[] ret = new int[n];
+      for(int i=0; i<n; i++) {
+        ret[i] = buffer.getInt(idsPos + 4*i);
+      }
+      return ret;
+    }
+
+    /**
+     * Return the ids of all annotations of the given type, in increasing order.
+     * @param type
+     * @return
+     */
+    public int[] getAnnotationIds(String type) {
+      IntList ret = new IntList();
+      for(int i=0; i<n; i++) {
+        if(strings[buffer.getInt(typesPos + 4*i)].equals(type)) {
+          ret.addInt(buffer.getInt(idsPos + 4*i));
+        }
+      }
+      return ret.toIntArray();
+    }
+
+    public boolean hasAnnotation(int id) {
+      return nodeOf(id) >= 0;
+    }
+
+    public String getType(int id) {
+      return strings[buffer.getInt(typesPos + 4*ensureNode(id))];
+    }
+
+    public long getStart(int id) {
+      return buffer.getLong(startsPos + 8*ensureNode(id));
+    }
+
+    public long getEnd(int id) {
+      return buffer.getLong(endsPos + 8*ensureNode(id));
+    }
+
+    /**
+     * Return the ids of the annotations the annotation with the given id points to.
+     * @param edgeName
+     * @param id
+     * @return
+     */
+    public int[] getIds(String edgeName, int id) {
+      int[] edge = edgeNames.get(edgeName);
+      int node = nodeOf(id);
+      return edge == null || node < 0 ? new int[0] : neighbours(edge[1], edge[2], node);
+    }
+
+    /**
+     * Return the ids of the annotations which point to the annotation with the given id.
+     * @param edgeName
+     * @param id
+     * @return
+     */
+    public int[] getReferencingIds(String edgeName, int id) {
+      int[] edge = edgeNames.get(edgeName);
+      int node = nodeOf(id);
+      return edge == null || node < 0 ? new int[0] : neighbours(edge[3], edge[4], node);
+    }
+
+    /**
+     * Return the ids of all annotations reachable from the annotation with the given id,
+     * in breadth first order. As for AnnotationGraph, the start annotation is only included
+     * if there is a path back to it.
+     * @param edgeName
+     * @param id
+     * @return
+     */
+    public int[] getTransitiveIds(String edgeName, int id) {
+      int[] edge = edgeNames.get(edgeName);
+      int start = nodeOf(id);
+      if(edge == null || start < 0) {
+        return new int[0];
+      }
+      BitSet visited = new BitSet(n);
+      IntList queue = new IntList();
+      int node = start;
+      int head = 0;
+      while(true) {
+        int from = buffer.getInt(edge[1] + 4*node);
+        int to = buffer.getInt(edge[1] + 4*(node+1));
+        for(int i=from; i<to; i++) {
+          int target = buffer.getInt(edge[2] + 4*i);
+          if(!visited.get(target)) {
+            visited.set(target);
+            queue.addInt(target);
+          }
+        }
+        if(head >= queue.size()) {
+          break;
+        }
+        node = queue.getInt(head++);
+      }
+      int[] ret = queue.toIntArray();
+      for(int i=0; i<ret.length; i++) {
+        ret[i] = buffer.getInt(idsPos + 4*ret[i]);
+      }
+      return ret;
+    }
+
+    protected int[] neighbours(int offsetsPos, int targetsPos, int node) {
+      int from = buffer.getInt(offsetsPos + 4*node);
+      int to = buffer.getInt(offsetsPos + 4*(node+1));
+      int[] ret = new int[to-from];
+      for(int i=from; i<to; i++) {
+        ret[i-from] = buffer.getInt(idsPos + 4*buffer.getInt(targetsPos + 4*i));
+      }
+      return ret;
+    }
+
+    /**
+     * Binary search for the id, the ids are sorted.
+     * @return the node number or -1
+     */
+    protected int nodeOf(int id) {
+      int lo = 0;
+      int hi = n-1;
+      while(lo <= hi) {
+        int mid = (lo+hi) >>> 1;
+        int midId = buffer.getInt(idsPos + 4*mid);
+        if(midId < id) {
+          lo = mid+1;
+        } else if(midId > id) {
+          hi = mid-1;
+        } else {
+          return mid;
+        }
+      }
+      return -1;
+    }
+
+    protected int ensureNode(int id) {
+      int node = nodeOf(id);
+      if(node < 0) {
+        throw new GateRuntimeException("No annotation with id "+id+" in the snapshot of document "+getName());
+      }
+      return node;
+    }
+  }
+
+}
@@ -0,0 +1,185 @@
+package gate.plugins.annotationgraphs;
+
+import gate.Annotation;
+import gate.util.GateRuntimeException;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the graphs of many documents into one snapshot file, which can be read with
+ * GraphSnapshotReader without loading the documents.
+ * <p>
+ * The file starts with a fixed size header, followed by one block per document and then
+ * the document directory and a table of all strings used (document, set, type and
+ * edge names). All numbers are big-endian. The header is:
+ * <pre>
+ * int magic, int version, int number of documents, int 0,
+ * long offset of the directory, long offset of the string table
+ * </pre>
+ * Each document block contains the CSR arrays of a FrozenAnnotationGraph, with the
+ * annotations numbered in order of increasing id:
+ * <pre>
+ * int n (number of annotations), int number of edge names, int set name (string number or -1)
+ * int[n] annotation ids, long[n] start offsets, long[n] end offsets, int[n] types (string numbers)
+ * for each edge name: int name (string number), int m (number of edges),
+ *   int[n+1] forward offsets, int[m] forward targets, int[n+1] reverse offsets, int[m] reverse sources
+ * </pre>
+ * The directory has an entry <code>int name, long offset, long length</code> for each
+ * document, the string table is the number of strings followed by the length and UTF-8
+ * bytes of each string.
+ *
+ * @author Johann Petrak
+ */
+public class GraphSnapshotWriter implements Closeable {
+
+  protected static final int MAGIC = 0x41475331;
+  protected static final int VERSION = 1;
+  protected static final int HEADER_SIZE = 32;
+
+  protected File file;
+  protected DataOutputStream out;
+  // the number of bytes written so far
+  protected long pos = 0;
+
+  protected Map<String,Integer> stringNumbers = new HashMap<String,Integer>();
+  protected List<String> strings = new ArrayList<String>();
+  protected IntList docNames = new IntList();
+  protected List<long[]> docRegions = new ArrayList<long[]>();
+
+  public GraphSnapshotWriter(File file) throws IOException {
+    this.file = file;
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    // the header gets filled in by close()
+    for(int i=0; i<HEADER_SIZE; i++) {
+      out.write(0);
+    }
+    pos = HEADER_SIZE;
+  }
+
+  /**
+   * Add the current state of the graph under the name of its document.
+   * @param ag
+   * @throws IOException
+   */
+  public void add(AnnotationGraph ag) throws IOException {
+    add(ag.docName, ag.snapshot());
+  }
+
+  /**
+   * Add a snapshot of a graph under the given document name.
+   * The names do not need to be unique, GraphSnapshotReader finds the first document with
+   * a name.
+   * @param docName
+   * @param graph
+   * @throws IOException
+   */
+  public void add(String docName, FrozenAnnotationGraph graph) throws IOException {
+    if(out == null) {
+      throw new GateRuntimeException("Snapshot writer for "+file+" is already closed");
+    }
+    long start = pos;
+    Annotation[] nodes = graph.nodes;
+    int n = nodes.length;
+    writeInt(n);
+    writeInt(graph.edges.size());
+    writeInt(graph.setName == null ? -1 : stringNumber(graph.setName));
+    writeInts(graph.nodeIds, n);
+    for(int i=0; i<n; i++) {
+      writeLong(nodes[i].getStartNode().getOffset());
+    }
+    for(int i=0; i<n; i++) {
+      writeLong(nodes[i].getEndNode().getOffset());
+    }
+    for(int i=0; i<n; i++) {
+      writeInt(stringNumber(nodes[i].getType()));
+    }
+    for(Map.Entry<String,FrozenAnnotationGraph.Csr> entry : graph.edges.entrySet()) {
+      FrozenAnnotationGraph.Csr csr = entry.getValue();
+      int m = csr.forwardTargets.length;
+      writeInt(stringNumber(entry.getKey()));
+      writeInt(m);
+      writeInts(csr.forwardOffsets, n+1);
+      writeInts(csr.forwardTargets, m);
+      writeInts(csr.reverseOffsets, n+1);
+      writeInts(csr.reverseSources, m);
+    }
+    docNames.addInt(stringNumber(docName == null ? "" : docName));
+    docRegions.add(new long[]{start, pos-start});
+  }
+
+  /**
+   * Write the directory and the string table and close the file.
+   * @throws IOException
+   */
+  @Override
+  public void close() throws IOException {
+    if(out == null) {
+      return;
+    }
+    long directoryOffset = pos;
+    for(int i=0; i<docNames.size(); i++) {
+      writeInt(docNames.getInt(i));
+      writeLong(docRegions.get(i)[0]);
+      writeLong(docRegions.get(i)[1]);
+    }
+    long stringsOffset = pos;
+    writeInt(strings.size());
+    for(String s : strings) {
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      writeInt(bytes.length);
+      out.write(bytes);
+      pos += bytes.length;
+    }
+    out.close();
+    out = null;
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.writeInt(MAGIC);
+      raf.writeInt(VERSION);
+      raf.writeInt(docNames.size());
+      raf.writeInt(0);
+      raf.writeLong(directoryOffset);
+      raf.writeLong(stringsOffset);
+    } finally {
+      raf.close();
+    }
+  }
+
+  protected int stringNumber(String s) {
+    Integer number = stringNumbers.get(s);
+    if(number == null) {
+      number = strings.size();
+      strings.add(s);
+      stringNumbers.put(s, number);
+    }
+    return number;
+  }
+
+  protected void writeInt(int value) throws IOException {
+    out.writeInt(value);
+    pos += 4;
+  }
+
+  protected void writeLong(long value) throws IOException {
+    out.writeLong(value);
+    pos += 8;
+  }
+
+  protected void writeInts(int[] values, int n) throws IOException {
+    for(int i=0; i<n; i++) {
+      out.writeInt(values[i]);
+    }
+    pos += 4L*n;
+  }
+
+}
@@ -0,0 +1,145 @@
+package gate.plugins.annotationgraphs;
+
+import gate.Annotation;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The size and the degree distribution of an AnnotationGraph at the time it was created.
+ * This gets computed by AnnotationGraph.getStatistics with a single pass over the set,
+ * which only reads the edge lists.
+ *
+ * @author Johann Petrak
+ */
+public class GraphStatistics {
+
+  protected String docName;
+  protected String setName;
+  protected int nodeCount;
+  protected Map<String,EdgeStatistics> edges = new LinkedHashMap<String,EdgeStatistics>();
+
+  /**
+   * The number of edges and the distribution of out- and in-degrees for one edge name.
+   * The degree distributions include the annotations without edges.
+   */
+  public static class EdgeStatistics {
+    protected long edgeCount;
+    protected int[] outDegrees;
+    protected int[] inDegrees;
+
+    public long getEdgeCount() {
+      return edgeCount;
+    }
+
+    public int getMaxOutDegree() {
+      return percentile(outDegrees, 100);
+    }
+
+    public int getMaxInDegree() {
+      return percentile(inDegrees, 100);
+    }
+
+    /**
+     * Return the smallest out-degree such that at least the given percentage of all 
+     * annotations have at most that many outgoing edges.
+     * @param percent
+     * @return 
+     */
+    public int getOutDegreePercentile(double percent) {
+      return percentile(outDegrees, percent);
+    }
+
+    public int getInDegreePercentile(double percent) {
+      return percentile(inDegrees, percent);
+    }
+
+    @Override
+    public String toString() {
+      return "edges="+edgeCount+
+              ", out-degree p50/p90/p99/max="+getOutDegreePercentile(50)+"/"+getOutDegreePercentile(90)+
+              "/"+getOutDegreePercentile(99)+"/"+getMaxOutDegree()+
+              ", in-degree p50/p90/p99/max="+getInDegreePercentile(50)+"/"+getInDegreePercentile(90)+
+              "/"+getInDegreePercentile(99)+"/"+getMaxInDegree();
+    }
+  }
+
+  protected GraphStatistics(AnnotationGraph ag) {
+    docName = ag.docName;
+    setName = ag.setName;
+    nodeCount = ag.set.size();
+    for(String edgeName : ag.edgeSet) {
+      String toKey = ag.toEdgeNames.get(edgeName);
+      String fromKey = ag.fromEdgeNames.get(edgeName);
+      EdgeStatistics stats = new EdgeStatistics();
+      stats.outDegrees = new int[nodeCount];
+      stats.inDegrees = new int[nodeCount];
+      int i = 0;
+      for(Annotation ann : ag.set) {
+        stats.outDegrees[i] = degree(ann.getFeatures().get(toKey));
+        stats.edgeCount += stats.outDegrees[i];
+        stats.inDegrees[i] = degree(ann.getFeatures().get(fromKey));
+        i++;
+      }
+      Arrays.sort(stats.outDegrees);
+      Arrays.sort(stats.inDegrees);
+      edges.put(edgeName, stats);
+    }
+  }
+
+  /**
+   * The number of ids in an edge list feature value.
+   * This only reads the value: encoded lists do not get decoded and hashed lists do not
+   * get compacted, so the statistics can be computed without changing the graph.
+   */
+  protected static int degree(Object value) {
+    if(value instanceof List) {
+      return ((List<?>)value).size();
+    } else if(EdgeListCodec.isEncoded(value)) {
+      return EdgeListCodec.sizeOf((String)value);
+    } else {
+      return 0;
+    }
+  }
+
+  public String getDocumentName() {
+    return docName;
+  }
+
+  public String getSetName() {
+    return setName;
+  }
+
+  public int getNodeCount() {
+    return nodeCount;
+  }
+
+  public Map<String,EdgeStatistics> getEdgeStatistics() {
+    return Collections.unmodifiableMap(edges);
+  }
+
+  public EdgeStatistics getEdgeStatistics(String edgeName) {
+    return edges.get(edgeName);
+  }
+
+  protected static int percentile(int[] sorted, double percent) {
+    if(sorted.length == 0) {
+      return 0;
+    }
+    int pos = (int)Math.ceil(percent / 100.0 * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(pos, sorted.length-1))];
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("document ").append(docName).append(" set ").append(setName).append(": nodes=").append(nodeCount);
+    for(Map.Entry<String,EdgeStatistics> entry : edges.entrySet()) {
+      sb.append("; ").append(entry.getKey()).append(": ").append(entry.getValue());
+    }
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,248 @@
+package gate.plugins.annotationgraphs;
+
+import gate.Annotation;
+import gate.util.GateRuntimeException;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Breadth first traversal over the edges of an AnnotationGraph.
+ * <p>
+ * The traversal follows the edges of all the edge names it was created for together,
+ * with one shared set of visited annotations. So a path can use different edge names
+ * for different steps, e.g. first a "members" edge and then a "type" edge, and each
+ * annotation gets expanded only once no matter how many of the edge names it has.
+ * <p>
+ * The traversal works on annotation ids only: the queue is a primitive int array and
+ * the visited annotations are kept in a BitSet indexed by annotation id, so apart from
+ * these two nothing gets allocated per reached annotation.
+ * <p>
+ * As with AnnotationGraph.getTransitiveAnnotationSet, the start annotations are not
+ * considered reached, unless there is a path back to them. An instance can be run
+ * any number of times, but not by several threads at the same time.
+ *
+ * @author Johann Petrak
+ */
+public class GraphTraversal {
+
+  public static final int UNLIMITED = -1;
+
+  /**
+   * Which edges to follow from an annotation.
+   */
+  public static enum Direction {
+    /**
+     * Follow the edges pointing from the annotation to other annotations.
+     */
+    FORWARD,
+    /**
+     * Follow the edges pointing from other annotations to the annotation.
+     */
+    REVERSE,
+    /**
+     * Follow both kinds of edges.
+     */
+    BOTH
+  }
+
+  /**
+   * Gets called for each annotation reached by the traversal.
+   */
+  public static interface Visitor {
+    /**
+     * Called once for each reached annotation, in breadth first order.
+     * @param id the id of the reached annotation
+     * @param depth the number of edges on the shortest path from a start annotation
+     * @return false to stop the traversal, true to continue
+     */
+    public boolean visit(int id, int depth);
+  }
+
+  protected AnnotationGraph ag;
+  protected String[] edgeNames;
+  protected String[] toKeys;
+  protected String[] fromKeys;
+  protected Direction direction = Direction.FORWARD;
+  protected int maxDepth = UNLIMITED;
+  protected Visitor visitor = null;
+
+  // re-used between runs
+  protected BitSet visited = new BitSet();
+  protected int[] queue = new int[16];
+
+  /**
+   * Create a traversal which follows the edges of all the given edge names.
+   * @param ag
+   * @param edgeNames 
+   */
+  public GraphTraversal(AnnotationGraph ag, String... edgeNames) {
+    ag.ensureActive();
+    this.ag = ag;
+    this.edgeNames = edgeNames.clone();
+    toKeys = new String[edgeNames.length];
+    fromKeys = new String[edgeNames.length];
+    for(int i=0; i<edgeNames.length; i++) {
+      ag.ensureEdge(edgeNames[i]);
+      toKeys[i] = ag.toEdgeNames.get(edgeNames[i]);
+      fromKeys[i] = ag.fromEdgeNames.get(edgeNames[i]);
+    }
+  }
+  
+  public GraphTraversal(AnnotationGraph ag, Collection<String> edgeNames) {
+    this(ag, edgeNames.toArray(new String[edgeNames.size()]));
+  }
+
+  public void setDirection(Direction direction) {
+    if(direction == null) {
+      throw new GateRuntimeException("Direction must not be null");
+    }
+    this.direction = direction;
+  }
+
+  public Direction getDirection() {
+    return direction;
+  }
+
+  /**
+   * Limit the number of edges followed from a start annotation.
+   * A maximum depth of 1 only reaches the direct neighbours, UNLIMITED (the default)
+   * follows edges until no new annotations can be reached.
+   * @param maxDepth
+   */
+  public void setMaxDepth(int maxDepth) {
+    this.maxDepth = maxDepth < 0 ? UNLIMITED : maxDepth;
+  }
+
+  public int getMaxDepth() {
+    return maxDepth;
+  }
+
+  /**
+   * Set a visitor that gets called for each reached annotation, or null for none.
+   * @param visitor
+   */
+  public void setVisitor(Visitor visitor) {
+    this.visitor = visitor;
+  }
+
+  /**
+   * Run the traversal from one start annotation.
+   * @param start
+   * @return the ids of all reached annotations in breadth first order.
+   */
+  public int[] run(Annotation start) {
+    ag.ensureAnnotation(start);
+    return run(new int[]{start.getId()});
+  }
+
+  /**
+   * Run the traversal starting from all the given annotation ids at the same time.
+   * If the visitor stops the traversal, the ids reached so far are returned.
+   * @param startIds
+   * @return the ids of all reached annotations in breadth first order.
+   */
+  public int[] run(int... startIds) {
+    ag.ensureActive();
+    GraphMetrics m = AnnotationGraph.metrics;
+    long startTime = m == null ? 0 : System.nanoTime();
+    boolean forward = direction != Direction.REVERSE;
+    boolean reverse = direction != Direction.FORWARD;
+    visited.clear();
+    // The queue holds the reached ids in the order they were reached, which is also the result.
+    // The start ids are only expanded, they go into the queue when they get reached.
+    int tail = 0;
+    boolean stop = false;
+    if(maxDepth != 0) {
+      for(int i=0; i<startIds.length && !stop; i++) {
+        Annotation ann = ag.annotationById(startIds[i]);
+        if(ann == null) {
+          throw new GateRuntimeException("No annotation with id "+startIds[i]+" in the set for this AnnotationGraph");
+        }
+        int oldTail = tail;
+        tail = expand(ann, forward, reverse, tail);
+        int stopTail = notify(oldTail, tail, 1);
+        if(stopTail >= 0) {
+          tail = stopTail;
+          stop = true;
+        }
+      }
+    }
+    int head = 0;
+    int depth = 1;
+    while(!stop && head < tail && (maxDepth == UNLIMITED || depth < maxDepth)) {
+      // process all ids of the current depth, which adds all the ids of the next depth
+      int levelEnd = tail;
+      while(head < levelEnd && !stop) {
+        Annotation ann = ag.annotationById(queue[head++]);
+        if(ann == null) { continue; }
+        int oldTail = tail;
+        tail = expand(ann, forward, reverse, tail);
+        int stopTail = notify(oldTail, tail, depth+1);
+        if(stopTail >= 0) {
+          tail = stopTail;
+          stop = true;
+        }
+      }
+      depth++;
+    }
+    int[] ret = new int[tail];
+    System.arraycopy(queue, 0, ret, 0, tail);
+    if(m != null) { m.record(GraphMetrics.Operation.TRANSITIVE_QUERY, System.nanoTime()-startTime); }
+    return ret;
+  }
+
+  /**
+   * Add all not yet visited neighbours for all edge names to the queue.
+   * @return the new tail of the queue
+   */
+  protected int expand(Annotation ann, boolean forward, boolean reverse, int tail) {
+    for(int e=0; e<edgeNames.length; e++) {
+      if(forward) { tail = expand(ann, toKeys[e], tail); }
+      if(reverse) { tail = expand(ann, fromKeys[e], tail); }
+    }
+    return tail;
+  }
+
+  /**
+   * Add all not yet visited neighbours from the list stored under key to the queue.
+   * @return the new tail of the queue
+   */
+  protected int expand(Annotation ann, String key, int tail) {
+    List<Integer> ids = ag.getIdList(ann.getFeatures(), key);
+    if(ids == null) {
+      return tail;
+    }
+    int n = ids.size();
+    for(int i=0; i<n; i++) {
+      int id = AnnotationGraph.idAt(ids, i);
+      if(!visited.get(id)) {
+        visited.set(id);
+        if(tail == queue.length) {
+          int[] tmp = new int[queue.length*2];
+          System.arraycopy(queue, 0, tmp, 0, tail);
+          queue = tmp;
+        }
+        queue[tail++] = id;
+      }
+    }
+    return tail;
+  }
+
+  /**
+   * Call the visitor for the queue entries from to to.
+   * @return -1 to continue, otherwise the queue position after the id for which the 
+   * visitor wanted to stop.
+   */
+  protected int notify(int from, int to, int depth) {
+    if(visitor != null) {
+      for(int i=from; i<to; i++) {
+        if(!visitor.visit(queue[i], depth)) {
+          return i+1;
+        }
+      }
+    }
+    return -1;
+  }
+
+}
@@ -0,0 +1,304 @@
+package gate.plugins.annotationgraphs;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * An IntList that also keeps a hash index from each value to its position.
+ * This makes containsInt and removeInt take constant time, regardless of the
+ * size of the list. The list has set semantics: adding a value that is already
+ * in the list does nothing.
+ * <p>
+ * Removal only marks the position of the value as a hole, the holes get squeezed out
+ * the next time the list is accessed by position (or when there are too many of them),
+ * so iterating over the list still returns the values in insertion order.
+ * <p>
+ * A list which gets read by several threads while one thread may change it must be
+ * put into shared read mode with setSharedReads: then removals squeeze out the hole
+ * right away and methods which only read never change the list.
+ *
+ * @author Johann Petrak
+ */
+public class IndexedIntList extends IntList {
+
+  private static final long serialVersionUID = 1L;
+
+  protected static final int HOLE = Integer.MIN_VALUE;
+
+  // maps each value to its position in the data array, re-built after deserialization
+  protected transient IntIntMap index;
+  protected int holes = 0;
+  // incremented whenever the holes get squeezed out, which moves the values
+  protected int compactions = 0;
+  // if true, holes get squeezed out by the removal itself, so reads never need to compact
+  protected transient boolean sharedReads = false;
+
+  public IndexedIntList() {
+    super();
+    index = new IntIntMap();
+  }
+
+  public IndexedIntList(int capacity) {
+    super(capacity);
+    index = new IntIntMap(capacity);
+  }
+
+  @Override
+  public int getInt(int pos) {
+    compactForRead();
+    return super.getInt(pos);
+  }
+
+  @Override
+  public int setInt(int pos, int value) {
+    compact();
+    int old = super.getInt(pos);
+    if(old == value) {
+      return old;
+    }
+    if(index.containsKey(value)) {
+      throw new IllegalArgumentException("Value already in the list: "+value);
+    }
+    data[pos] = value;
+    index.remove(old);
+    index.put(value, pos);
+    return old;
+  }
+
+  @Override
+  public void addInt(int value) {
+    if(index.containsKey(value)) {
+      return;
+    }
+    ensureCapacity(size+1);
+    data[size] = value;
+    index.put(value, size);
+    size++;
+    modCount++;
+  }
+
+  /**
+   * Add the value, unless it is already in the list.
+   * @param value
+   * @return false if the value was already in the list, so that nothing changed
+   */
+  @Override
+  public boolean add(Integer value) {
+    if(index.containsKey(value)) {
+      return false;
+    }
+    addInt(value);
+    return true;
+  }
+
+  @Override
+  public void addInt(int pos, int value) {
+    if(index.containsKey(value)) {
+      return;
+    }
+    compact();
+    super.addInt(pos, value);
+    for(int i=pos; i<size; i++) {
+      index.put(data[i], i);
+    }
+  }
+
+  @Override
+  public int indexOfInt(int value) {
+    compactForRead();
+    return index.get(value, -1);
+  }
+
+  @Override
+  public boolean containsInt(int value) {
+    return index.containsKey(value);
+  }
+
+  @Override
+  public boolean removeInt(int value) {
+    int pos = index.get(value, -1);
+    if(pos < 0) {
+      return false;
+    }
+    index.remove(value);
+    if(pos == size-1) {
+      size--;
+    } else {
+      data[pos] = HOLE;
+      holes++;
+      // do not let the holes use more space than the values
+      if(sharedReads || (holes > 16 && holes > size-holes)) {
+        compact();
+      }
+    }
+    modCount++;
+    return true;
+  }
+
+  @Override
+  public int removeIntAt(int pos) {
+    int value = getInt(pos);
+    removeInt(value);
+    return value;
+  }
+
+  @Override
+  public int removeIntIf(IntPredicate filter) {
+    compact();
+    int to = 0;
+    for(int from=0; from<size; from++) {
+      int value = data[from];
+      if(filter.test(value)) {
+        index.remove(value);
+      } else {
+        if(to != from) {
+          data[to] = value;
+          index.put(value, to);
+        }
+        to++;
+      }
+    }
+    int removed = size-to;
+    if(removed > 0) {
+      size = to;
+      modCount++;
+      compactions++;
+    }
+    return removed;
+  }
+
+  @Override
+  public int[] toIntArray() {
+    compactForRead();
+    return super.toIntArray();
+  }
+
+  /**
+   * Return a cursor over the values of this list.
+   * The cursor skips the holes left by removals, so using it does not compact the list.
+   * @return 
+   */
+  @Override
+  public IntCursor cursor() {
+    return new HoleSkippingCursor();
+  }
+
+  @Override
+  public IntStream intStream() {
+    compactForRead();
+    return super.intStream();
+  }
+
+  @Override
+  public int size() {
+    return size - holes;
+  }
+
+  @Override
+  public void clear() {
+    super.clear();
+    index.clear();
+    holes = 0;
+  }
+
+  @Override
+  public void sort(Comparator<? super Integer> c) {
+    compact();
+    Integer[] tmp = new Integer[size];
+    for(int i=0; i<size; i++) {
+      tmp[i] = data[i];
+    }
+    Arrays.sort(tmp, c);
+    for(int i=0; i<size; i++) {
+      data[i] = tmp[i];
+      index.put(data[i], i);
+    }
+    modCount++;
+  }
+
+  protected class HoleSkippingCursor extends Cursor {
+    protected final int expectedCompactions = compactions;
+
+    @Override
+    public boolean hasNext() {
+      while(pos < size && data[pos] == HOLE) {
+        pos++;
+      }
+      return pos < size;
+    }
+
+    @Override
+    public int next() {
+      if(compactions != expectedCompactions) {
+        throw new ConcurrentModificationException();
+      }
+      hasNext();
+      return super.next();
+    }
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    index = new IntIntMap(size);
+    for(int i=0; i<size; i++) {
+      index.put(data[i], i);
+    }
+  }
+
+  /**
+   * Switch shared read mode on or off.
+   * In shared read mode, removeInt squeezes out the hole right away, which takes time
+   * linear in the size of the list, like removing from an IntList, but getInt, indexOfInt,
+   * toIntArray and intStream never change the list, so they can run while another thread
+   * holds a lock for changing it, e.g. as optimistic reads of a StampedLock.
+   * This must be called while no other thread uses the list.
+   * @param shared
+   */
+  public void setSharedReads(boolean shared) {
+    if(shared) {
+      compact();
+    }
+    sharedReads = shared;
+  }
+
+  public boolean isSharedReads() {
+    return sharedReads;
+  }
+
+  // in shared read mode there are no holes outside of removeInt, and a reader which
+  // overlaps with a removal must not write to the list
+  protected void compactForRead() {
+    if(!sharedReads) {
+      compact();
+    }
+  }
+
+  /**
+   * Squeeze out the holes left by removals and update the index accordingly.
+   */
+  protected void compact() {
+    if(holes == 0) {
+      return;
+    }
+    int to = 0;
+    for(int from=0; from<size; from++) {
+      int value = data[from];
+      if(value != HOLE) {
+        if(to != from) {
+          data[to] = value;
+          index.put(value, to);
+        }
+        to++;
+      }
+    }
+    size = to;
+    holes = 0;
+    compactions++;
+  }
+
+}
@@ -0,0 +1,37 @@
+package gate.plugins.annotationgraphs;
+
+/**
+ * A forward-only cursor over primitive int values.
+ * This is the primitive counterpart of an Iterator&lt;Integer&gt;: getting the next
+ * value does not box it. The underlying list must not be modified while a cursor
+ * is used, except through the cursor.
+ *
+ * @author Johann Petrak
+ */
+public interface IntCursor {
+
+  public static final IntCursor EMPTY = new IntCursor() {
+    @Override
+    public boolean hasNext() {
+      return false;
+    }
+
+    @Override
+    public int next() {
+      throw new java.util.NoSuchElementException();
+    }
+  };
+
+  /**
+   * True if there is another value.
+   * @return
+   */
+  public boolean hasNext();
+
+  /**
+   * Return the next value.
+   * @return
+   */
+  public int next();
+
+}
@@ -0,0 +1,180 @@
+package gate.plugins.annotationgraphs;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive int keys to primitive int values.
+ * This uses open addressing with linear probing and backward shift deletion, so
+ * there are no tombstones and lookups stay fast after many removals. The value
+ * Integer.MIN_VALUE cannot be used as a key.
+ *
+ * @author Johann Petrak
+ */
+public class IntIntMap implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  protected static final int FREE = Integer.MIN_VALUE;
+
+  protected int[] keys;
+  protected int[] values;
+  protected int size = 0;
+  protected int mask;
+  protected int threshold;
+
+  public IntIntMap() {
+    this(8);
+  }
+
+  public IntIntMap(int expectedSize) {
+    int capacity = 8;
+    while(capacity * 3 / 4 < expectedSize) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean containsKey(int key) {
+    return slotOf(key) >= 0;
+  }
+
+  /**
+   * Return the value for the key or the given default value if the key is not in the map.
+   * @param key
+   * @param defaultValue
+   * @return
+   */
+  public int get(int key, int defaultValue) {
+    int slot = slotOf(key);
+    return slot < 0 ? defaultValue : values[slot];
+  }
+
+  /**
+   * Set the value for the key.
+   * @param key
+   * @param value
+   * @return true if the key was not in the map before.
+   */
+  public boolean put(int key, int value) {
+    checkKey(key);
+    int slot = hash(key) & mask;
+    while(keys[slot] != FREE) {
+      if(keys[slot] == key) {
+        values[slot] = value;
+        return false;
+      }
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = key;
+    values[slot] = value;
+    if(++size > threshold) {
+      rehash(keys.length << 1);
+    }
+    return true;
+  }
+
+  /**
+   * Remove the key from the map.
+   * @param key
+   * @return true if the key was in the map.
+   */
+  public boolean remove(int key) {
+    int slot = slotOf(key);
+    if(slot < 0) {
+      return false;
+    }
+    // backward shift deletion: move later entries of the same probe sequence into the gap
+    int gap = slot;
+    int cur = (gap + 1) & mask;
+    while(keys[cur] != FREE) {
+      int home = hash(keys[cur]) & mask;
+      // the entry at cur can be moved into the gap if its home slot is not between gap and cur
+      if(((cur - home) & mask) >= ((cur - gap) & mask)) {
+        keys[gap] = keys[cur];
+        values[gap] = values[cur];
+        gap = cur;
+      }
+      cur = (cur + 1) & mask;
+    }
+    keys[gap] = FREE;
+    size--;
+    return true;
+  }
+
+  public void clear() {
+    if(size > 0) {
+      Arrays.fill(keys, FREE);
+      size = 0;
+    }
+  }
+
+  /**
+   * Return all keys in the map, in no particular order.
+   * @return
+   */
+  public int[] keys() {
+    int[] ret = new int[size];
+    int j = 0;
+    for(int i=0; i<keys.length; i++) {
+      if(keys[i] != FREE) {
+        ret[j++] = keys[i];
+      }
+    }
+    return ret;
+  }
+
+  protected int slotOf(int key) {
+    if(key == FREE) {
+      return -1;
+    }
+    int slot = hash(key) & mask;
+    while(keys[slot] != FREE) {
+      if(keys[slot] == key) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  protected void rehash(int capacity) {
+    int[] oldKeys = keys;
+    int[] oldValues = values;
+    allocate(capacity);
+    size = 0;
+    for(int i=0; i<oldKeys.length; i++) {
+      if(oldKeys[i] != FREE) {
+        put(oldKeys[i], oldValues[i]);
+      }
+    }
+  }
+
+  protected void allocate(int capacity) {
+    keys = new int[capacity];
+    Arrays.fill(keys, FREE);
+    values = new int[capacity];
+    mask = capacity - 1;
+    threshold = capacity * 3 / 4;
+  }
+
+  protected static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  protected static void checkKey(int key) {
+    if(key == FREE) {
+      throw new IllegalArgumentException("Integer.MIN_VALUE cannot be used as a key");
+    }
+  }
+
+}
@@ -0,0 +1,287 @@
+package gate.plugins.annotationgraphs;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A growable list of primitive ints.
+ * This is what the AnnotationGraph uses to store the edge id lists in the annotation feature
+ * maps. All the methods ending in "Int" work directly on the primitive values and never
+ * box, the methods inherited from List&lt;Integer&gt; are only there so that the list can
+ * still be used by code that expects the edges to be a List&lt;Integer&gt;.
+ * <p>
+ * The class has a public no-argument constructor and implements add(Integer) so that
+ * GATE can re-create it when a document gets loaded from a format that stores the
+ * feature value as a collection of numbers.
+ *
+ * @author Johann Petrak
+ */
+public class IntList extends AbstractList<Integer> implements RandomAccess, Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  protected static final int[] EMPTY = new int[0];
+
+  // serialized in the compact form of EdgeListCodec
+  protected transient int[] data;
+  protected int size = 0;
+
+  public IntList() {
+    data = EMPTY;
+  }
+
+  public IntList(int capacity) {
+    data = capacity == 0 ? EMPTY : new int[capacity];
+  }
+
+  public IntList(int[] values) {
+    data = Arrays.copyOf(values, values.length);
+    size = values.length;
+  }
+
+  /////////////////////////////
+  // PRIMITIVE METHODS
+  /////////////////////////////
+
+  public int getInt(int index) {
+    checkIndex(index);
+    return data[index];
+  }
+
+  public int setInt(int index, int value) {
+    checkIndex(index);
+    int old = data[index];
+    data[index] = value;
+    return old;
+  }
+
+  public void addInt(int value) {
+    ensureCapacity(size+1);
+    data[size++] = value;
+    modCount++;
+  }
+
+  public void addInt(int index, int value) {
+    if(index < 0 || index > size) {
+      throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+    }
+    ensureCapacity(size+1);
+    System.arraycopy(data, index, data, index+1, size-index);
+    data[index] = value;
+    size++;
+    modCount++;
+  }
+
+  public int indexOfInt(int value) {
+    for(int i=0; i<size; i++) {
+      if(data[i] == value) { return i; }
+    }
+    return -1;
+  }
+
+  public boolean containsInt(int value) {
+    return indexOfInt(value) >= 0;
+  }
+
+  /**
+   * Remove the first occurrence of the value.
+   * @param value
+   * @return true if the value was found and removed.
+   */
+  public boolean removeInt(int value) {
+    int idx = indexOfInt(value);
+    if(idx < 0) {
+      return false;
+    }
+    removeIntAt(idx);
+    return true;
+  }
+
+  public int removeIntAt(int index) {
+    checkIndex(index);
+    int old = data[index];
+    int n = size-index-1;
+    if(n > 0) {
+      System.arraycopy(data, index+1, data, index, n);
+    }
+    size--;
+    modCount++;
+    return old;
+  }
+
+  /**
+   * Remove all values for which the filter returns true, in a single pass over the list.
+   * @param filter
+   * @return the number of removed values.
+   */
+  public int removeIntIf(IntPredicate filter) {
+    int to = 0;
+    for(int from=0; from<size; from++) {
+      int value = data[from];
+      if(!filter.test(value)) {
+        data[to++] = value;
+      }
+    }
+    int removed = size-to;
+    if(removed > 0) {
+      size = to;
+      modCount++;
+    }
+    return removed;
+  }
+
+  /**
+   * Return a cursor over the values of this list.
+   * The list must not be structurally modified while the cursor is used, otherwise 
+   * the cursor throws a ConcurrentModificationException.
+   * @return 
+   */
+  public IntCursor cursor() {
+    return new Cursor();
+  }
+
+  /**
+   * Return a sequential IntStream over the values, backed directly by the array of this list.
+   * The stream is sized and splits evenly when made parallel. The list must not be modified 
+   * while the stream is used.
+   * @return 
+   */
+  public IntStream intStream() {
+    return StreamSupport.intStream(Spliterators.spliterator(data, 0, size, Spliterator.ORDERED), false);
+  }
+
+  public int[] toIntArray() {
+    return Arrays.copyOf(data, size);
+  }
+
+  public void ensureCapacity(int capacity) {
+    if(capacity > data.length) {
+      int newCapacity = Math.max(capacity, data.length + (data.length >> 1) + 4);
+      data = Arrays.copyOf(data, newCapacity);
+    }
+  }
+
+  public void trimToSize() {
+    if(data.length > size) {
+      data = size == 0 ? EMPTY : Arrays.copyOf(data, size);
+    }
+  }
+
+  //////////////////////////////
+  // LIST METHODS
+  //////////////////////////////
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public Integer get(int index) {
+    return getInt(index);
+  }
+
+  @Override
+  public Integer set(int index, Integer value) {
+    return setInt(index, value);
+  }
+
+  @Override
+  public boolean add(Integer value) {
+    addInt(value);
+    return true;
+  }
+
+  @Override
+  public void add(int index, Integer value) {
+    addInt(index, value);
+  }
+
+  @Override
+  public Integer remove(int index) {
+    return removeIntAt(index);
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    if(o instanceof Integer) {
+      return removeInt((Integer)o);
+    }
+    return false;
+  }
+
+  @Override
+  public int indexOf(Object o) {
+    if(o instanceof Integer) {
+      return indexOfInt((Integer)o);
+    }
+    return -1;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return indexOf(o) >= 0;
+  }
+
+  @Override
+  public void clear() {
+    size = 0;
+    modCount++;
+  }
+
+  protected class Cursor implements IntCursor {
+    protected int pos = 0;
+    protected final int expectedModCount = modCount;
+
+    @Override
+    public boolean hasNext() {
+      return pos < size;
+    }
+
+    @Override
+    public int next() {
+      if(modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+      if(pos >= size) {
+        throw new NoSuchElementException();
+      }
+      return data[pos++];
+    }
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    int[] values = toIntArray();
+    out.defaultWriteObject();
+    byte[] bytes = EdgeListCodec.encode(values, 0, values.length);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    data = EdgeListCodec.decode(bytes);
+    size = data.length;
+  }
+
+  protected void checkIndex(int index) {
+    if(index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+    }
+  }
+
+}
@@ -0,0 +1,183 @@
+package gate.plugins.annotationgraphs;
+
+import gate.util.GateRuntimeException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The default GraphMetrics, which makes the metrics available as a JMX MBean.
+ * <p>
+ * Use install() to register the MBean with the platform MBean server and to make it 
+ * the metrics used by all AnnotationGraphs, and uninstall() to disable the metrics again.
+ * Recording a timing only updates a few atomic counters.
+ *
+ * @author Johann Petrak
+ */
+public class JmxGraphMetrics implements GraphMetrics, JmxGraphMetricsMBean {
+
+  public static final String OBJECT_NAME = "gate.plugins.annotationgraphs:type=GraphMetrics";
+
+  protected static final int N = Operation.values().length;
+
+  protected final LongAdder[] counts = new LongAdder[N];
+  protected final LongAdder[] totalNanos = new LongAdder[N];
+  protected final AtomicLongArray maxNanos = new AtomicLongArray(N);
+
+  protected static JmxGraphMetrics installed = null;
+
+  public JmxGraphMetrics() {
+    for(int i=0; i<N; i++) {
+      counts[i] = new LongAdder();
+      totalNanos[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Register a new instance as MBean and install it as the metrics for all graphs.
+   * If an instance is already installed, it is returned instead.
+   * @return 
+   */
+  public static synchronized JmxGraphMetrics install() {
+    if(installed == null) {
+      JmxGraphMetrics metrics = new JmxGraphMetrics();
+      try {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if(server.isRegistered(name)) {
+          server.unregisterMBean(name);
+        }
+        server.registerMBean(metrics, name);
+      } catch(JMException ex) {
+        throw new GateRuntimeException("Could not register the graph metrics MBean", ex);
+      }
+      installed = metrics;
+    }
+    AnnotationGraph.setMetrics(installed);
+    return installed;
+  }
+
+  /**
+   * Disable the metrics and unregister the MBean, if it was installed.
+   */
+  public static synchronized void uninstall() {
+    if(installed == null) {
+      return;
+    }
+    if(AnnotationGraph.getMetrics() == installed) {
+      AnnotationGraph.setMetrics(null);
+    }
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if(server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+    } catch(JMException ex) {
+      throw new GateRuntimeException("Could not unregister the graph metrics MBean", ex);
+    }
+    installed = null;
+  }
+
+  @Override
+  public void record(Operation operation, long nanos) {
+    int i = operation.ordinal();
+    counts[i].increment();
+    totalNanos[i].add(nanos);
+    long max = maxNanos.get(i);
+    while(nanos > max && !maxNanos.compareAndSet(i, max, nanos)) {
+      max = maxNanos.get(i);
+    }
+  }
+
+  public long getCount(Operation operation) {
+    return counts[operation.ordinal()].sum();
+  }
+
+  public double getTotalMillis(Operation operation) {
+    return totalNanos[operation.ordinal()].sum() / 1e6;
+  }
+
+  public double getMaxMillis(Operation operation) {
+    return maxNanos.get(operation.ordinal()) / 1e6;
+  }
+
+  @Override
+  public long getAnnotationRemovedCount() {
+    return getCount(Operation.ANNOTATION_REMOVED);
+  }
+
+  @Override
+  public double getAnnotationRemovedTotalMillis() {
+    return getTotalMillis(Operation.ANNOTATION_REMOVED);
+  }
+
+  @Override
+  public double getAnnotationRemovedMaxMillis() {
+    return getMaxMillis(Operation.ANNOTATION_REMOVED);
+  }
+
+  @Override
+  public long getTransitiveQueryCount() {
+    return getCount(Operation.TRANSITIVE_QUERY);
+  }
+
+  @Override
+  public double getTransitiveQueryTotalMillis() {
+    return getTotalMillis(Operation.TRANSITIVE_QUERY);
+  }
+
+  @Override
+  public double getTransitiveQueryMaxMillis() {
+    return getMaxMillis(Operation.TRANSITIVE_QUERY);
+  }
+
+  @Override
+  public long getClusteringCount() {
+    return getCount(Operation.CLUSTERING);
+  }
+
+  @Override
+  public double getClusteringTotalMillis() {
+    return getTotalMillis(Operation.CLUSTERING);
+  }
+
+  @Override
+  public double getClusteringMaxMillis() {
+    return getMaxMillis(Operation.CLUSTERING);
+  }
+
+  @Override
+  public int getGraphCount() {
+    return AnnotationGraph.getActiveGraphs().size();
+  }
+
+  @Override
+  public String[] computeGraphStatistics() {
+    List<AnnotationGraph> graphs = AnnotationGraph.getActiveGraphs();
+    String[] ret = new String[graphs.size()];
+    for(int i=0; i<ret.length; i++) {
+      try {
+        ret[i] = graphs.get(i).getStatistics().toString();
+      } catch(RuntimeException ex) {
+        // the graph got changed or closed by another thread while we looked at it
+        ret[i] = "not available: "+ex;
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public void reset() {
+    for(int i=0; i<N; i++) {
+      counts[i].reset();
+      totalNanos[i].reset();
+      maxNanos.set(i, 0);
+    }
+  }
+
+}
@@ -0,0 +1,36 @@
+package gate.plugins.annotationgraphs;
+
+/**
+ * The management interface of JmxGraphMetrics.
+ *
+ * @author Johann Petrak
+ */
+public interface JmxGraphMetricsMBean {
+
+  public long getAnnotationRemovedCount();
+  public double getAnnotationRemovedTotalMillis();
+  public double getAnnotationRemovedMaxMillis();
+
+  public long getTransitiveQueryCount();
+  public double getTransitiveQueryTotalMillis();
+  public double getTransitiveQueryMaxMillis();
+
+  public long getClusteringCount();
+  public double getClusteringTotalMillis();
+  public double getClusteringMaxMillis();
+
+  /**
+   * The number of currently active graphs.
+   */
+  public int getGraphCount();
+
+  /**
+   * Compute the node and edge counts and degree distributions of all currently active graphs.
+   * This is an operation rather than an attribute, so that JMX clients do not run it each
+   * time they poll the attributes: it takes one pass over each graph.
+   */
+  public String[] computeGraphStatistics();
+
+  public void reset();
+
+}
@@ -0,0 +1,192 @@
+package gate.plugins.annotationgraphs;
+
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.LanguageAnalyser;
+import gate.creole.ExecutionException;
+import gate.creole.ResourceInstantiationException;
+import gate.util.GateRuntimeException;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a language analyser, e.g. an AnnotationGraphBuilder, over all documents of a corpus
+ * on a fixed number of threads.
+ * <p>
+ * The analyser gets duplicated with Factory.duplicate once for each thread when the executor
+ * is created, so each document is processed by an instance which no other thread uses at the
+ * same time. Documents get loaded from and unloaded to the corpus the same way a GATE corpus
+ * controller does it, with the corpus locked, since corpora are not thread-safe.
+ * The analyser must not share state between documents other than its parameters.
+ * <p>
+ * The executor can be used for any number of corpora, one after the other, and must be
+ * closed to stop the threads and delete the duplicated analysers.
+ *
+ * @author Johann Petrak
+ */
+public class ParallelCorpusExecutor implements Closeable {
+
+  protected ExecutorService pool;
+  protected List<LanguageAnalyser> duplicates = new ArrayList<LanguageAnalyser>();
+  // the duplicates which are not in use by a thread right now
+  protected BlockingQueue<LanguageAnalyser> idle;
+
+  /**
+   * Create an executor which uses the given number of threads, or as many threads as there
+   * are processors, if nThreads is 0 or less.
+   * @param analyser
+   * @param nThreads
+   * @throws ResourceInstantiationException
+   */
+  public ParallelCorpusExecutor(LanguageAnalyser analyser, int nThreads) throws ResourceInstantiationException {
+    if(nThreads <= 0) {
+      nThreads = Runtime.getRuntime().availableProcessors();
+    }
+    idle = new ArrayBlockingQueue<LanguageAnalyser>(nThreads);
+    try {
+      for(int i=0; i<nThreads; i++) {
+        LanguageAnalyser duplicate = (LanguageAnalyser)Factory.duplicate(analyser);
+        duplicates.add(duplicate);
+        idle.add(duplicate);
+      }
+    } catch(ResourceInstantiationException ex) {
+      deleteDuplicates();
+      throw ex;
+    }
+    pool = Executors.newFixedThreadPool(nThreads);
+  }
+
+  public int getNumberOfThreads() {
+    return duplicates.size();
+  }
+
+  /**
+   * Process all documents of the corpus and return when all are done.
+   * If processing a document fails, the documents which have not been started yet are
+   * skipped and the exception for the first failed document gets thrown.
+   * @param corpus
+   * @throws ExecutionException
+   */
+  public void execute(final Corpus corpus) throws ExecutionException {
+    if(pool == null) {
+      throw new GateRuntimeException("Executor is already closed");
+    }
+    final AtomicBoolean failed = new AtomicBoolean(false);
+    int n;
+    synchronized(corpus) {
+      n = corpus.size();
+    }
+    List<Future<Void>> futures = new ArrayList<Future<Void>>(n);
+    for(int i=0; i<n; i++) {
+      final int docNr = i;
+      futures.add(pool.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          if(!failed.get()) {
+            try {
+              process(corpus, docNr);
+            } catch(Exception ex) {
+              failed.set(true);
+              throw ex;
+            }
+          }
+          return null;
+        }
+      }));
+    }
+    ExecutionException first = null;
+    for(int i=0; i<n; i++) {
+      try {
+        futures.get(i).get();
+      } catch(InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        for(Future<Void> f : futures) {
+          f.cancel(true);
+        }
+        throw new ExecutionException("Interrupted while processing corpus "+corpus.getName(), ex);
+      } catch(java.util.concurrent.ExecutionException ex) {
+        if(first == null) {
+          Throwable cause = ex.getCause();
+          first = cause instanceof ExecutionException ? (ExecutionException)cause :
+                  new ExecutionException("Error processing document "+i+" of corpus "+corpus.getName(), cause);
+        }
+      }
+    }
+    if(first != null) {
+      throw first;
+    }
+  }
+
+  protected void process(Corpus corpus, int docNr) throws ExecutionException, InterruptedException {
+    Document doc;
+    boolean wasLoaded;
+    synchronized(corpus) {
+      wasLoaded = corpus.isDocumentLoaded(docNr);
+      doc = corpus.get(docNr);
+    }
+    // a document loaded for this run gets unloaded even if the analyser fails
+    try {
+      LanguageAnalyser analyser = idle.take();
+      try {
+        analyser.setCorpus(corpus);
+        analyser.setDocument(doc);
+        analyser.execute();
+      } finally {
+        analyser.setDocument(null);
+        analyser.setCorpus(null);
+        idle.put(analyser);
+      }
+    } finally {
+      if(!wasLoaded) {
+        synchronized(corpus) {
+          corpus.unloadDocument(doc);
+        }
+        Factory.deleteResource(doc);
+      }
+    }
+  }
+
+  /**
+   * Stop the threads and delete the duplicated analysers.
+   * Documents which are being processed get interrupted, and this waits until their 
+   * analysers are done, since an analyser may only notice the interrupt after it finished
+   * the document. If the calling thread gets interrupted while waiting, only the analysers 
+   * which are not in use any more get deleted.
+   */
+  @Override
+  public void close() {
+    if(pool == null) {
+      return;
+    }
+    pool.shutdownNow();
+    try {
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch(InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      List<LanguageAnalyser> unused = new ArrayList<LanguageAnalyser>();
+      idle.drainTo(unused);
+      duplicates.retainAll(unused);
+    }
+    pool = null;
+    deleteDuplicates();
+  }
+
+  protected void deleteDuplicates() {
+    for(LanguageAnalyser duplicate : duplicates) {
+      Factory.deleteResource(duplicate);
+    }
+    duplicates.clear();
+    idle.clear();
+  }
+
+}
@@ -0,0 +1,500 @@
+package gate.plugins.annotationgraphs;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.util.GateRuntimeException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A compiled path expression over the edges of an AnnotationGraph.
+ * <p>
+ * A path is a sequence of steps separated by "/", e.g. "members/type" first follows the
+ * "members" edges and then the "type" edges of the annotations reached. Each step is an
+ * edge name, optionally followed by a quantifier and predicates:
+ * <ul>
+ * <li>"^members" follows the members edges backwards, from the target to the source.
+ * <li>"members*" follows any number of members edges, including none, "members+" at least
+ * one and "members?" at most one.
+ * <li>"members[Person]" only keeps the reached annotations of type Person, "[Person|Org]"
+ * those of either type.
+ * <li>"[@kind]" only keeps annotations which have the feature kind, "[@kind=PER]" those
+ * where the feature has that value and "[@kind!=PER]" all others. Feature values are compared
+ * by their string value, values which contain other characters than letters, digits and
+ * "_-.:" must be quoted with single or double quotes.
+ * </ul>
+ * Several predicates of a step must all be true, they are checked for the annotations at the
+ * end of the step, not for those reached within a quantified step.
+ * <p>
+ * A query runs breadth first over all start annotations at once: each step turns the list of
+ * (start, current) pairs into the list of (start, next) pairs. The edges of each distinct
+ * current annotation are only read once per step, no matter how many pairs contain it, and
+ * each distinct annotation is only tested once against the predicates of the step. The
+ * pairs are joined with the edges by a hash map from the current annotation id,
+ * nothing but primitive int lists and maps is allocated per pair or annotation.
+ * <p>
+ * A query is immutable and can be used for any number of graphs, also by several threads.
+ * For a ConcurrentAnnotationGraph, each step reads the edges of each annotation at a single
+ * point in time.
+ *
+ * @author Johann Petrak
+ */
+public class PathQuery {
+
+  protected static enum Quantifier {
+    ONE,
+    OPTIONAL,
+    STAR,
+    PLUS
+  }
+
+  protected final String path;
+  protected final Step[] steps;
+
+  protected PathQuery(String path, Step[] steps) {
+    this.path = path;
+    this.steps = steps;
+  }
+
+  /**
+   * Parse the path expression into a query.
+   * @param path
+   * @return
+   */
+  public static PathQuery compile(String path) {
+    if(path == null) {
+      throw new GateRuntimeException("Path must not be null");
+    }
+    return new Parser(path).parse();
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * Return the edge names used by the query.
+   * @return
+   */
+  public Set<String> getEdgeNames() {
+    Set<String> ret = new HashSet<String>();
+    for(Step step : steps) {
+      ret.add(step.edgeName);
+    }
+    return ret;
+  }
+
+  /**
+   * Return the ids of all annotations at the end of the path from the annotation, in the
+   * order they were reached.
+   * @param ag
+   * @param start
+   * @return
+   */
+  public int[] getIds(AnnotationGraph ag, Annotation start) {
+    ag.ensureActive();
+    ag.ensureAnnotation(start);
+    return execute(ag, new int[]{start.getId()}, true).targetIds;
+  }
+
+  /**
+   * Return the ids of all annotations at the end of the path from any of the annotations,
+   * each only once, in the order they were reached.
+   * @param ag
+   * @param starts
+   * @return
+   */
+  public int[] getIds(AnnotationGraph ag, Collection<Annotation> starts) {
+    return execute(ag, startIds(ag, starts), true).targetIds;
+  }
+
+  public List<Annotation> getAnnotations(AnnotationGraph ag, Annotation start) {
+    return toAnnotations(ag, getIds(ag, start));
+  }
+
+  public AnnotationSet getAnnotationSet(AnnotationGraph ag, Annotation start) {
+    return ag.toAnnotationSet(getIds(ag, start));
+  }
+
+  /**
+   * Return all pairs of a start annotation and an annotation at the end of the path from it.
+   * The pairs are grouped by start annotation, in the order of starts, each pair occurs once.
+   * @param ag
+   * @param starts
+   * @return
+   */
+  public Result evaluate(AnnotationGraph ag, Collection<Annotation> starts) {
+    return execute(ag, startIds(ag, starts), false);
+  }
+
+  @Override
+  public String toString() {
+    return "PathQuery("+path+")";
+  }
+
+  /////////////////////////////
+  // EXECUTION
+  /////////////////////////////
+
+  /**
+   * Return the ids of the start annotations, without duplicates.
+   */
+  protected int[] startIds(AnnotationGraph ag, Collection<Annotation> starts) {
+    ag.ensureActive();
+    IntIntMap seen = new IntIntMap(starts.size());
+    IntList ids = new IntList(starts.size());
+    for(Annotation start : starts) {
+      ag.ensureAnnotation(start);
+      if(seen.put(start.getId(), 1)) {
+        ids.addInt(start.getId());
+      }
+    }
+    return ids.toIntArray();
+  }
+
+  /**
+   * Run all steps. If merge is true, all start ids count as the same start, so the result
+   * contains each reached id once.
+   */
+  protected Result execute(AnnotationGraph ag, int[] startIds, boolean merge) {
+    for(Step step : steps) {
+      ag.ensureEdge(step.edgeName);
+    }
+    IntList origins = new IntList(startIds.length);
+    IntList currents = new IntList(startIds);
+    IntList nextOrigins = new IntList();
+    IntList nextCurrents = new IntList();
+    for(int i=0; i<startIds.length; i++) {
+      origins.addInt(merge ? 0 : startIds[i]);
+    }
+    for(Step step : steps) {
+      if(currents.isEmpty()) {
+        break;
+      }
+      nextOrigins.clear();
+      nextCurrents.clear();
+      join(ag, step, origins, currents, nextOrigins, nextCurrents);
+      IntList tmp = origins;
+      origins = nextOrigins;
+      nextOrigins = tmp;
+      tmp = currents;
+      currents = nextCurrents;
+      nextCurrents = tmp;
+    }
+    return new Result(origins.toIntArray(), currents.toIntArray());
+  }
+
+  /**
+   * Join the (origin, current) pairs with the edges of the step.
+   * The pairs come grouped by origin and each step keeps that grouping, so duplicate pairs
+   * can be found with a single map from target id to the number of the last origin group
+   * which reached it.
+   */
+  protected void join(AnnotationGraph ag, Step step, IntList origins, IntList currents,
+          IntList nextOrigins, IntList nextCurrents) {
+    // the targets of each distinct current id, stored one after the other
+    IntIntMap expanded = new IntIntMap();
+    IntList targets = new IntList();
+    IntList starts = new IntList();
+    IntList ends = new IntList();
+    // 1 if the annotation passes the predicates, 0 if not
+    IntIntMap tested = step.predicates.length == 0 ? null : new IntIntMap();
+    GraphTraversal traversal = null;
+    if(step.quantifier == Quantifier.STAR || step.quantifier == Quantifier.PLUS) {
+      traversal = ag.newTraversal(step.edgeName);
+      traversal.setDirection(step.reverse ? GraphTraversal.Direction.REVERSE : GraphTraversal.Direction.FORWARD);
+    }
+    IntIntMap seen = new IntIntMap();
+    int group = -1;
+    int n = currents.size();
+    for(int i=0; i<n; i++) {
+      int origin = origins.getInt(i);
+      if(i == 0 || origin != origins.getInt(i-1)) {
+        group++;
+      }
+      int current = currents.getInt(i);
+      int k = expanded.get(current, -1);
+      if(k < 0) {
+        k = starts.size();
+        expanded.put(current, k);
+        starts.addInt(targets.size());
+        expand(ag, step, traversal, current, tested, targets);
+        ends.addInt(targets.size());
+      }
+      int end = ends.getInt(k);
+      for(int j=starts.getInt(k); j<end; j++) {
+        int target = targets.getInt(j);
+        if(seen.get(target, -1) != group) {
+          seen.put(target, group);
+          nextOrigins.addInt(origin);
+          nextCurrents.addInt(target);
+        }
+      }
+    }
+  }
+
+  /**
+   * Add the ids reached from the current id with the step to targets, if they pass the
+   * predicates of the step.
+   */
+  protected void expand(AnnotationGraph ag, Step step, GraphTraversal traversal, int current,
+          IntIntMap tested, IntList targets) {
+    Annotation ann = ag.annotationById(current);
+    if(ann == null) {
+      return;
+    }
+    if(step.quantifier == Quantifier.OPTIONAL || step.quantifier == Quantifier.STAR) {
+      addTarget(ag, step, current, tested, targets);
+    }
+    if(traversal != null) {
+      for(int id : traversal.run(current)) {
+        addTarget(ag, step, id, tested, targets);
+      }
+    } else {
+      IntCursor cursor = step.reverse ? ag.getReferencingIdCursor(step.edgeName, ann) :
+              ag.getIdCursor(step.edgeName, ann);
+      while(cursor.hasNext()) {
+        addTarget(ag, step, cursor.next(), tested, targets);
+      }
+    }
+  }
+
+  protected void addTarget(AnnotationGraph ag, Step step, int id, IntIntMap tested, IntList targets) {
+    if(tested != null) {
+      int ok = tested.get(id, -1);
+      if(ok < 0) {
+        Annotation ann = ag.annotationById(id);
+        ok = ann != null && step.test(ann) ? 1 : 0;
+        tested.put(id, ok);
+      }
+      if(ok == 0) {
+        return;
+      }
+    }
+    targets.addInt(id);
+  }
+
+  protected static List<Annotation> toAnnotations(AnnotationGraph ag, int[] ids) {
+    List<Annotation> ret = new ArrayList<Annotation>(ids.length);
+    for(int id : ids) {
+      ret.add(ag.annotationById(id));
+    }
+    return ret;
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  /// INTERNAL CLASSES
+  ///////////////////////////////////////////////////////////////////////
+
+  /**
+   * The pairs of start and end annotation ids found by evaluate. The arrays are shared,
+   * not copied, and must not be changed.
+   */
+  public static class Result {
+    protected final int[] sourceIds;
+    protected final int[] targetIds;
+
+    protected Result(int[] sourceIds, int[] targetIds) {
+      this.sourceIds = sourceIds;
+      this.targetIds = targetIds;
+    }
+
+    public int size() {
+      return targetIds.length;
+    }
+
+    public int getSourceId(int i) {
+      return sourceIds[i];
+    }
+
+    public int getTargetId(int i) {
+      return targetIds[i];
+    }
+
+    public int[] getSourceIds() {
+      return sourceIds;
+    }
+
+    public int[] getTargetIds() {
+      return targetIds;
+    }
+  }
+
+  protected static class Step {
+    protected final String edgeName;
+    protected final boolean reverse;
+    protected final Quantifier quantifier;
+    protected final Predicate[] predicates;
+
+    protected Step(String edgeName, boolean reverse, Quantifier quantifier, Predicate[] predicates) {
+      this.edgeName = edgeName;
+      this.reverse = reverse;
+      this.quantifier = quantifier;
+      this.predicates = predicates;
+    }
+
+    protected boolean test(Annotation ann) {
+      for(Predicate p : predicates) {
+        if(!p.test(ann)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A type test if feature is null, otherwise a feature test.
+   */
+  protected static class Predicate {
+    protected final String[] types;
+    protected final String feature;
+    protected final String value;
+    protected final boolean negated;
+
+    protected Predicate(String[] types, String feature, String value, boolean negated) {
+      this.types = types;
+      this.feature = feature;
+      this.value = value;
+      this.negated = negated;
+    }
+
+    protected boolean test(Annotation ann) {
+      if(feature == null) {
+        for(String type : types) {
+          if(type.equals(ann.getType())) {
+            return true;
+          }
+        }
+        return false;
+      }
+      Object fv = ann.getFeatures().get(feature);
+      if(value == null) {
+        return fv != null;
+      }
+      boolean equal = fv != null && value.equals(fv.toString());
+      return equal != negated;
+    }
+  }
+
+  /**
+   * Recursive descent parser for path expressions.
+   */
+  protected static class Parser {
+    protected final String path;
+    protected int pos = 0;
+
+    protected Parser(String path) {
+      this.path = path;
+    }
+
+    protected PathQuery parse() {
+      List<Step> steps = new ArrayList<Step>();
+      steps.add(step());
+      while(pos < path.length()) {
+        expect('/');
+        steps.add(step());
+      }
+      return new PathQuery(path, steps.toArray(new Step[steps.size()]));
+    }
+
+    protected Step step() {
+      boolean reverse = false;
+      if(peek() == '^') {
+        pos++;
+        reverse = true;
+      }
+      String edgeName = name();
+      Quantifier quantifier = Quantifier.ONE;
+      char c = peek();
+      if(c == '*') {
+        quantifier = Quantifier.STAR;
+      } else if(c == '+') {
+        quantifier = Quantifier.PLUS;
+      } else if(c == '?') {
+        quantifier = Quantifier.OPTIONAL;
+      }
+      if(quantifier != Quantifier.ONE) {
+        pos++;
+      }
+      List<Predicate> predicates = new ArrayList<Predicate>();
+      while(peek() == '[') {
+        pos++;
+        predicates.add(predicate());
+        expect(']');
+      }
+      return new Step(edgeName, reverse, quantifier, predicates.toArray(new Predicate[predicates.size()]));
+    }
+
+    protected Predicate predicate() {
+      if(peek() != '@') {
+        List<String> types = new ArrayList<String>();
+        types.add(value());
+        while(peek() == '|') {
+          pos++;
+          types.add(value());
+        }
+        return new Predicate(types.toArray(new String[types.size()]), null, null, false);
+      }
+      pos++;
+      String feature = value();
+      if(peek() == '=') {
+        pos++;
+        return new Predicate(null, feature, value(), false);
+      } else if(peek() == '!') {
+        pos++;
+        expect('=');
+        return new Predicate(null, feature, value(), true);
+      }
+      return new Predicate(null, feature, null, false);
+    }
+
+    protected String value() {
+      char quote = peek();
+      if(quote != '\'' && quote != '"') {
+        return name();
+      }
+      int end = path.indexOf(quote, pos+1);
+      if(end < 0) {
+        throw error("Unterminated quoted value");
+      }
+      String ret = path.substring(pos+1, end);
+      pos = end+1;
+      return ret;
+    }
+
+    protected String name() {
+      int start = pos;
+      while(pos < path.length() && isNameChar(path.charAt(pos))) {
+        pos++;
+      }
+      if(pos == start) {
+        throw error("Expected a name");
+      }
+      return path.substring(start, pos);
+    }
+
+    protected static boolean isNameChar(char c) {
+      return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.' || c == ':';
+    }
+
+    protected char peek() {
+      return pos < path.length() ? path.charAt(pos) : '\0';
+    }
+
+    protected void expect(char c) {
+      if(peek() != c) {
+        throw error("Expected '"+c+"'");
+      }
+      pos++;
+    }
+
+    protected GateRuntimeException error(String message) {
+      return new GateRuntimeException(message+" at position "+pos+" of path expression "+path);
+    }
+  }
+
+}
@@ -0,0 +1,262 @@
+package gate.plugins.annotationgraphs;
+
+import gate.Annotation;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The annotations of a collection, sorted by start offset, end offset and id.
+ * <p>
+ * The offsets are copied into primitive arrays when the index gets created, so all the
+ * methods which find groups of annotations by their offsets are single linear scans
+ * over these arrays and never look at the annotations or create any annotation sets.
+ * Groups are returned as boundaries into the sorted order: group g consists of the
+ * annotations at the positions from bounds[g] up to but not including bounds[g+1].
+ * <p>
+ * An annotation covers the offsets from its start offset up to but not including
+ * its end offset, two annotations overlap if they have at least one offset in common.
+ *
+ * @author Johann Petrak
+ */
+public class RangeIndex {
+
+  protected Annotation[] anns;
+  protected long[] starts;
+  protected long[] ends;
+
+  public RangeIndex(Collection<Annotation> annotations) {
+    int n = annotations.size();
+    Entry[] entries = new Entry[n];
+    int i = 0;
+    for(Annotation ann : annotations) {
+      entries[i++] = new Entry(ann);
+    }
+    Arrays.sort(entries, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry e1, Entry e2) {
+        if(e1.start != e2.start) { return e1.start < e2.start ? -1 : 1; }
+        if(e1.end != e2.end) { return e1.end < e2.end ? -1 : 1; }
+        return Integer.compare(e1.id, e2.id);
+      }
+    });
+    anns = new Annotation[n];
+    starts = new long[n];
+    ends = new long[n];
+    for(i=0; i<n; i++) {
+      anns[i] = entries[i].ann;
+      starts[i] = entries[i].start;
+      ends[i] = entries[i].end;
+    }
+  }
+
+  public int size() {
+    return anns.length;
+  }
+
+  public Annotation get(int pos) {
+    return anns[pos];
+  }
+
+  public long getStart(int pos) {
+    return starts[pos];
+  }
+
+  public long getEnd(int pos) {
+    return ends[pos];
+  }
+
+  /**
+   * Return the largest end offset of the annotations from position from up to but
+   * not including position to.
+   * @param from
+   * @param to
+   * @return
+   */
+  public long getMaxEnd(int from, int to) {
+    long max = Long.MIN_VALUE;
+    for(int i=from; i<to; i++) {
+      if(ends[i] > max) { max = ends[i]; }
+    }
+    return max;
+  }
+
+  /**
+   * Return the largest end offset of the annotations at the given positions.
+   * @param positions
+   * @return 
+   */
+  public long getMaxEnd(int[] positions) {
+    long max = Long.MIN_VALUE;
+    for(int pos : positions) {
+      if(ends[pos] > max) { max = ends[pos]; }
+    }
+    return max;
+  }
+
+  /**
+   * Find the groups of annotations which are connected by overlaps.
+   * Two annotations are in the same group if they overlap or if there is a chain of
+   * annotations in the group between them where each overlaps with the next. Since the
+   * annotations are sorted by start offset, each group is a contiguous run: a new group
+   * starts whenever an annotation starts at or after the largest end offset seen so far.
+   * @return the group boundaries
+   */
+  public int[] overlapComponents() {
+    int n = anns.length;
+    IntList bounds = new IntList();
+    long maxEnd = Long.MIN_VALUE;
+    for(int i=0; i<n; i++) {
+      if(i == 0 || starts[i] >= maxEnd) {
+        bounds.addInt(i);
+        maxEnd = ends[i];
+      } else if(ends[i] > maxEnd) {
+        maxEnd = ends[i];
+      }
+    }
+    bounds.addInt(n);
+    return bounds.toIntArray();
+  }
+
+  /**
+   * Find the groups of coextensive annotations, i.e. annotations with the same start and
+   * end offset. Since the annotations are sorted by start and then end offset, each group
+   * is a contiguous run and within the group the annotations are sorted by id.
+   * @return the group boundaries
+   */
+  public int[] coextensiveGroups() {
+    int n = anns.length;
+    IntList bounds = new IntList();
+    for(int i=0; i<n; i++) {
+      if(i == 0 || starts[i] != starts[i-1] || ends[i] != ends[i-1]) {
+        bounds.addInt(i);
+      }
+    }
+    bounds.addInt(n);
+    return bounds.toIntArray();
+  }
+
+  /**
+   * Return the clusters of annotations overlapping with a seed annotation, as a lazy stream.
+   * The annotations are visited in order of their start offset, each annotation which is not 
+   * yet in a cluster becomes the seed of a new cluster, which contains the seed and all 
+   * annotations overlapping with it, whether they are already in some other cluster or not.
+   * So each annotation is in at least one cluster, and all annotations in a cluster overlap 
+   * with its seed. 
+   * <p>
+   * The clusters get computed one by one as the stream is consumed, using a heap of the
+   * annotations which started before the seed and have not yet ended, so each cluster only
+   * costs time proportional to its size plus a logarithmic factor. The stream is sequential 
+   * and ordered by the start offset of the seeds.
+   * @return a stream of clusters, each an array of positions in increasing order
+   */
+  public Stream<int[]> sequentialOverlapClusters() {
+    return StreamSupport.stream(new SequentialClusterSpliterator(), false);
+  }
+
+  protected boolean overlaps(int pos1, int pos2) {
+    return starts[pos1] < ends[pos2] && starts[pos2] < ends[pos1];
+  }
+
+  protected class SequentialClusterSpliterator extends Spliterators.AbstractSpliterator<int[]> {
+    // the next position to consider as a seed
+    protected int next = 0;
+    protected BitSet seen = new BitSet(anns.length);
+    // min-heap by end offset of all positions before next which may still overlap a later seed
+    protected int[] heap = new int[16];
+    protected int heapSize = 0;
+    protected IntList cluster = new IntList();
+
+    protected SequentialClusterSpliterator() {
+      super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super int[]> action) {
+      int n = anns.length;
+      while(next < n && seen.get(next)) {
+        push(next++);
+      }
+      if(next >= n) {
+        return false;
+      }
+      int seed = next;
+      // annotations which ended at or before the seed start cannot overlap it or any later seed
+      while(heapSize > 0 && ends[heap[0]] <= starts[seed]) {
+        pop();
+      }
+      cluster.clear();
+      for(int i=0; i<heapSize; i++) {
+        if(overlaps(heap[i], seed)) {
+          cluster.addInt(heap[i]);
+        }
+      }
+      cluster.addInt(seed);
+      seen.set(seed);
+      // the annotations after the seed which start before it ends
+      for(int i=seed+1; i<n && starts[i] < ends[seed]; i++) {
+        if(overlaps(i, seed)) {
+          cluster.addInt(i);
+          seen.set(i);
+        }
+      }
+      push(next++);
+      int[] ret = cluster.toIntArray();
+      Arrays.sort(ret);
+      action.accept(ret);
+      return true;
+    }
+
+    protected void push(int pos) {
+      if(heapSize == heap.length) {
+        heap = Arrays.copyOf(heap, heapSize*2);
+      }
+      int i = heapSize++;
+      long end = ends[pos];
+      while(i > 0) {
+        int parent = (i-1) >>> 1;
+        if(ends[heap[parent]] <= end) { break; }
+        heap[i] = heap[parent];
+        i = parent;
+      }
+      heap[i] = pos;
+    }
+
+    protected void pop() {
+      int last = heap[--heapSize];
+      long end = ends[last];
+      int i = 0;
+      while(true) {
+        int child = 2*i+1;
+        if(child >= heapSize) { break; }
+        if(child+1 < heapSize && ends[heap[child+1]] < ends[heap[child]]) { child++; }
+        if(ends[heap[child]] >= end) { break; }
+        heap[i] = heap[child];
+        i = child;
+      }
+      if(heapSize > 0) {
+        heap[i] = last;
+      }
+    }
+  }
+
+  protected static class Entry {
+    protected final Annotation ann;
+    protected final long start;
+    protected final long end;
+    protected final int id;
+    protected Entry(Annotation ann) {
+      this.ann = ann;
+      this.start = ann.getStartNode().getOffset();
+      this.end = ann.getEndNode().getOffset();
+      this.id = ann.getId();
+    }
+  }
+
+}
@@ -16,21 +16,43 @@ import gate.Utils;
 import gate.annotation.AnnotationSetImpl;
 import gate.creole.ResourceInstantiationException;
 import gate.plugins.annotationgraphs.AnnotationGraph;
+import gate.plugins.annotationgraphs.Edge;
+import gate.plugins.annotationgraphs.EdgeListCodec;
+import gate.plugins.annotationgraphs.FrozenAnnotationGraph;
+import gate.plugins.annotationgraphs.GraphSnapshotReader;
+import gate.plugins.annotationgraphs.GraphSnapshotWriter;
+import gate.plugins.annotationgraphs.GraphStatistics;
+import gate.plugins.annotationgraphs.IndexedIntList;
+import gate.plugins.annotationgraphs.IntCursor;
+import gate.plugins.annotationgraphs.IntList;
+import gate.plugins.annotationgraphs.JmxGraphMetrics;
 import gate.util.GateException;
+import gate.util.GateRuntimeException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import org.junit.Before;
 import org.junit.Test;
+import java.util.function.BiPredicate;
 import java.util.function.Predicate;
 
 /**
@@ -213,6 +235,800 @@ public class Test1 {
     
   }
   
+  @Test
+  public void test02() throws ResourceInstantiationException {
+    logger.debug("Running test test02");
+
+    Document d = Factory.newDocument(new String(new char[10]).replace('\0', ' '));
+    AnnotationSet set = d.getAnnotations("Set1");
+    AnnotationGraph ag = AnnotationGraph.getAnnotationGraph(d, set);
+    ag.addEdgeName("m");
+
+    Annotation a1 = ann(set,0,1,"A1",Utils.featureMap());
+    Annotation a2 = ann(set,1,2,"A2",Utils.featureMap());
+    Annotation a3 = ann(set,2,3,"A3",Utils.featureMap());
+
+    // the default storage uses plain ArrayLists, which can be saved without the plugin
+    assertEquals(AnnotationGraph.EdgeStorage.BOXED,ag.getEdgeStorage());
+    ag.addEdge("m", a1, a2);
+    assertTrue(a1.getFeatures().get("_ag.to.m") instanceof ArrayList);
+    assertTrue(a2.getFeatures().get("_ag.from.m") instanceof ArrayList);
+    assertEquals(a2.getId(),ag.getIds("m",a1).get(0));
+
+    // switching to primitive storage only affects newly created lists, old ones still work
+    ag.setEdgeStorage(AnnotationGraph.EdgeStorage.PRIMITIVE);
+    ag.addEdge("m", a3, a1);
+    assertTrue(a3.getFeatures().get("_ag.to.m") instanceof IntList);
+    ag.addEdge("m", a1, a3);
+    assertEquals(2,ag.getEdgeSize("m", a1));
+    assertEquals(2,ag.getIdArray("m", a1).length);
+    assertEquals(a3.getId().intValue(),ag.getIdArray("m", a1)[1]);
+    assertTrue(ag.hasEdge("m", a3, a1));
+
+    ag.removeEdges("m", a1);
+    assertFalse(ag.hasEdges("m", a1));
+    assertFalse(ag.hasReferencingEdges("m", a2));
+    assertTrue(ag.hasReferencingEdges("m", a1));
+  }
+
+  @Test
+  public void test03() throws ResourceInstantiationException {
+    logger.debug("Running test test03");
+
+    Document d = Factory.newDocument(new String(new char[10]).replace('\0', ' '));
+    AnnotationSet set = d.getAnnotations("Set1");
+    AnnotationGraph ag = AnnotationGraph.getAnnotationGraph(d, set);
+    ag.addEdgeName("m");
+    ag.setEdgeStorage(AnnotationGraph.EdgeStorage.HASHED);
+
+    Annotation hub = ann(set,0,10,"Hub",Utils.featureMap());
+    List<Annotation> members = new ArrayList<Annotation>();
+    for(int i=0; i<100; i++) {
+      Annotation m = ann(set,i%10,i%10+1,"M",Utils.featureMap("n",i));
+      members.add(m);
+      ag.addEdge("m", hub, m);
+    }
+    // adding an existing edge again does nothing in hashed mode
+    ag.addEdge("m", hub, members.get(5));
+    assertEquals(100,ag.getEdgeSize("m", hub));
+
+    // remove every other edge, the remaining ones must keep their insertion order
+    for(int i=0; i<100; i+=2) {
+      ag.removeEdge("m", hub, members.get(i));
+    }
+    assertEquals(50,ag.getEdgeSize("m", hub));
+    assertFalse(ag.hasEdge("m", hub, members.get(10)));
+    assertTrue(ag.hasEdge("m", hub, members.get(11)));
+    List<Annotation> targets = ag.getAnnotations("m", hub);
+    for(int i=0; i<50; i++) {
+      assertEquals(members.get(2*i+1),targets.get(i));
+    }
+
+    // removing an annotation updates the hub's list through the listener
+    set.remove(members.get(11));
+    assertFalse(ag.getIds("m", hub).contains(members.get(11).getId()));
+    assertEquals(49,ag.getEdgeSize("m", hub));
+
+    ag.grepEdges("m", hub, new Predicate<Annotation>() {
+      @Override
+      public boolean test(Annotation ann) {
+        return ((Integer)ann.getFeatures().get("n")) < 50;
+      }
+    });
+    assertEquals(24,ag.getEdgeSize("m", hub));
+    assertFalse(ag.hasReferencingEdges("m", members.get(51)));
+    assertTrue(ag.hasReferencingEdges("m", members.get(49)));
+  }
+
+  @Test
+  public void test04() throws ResourceInstantiationException {
+    logger.debug("Running test test04");
+
+    Document d = Factory.newDocument(new String(new char[10]).replace('\0', ' '));
+    AnnotationSet set = d.getAnnotations("Set1");
+    AnnotationGraph ag = AnnotationGraph.getAnnotationGraph(d, set);
+    ag.addEdgeNames("m","n");
+
+    Annotation r1 = ann(set,0,5,"R1",Utils.featureMap());
+    Annotation l1 = ann(set,0,1,"L1",Utils.featureMap());
+    Annotation l2 = ann(set,2,3,"L2",Utils.featureMap());
+    Annotation m1 = ann(set,0,1,"M1",Utils.featureMap());
+    Annotation m2 = ann(set,2,3,"M2",Utils.featureMap());
+    ag.addEdge("m", r1, l1);
+    ag.addEdge("m", r1, l2);
+    ag.addEdge("m", l1, m1);
+    ag.addEdge("m", l2, m1);
+    ag.addEdge("m", l2, m2);
+    ag.addEdge("n", m2, r1);
+
+    FrozenAnnotationGraph fg = ag.snapshot();
+    assertEquals(5,fg.getNodeCount());
+    assertEquals(5,fg.getEdgeCount("m"));
+    assertEquals(ag.getAnnotations("m", r1),fg.getAnnotations("m", r1));
+    assertEquals(2,fg.getEdgeSize("m", l2));
+    assertEquals(0,fg.getEdgeSize("m", m1));
+    assertEquals(2,fg.getReferencingAnnotations("m", m1).size());
+    assertTrue(fg.getReferencingAnnotations("m", m1).contains(l1));
+    assertTrue(fg.getReferencingAnnotations("m", m1).contains(l2));
+    assertEquals(m2,fg.getReferencingAnnotations("n", r1).get(0));
+    assertTrue(fg.hasEdge("m", l2, m2));
+    assertFalse(fg.hasEdge("m", m2, l2));
+
+    AnnotationSet trans = fg.getTransitiveAnnotationSet("m", r1);
+    assertEquals(ag.getTransitiveAnnotationSet("m", r1),trans);
+    assertEquals(4,trans.size());
+    assertFalse(trans.contains(r1));
+
+    // the snapshot does not see later changes
+    ag.removeEdge("m", r1, l1);
+    assertEquals(2,fg.getEdgeSize("m", r1));
+  }
+
+  @Test
+  public void test05() throws ResourceInstantiationException {
+    logger.debug("Running test test05");
+
+    Document d = Factory.newDocument(new String(new char[10]).replace('\0', ' '));
+    AnnotationSet set = d.getAnnotations("Set1");
+    AnnotationGraph ag = AnnotationGraph.getAnnotationGraph(d, set);
+    ag.addEdgeNames("bulk","single");
+
+    List<Annotation> anns = new ArrayList<Annotation>();
+    for(int i=0; i<20; i++) {
+      anns.add(ann(set,i%10,i%10+1,"A",Utils.featureMap()));
+    }
+    int n = 100;
+    int[] fromIds = new int[n];
+    int[] toIds = new int[n];
+    for(int i=0; i<n; i++) {
+      Annotation from = anns.get((i*7)%20);
+      Annotation to = anns.get((i*13+5)%20);
+      fromIds[i] = from.getId();
+      toIds[i] = to.getId();
+      ag.addEdge("single", from, to);
+    }
+    ag.addEdges("bulk", fromIds, toIds);
+    // the bulk edges must be exactly the same as those added one by one, in the same order
+    for(Annotation ann : anns) {
+      assertEquals(ag.getIds("single", ann),ag.getIds("bulk", ann));
+      assertEquals(ag.getReferencingIds("single", ann),ag.getReferencingIds("bulk", ann));
+    }
+
+    // an unknown id must not change anything
+    Annotation a0 = anns.get(0);
+    int size = ag.getEdgeSize("bulk", a0);
+    try {
+      ag.addEdges("bulk", new int[]{a0.getId(), a0.getId()}, new int[]{anns.get(1).getId(), 9999});
+      assertTrue("Expected an exception for an unknown id",false);
+    } catch(GateRuntimeException ex) {
+      // expected
+    }
+    assertEquals(size,ag.getEdgeSize("bulk", a0));
+  }
+
+  @Test
+  public void test06() throws ResourceInstantiationException {
+    logger.debug("Running test test06");
+
+    Document d = Factory.newDocument(new String(new char[10]).replace('\0', ' '));
+    AnnotationSet set = d.getAnnotations("Set1");
+    AnnotationGraph ag = AnnotationGraph.getAnnotationGraph(d, set);
+    ag.addEdgeName("m");
+
+    Annotation ll = ann(set,0,5,"LL",Utils.featureMap());
+    for(int i=0; i<6; i++) {
+      ag.addEdge("m", ll, ann(set,i,i+1,"Cand",Utils.featureMap("keep",i%2==0)));
+    }
+
+    IntCursor cursor = ag.getIdCursor("m", ll);
+    int n = 0;
+    while(cursor.hasNext()) {
+      assertEquals(ag.getIds("m", ll).get(n++).intValue(),cursor.next());
+    }
+    assertEquals(6,n);
+    assertFalse(ag.getReferencingIdCursor("m", ll).hasNext());
+
+    // remove edges while iterating, as in the candidate filtering in PLAN.txt
+    Iterator<Annotation> it = ag.getAnnotationsIterator("m", ll);
+    while(it.hasNext()) {
+      Annotation cand = it.next();
+      if(!(Boolean)cand.getFeatures().get("keep")) {
+        it.remove();
+      }
+    }
+    assertEquals(3,ag.getEdgeSize("m", ll));
+    for(Annotation cand : ag.getAnnotations("m", ll)) {
+      assertTrue((Boolean)cand.getFeatures().get("keep"));
+      Iterator<Annotation> rit = ag.getReferencingAnnotationsIterator("m", cand);
+      assertEquals(ll,rit.next());
+      assertFalse(rit.hasNext());
+    }
+  }
+
+  @Test
+  public void test07() throws ResourceInstantiationException {
+    logger.debug("Running test test07");
+
+    Document d = Factory.newDocument(new String(new char[10]).replace('\0', ' '));
+    AnnotationSet set = d.getAnnotations("Set1");
+    AnnotationGraph ag = AnnotationGraph.getAnnotationGraph(d, set);
+    ag.addEdgeName("m");
+
+    // one hub with many edges, a few annotations with one edge each, and some without edges
+    List<Annotation> anns = new ArrayList<Annotation>();
+    for(int i=0; i<50; i++) {
+      anns.add(ann(set,i%10,i%10+1,"A",Utils.featureMap()));
+    }
+    long expectedSum = 0;
+    for(int i=1; i<50; i++) {
+      ag.addEdge("m", anns.get(0), anns.get(i));
+      expectedSum += anns.get(i).getId();
+    }
+    for(int i=1; i<20; i++) {
+      ag.addEdge("m", anns.get(i), anns.get(0));
+      expectedSum += anns.get(0).getId();
+    }
+
+    assertEquals(20,ag.nodesWithEdges("m").count());
+    assertEquals(20,ag.nodeIdsWithEdges("m").parallel().count());
+    assertEquals(68,ag.edges("m").count());
+    assertEquals(68,ag.edges("m").spliterator().estimateSize());
+    long sum = 0;
+    for(Object e : ag.edges("m").parallel().toArray()) {
+      sum += ((Edge)e).getToId();
+    }
+    assertEquals(expectedSum,sum);
+    assertEquals(68,ag.edges("m").parallel().count());
+    assertEquals(49,ag.neighborIds("m", anns.get(0)).parallel().count());
+    assertEquals(anns.get(0),ag.neighbors("m", anns.get(5)).findFirst().get());
+    assertEquals(0,ag.neighbors("m", anns.get(30)).count());
+    // the sources reflect annotations added and removed after the last call
+    Annotation late = ann(set,0,1,"A",Utils.featureMap());
+    ag.addEdge("m", late, anns.get(1));
+    set.remove(anns.get(5));
+    int[] ids = ag.nodeIdsWithEdges("m").toArray();
+    assertEquals(20,ids.length);
+    assertEquals(late.getId().intValue(),ids[19]);
+    for(int i=1; i<ids.length; i++) {
+      assertTrue(ids[i-1] < ids[i] && ids[i] != anns.get(5).getId());
+    }
+  }
+
+  @Test
+  public void test08() throws ResourceInstantiationException {
+    logger.debug("Running test test08");
+
+    Document d = Factory.newDocument(new String(new char[10]).replace('\0', ' '));
+    AnnotationSet set = d.getAnnotations("Set1");
+    AnnotationGraph ag1 = AnnotationGraph.getAnnotationGraph(d, set);
+    AnnotationGraph ag2 = AnnotationGraph.getAnnotationGraph(d, d.getAnnotations("Set1"));
+    assertTrue(ag1 == ag2);
+    assertTrue(ag1 != AnnotationGraph.getAnnotationGraph(d, d.getAnnotations("Set2")));
+    assertTrue(ag1 != AnnotationGraph.getAnnotationGraph(d, d.getAnnotations()));
+
+    ag1.addEdgeName("m");
+    Annotation a1 = ann(set,0,1,"A",Utils.featureMap());
+    Annotation a2 = ann(set,1,2,"A",Utils.featureMap());
+    ag1.addEdge("m", a1, a2);
+    set.remove(a2);
+    assertEquals(0,ag2.getEdgeSize("m", a1));
+
+    // after closing, a new graph gets created which sees the same edges
+    ag1.close();
+    AnnotationGraph ag3 = AnnotationGraph.getAnnotationGraph(d, set);
+    assertTrue(ag3 != ag1);
+    assertTrue(ag3.getEdgeNames().contains("m"));
+
+    Factory.deleteResource(d);
+    boolean failed = false;
+    try {
+      ag3.getEdgeSize("m", a1);
+    } catch(GateRuntimeException ex) {
+      failed = true;
+    }
+    assertTrue(failed);
+  }
+
+  @Test
+  public void test09() throws ResourceInstantiationException {
+    logger.debug("Running test test09");
+    for(AnnotationGraph.EdgeStorage storage : AnnotationGraph.EdgeStorage.values()) {
+      // build the same random graph twice, remove one half of the annotations one by one 
+      // from the first and all at once from the second, then compare the remaining edges
+      AnnotationSet set1 = randomGraph(storage);
+      AnnotationSet set2 = randomGraph(storage);
+      AnnotationGraph ag1 = AnnotationGraph.getAnnotationGraph(set1.getDocument(), set1);
+      AnnotationGraph ag2 = AnnotationGraph.getAnnotationGraph(set2.getDocument(), set2);
+      List<Annotation> remove2 = new ArrayList<Annotation>();
+      for(int id=0; id<200; id+=2) {
+        set1.remove(set1.get(id));
+        remove2.add(set2.get(id));
+      }
+      ag2.removeAnnotations(remove2);
+      assertEquals(100,set2.size());
+      for(Annotation a1 : set1) {
+        Annotation a2 = set2.get(a1.getId());
+        for(String edgeName : new String[]{"m","n"}) {
+          assertEquals(Arrays.toString(ag1.getIdArray(edgeName, a1)),Arrays.toString(ag2.getIdArray(edgeName, a2)));
+          assertEquals(Arrays.toString(ag1.getReferencingIdArray(edgeName, a1)),Arrays.toString(ag2.getReferencingIdArray(edgeName, a2)));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void test10() throws ResourceInstantiationException {
+    logger.debug("Running test test10");
+
+    Document d = Factory.newDocument(new String(new char[10]).replace('\0', ' '));
+    AnnotationSet work = d.getAnnotations("Work");
+    AnnotationSet out = d.getAnnotations("Out");
+    AnnotationGraph ag1 = AnnotationGraph.getAnnotationGraph(d, work);
+    AnnotationGraph ag2 = AnnotationGraph.getAnnotationGraph(d, out);
+    ag1.addEdgeNames("members","other");
+
+    // relation -members-> e1, e2, and e2 -members-> e3; x points into the subgraph
+    Annotation rel = ann(work,0,5,"Rel",Utils.featureMap("f","v"));
+    Annotation e1 = ann(work,0,1,"Ent",Utils.featureMap());
+    Annotation e2 = ann(work,2,3,"Ent",Utils.featureMap());
+    Annotation e3 = ann(work,2,3,"Ent",Utils.featureMap());
+    Annotation x = ann(work,4,5,"X",Utils.featureMap());
+    ag1.addEdge("members", rel, e1);
+    ag1.addEdge("members", rel, e2);
+    ag1.addEdge("members", e2, e3);
+    ag1.addEdge("members", x, e1);
+    ag1.addEdge("other", rel, x);
+
+    List<Annotation> copies = AnnotationGraph.copySubgraph(ag1, ag2, Arrays.asList(rel, e2), "members");
+    assertEquals(4,copies.size());
+    assertEquals(4,out.size());
+    Annotation rel2 = copies.get(0);
+    assertEquals("Rel",rel2.getType());
+    assertEquals("v",rel2.getFeatures().get("f"));
+    assertEquals(2,ag2.getEdgeSize("members", rel2));
+    assertEquals(Utils.start(e1),Utils.start(ag2.getAnnotations("members", rel2).get(0)));
+    Annotation e22 = ag2.getAnnotations("members", rel2).get(1);
+    assertTrue(out.contains(e22));
+    assertEquals(1,ag2.getEdgeSize("members", e22));
+    // the edge from x does not get copied
+    assertEquals(1,ag2.getReferencingAnnotations("members", ag2.getAnnotations("members", rel2).get(0)).size());
+    // the originals are unchanged
+    assertEquals(5,work.size());
+    assertEquals(2,ag1.getEdgeSize("members", rel));
+
+    // the instance method does the same as moveSubgraph
+    ag1.moveAnnotations(ag1, ag2, Arrays.asList(rel));
+    // moving over all edge names includes x
+    assertEquals(0,work.size());
+    assertEquals(9,out.size());
+    assertEquals(1,out.get("X").size());
+    Annotation x2 = out.get("X").iterator().next();
+    assertEquals(1,ag2.getEdgeSize("members", x2));
+    assertEquals(1,ag2.getReferencingAnnotations("other", x2).size());
+  }
+
+  @Test
+  public void test11() throws Exception {
+    logger.debug("Running test test11");
+
+    int[] values = new int[]{0, 5, 3, 1000000, -7, Integer.MAX_VALUE, 2};
+    String enc = EdgeListCodec.encodeToString(new IntList(values));
+    assertTrue(EdgeListCodec.isEncoded(enc));
+    assertEquals(Arrays.toString(values),Arrays.toString(EdgeListCodec.decodeFromString(enc)));
+
+    // java serialization of the lists, including one with holes
+    IndexedIntList l = new IndexedIntList();
+    for(int i=0; i<100; i++) { l.addInt(i*3); }
+    for(int i=0; i<100; i+=3) { l.removeInt(i*3); }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(l);
+    out.close();
+    IndexedIntList l2 = (IndexedIntList)new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    assertEquals(l,l2);
+    assertTrue(l2.containsInt(3));
+    assertFalse(l2.containsInt(9));
+
+    AnnotationSet set = randomGraph(AnnotationGraph.EdgeStorage.PRIMITIVE);
+    AnnotationGraph ag = AnnotationGraph.getAnnotationGraph(set.getDocument(), set);
+    Annotation a0 = set.get(0);
+    int[] edges = ag.getIdArray("m", a0);
+    int[] refs = ag.getReferencingIdArray("n", a0);
+    ag.encodeEdgeLists();
+    assertTrue(a0.getFeatures().get("_ag.to.m") instanceof String);
+    // a new graph for the same set decodes the lists when it needs them
+    ag.close();
+    ag = AnnotationGraph.getAnnotationGraph(set.getDocument(), set);
+    assertEquals(Arrays.toString(edges),Arrays.toString(ag.getIdArray("m", a0)));
+    assertEquals(Arrays.toString(refs),Arrays.toString(ag.getReferencingIdArray("n", a0)));
+    // reading does not change the feature map, only changing a list stores it decoded
+    ag.getTransitiveIds("m", a0);
+    assertEquals(edges.length,ag.getEdgeSize("m", a0));
+    assertTrue(a0.getFeatures().get("_ag.to.m") instanceof String);
+    ag.sortEdgesByOffset("m", a0);
+    assertTrue(a0.getFeatures().get("_ag.to.m") instanceof IntList);
+    // removing annotations fixes the decoded lists just like the original ones
+    ag.removeAnnotations(Arrays.asList(set.get(1), set.get(2)));
+    AnnotationSet set2 = randomGraph(AnnotationGraph.EdgeStorage.PRIMITIVE);
+    AnnotationGraph ag2 = AnnotationGraph.getAnnotationGraph(set2.getDocument(), set2);
+    ag2.removeAnnotations(Arrays.asList(set2.get(1), set2.get(2)));
+    assertEquals(countEdges(ag2, set2),countEdges(ag, set));
+  }
+
+  @Test
+  public void test12() throws Exception {
+    logger.debug("Running test test12");
+
+    File file = File.createTempFile("agsnapshot", ".bin");
+    file.deleteOnExit();
+    AnnotationSet set1 = randomGraph(AnnotationGraph.EdgeStorage.PRIMITIVE);
+    AnnotationGraph ag1 = AnnotationGraph.getAnnotationGraph(set1.getDocument(), set1);
+    Document d2 = Factory.newDocument(new String(new char[10]).replace('\0', ' '));
+    AnnotationGraph ag2 = AnnotationGraph.getAnnotationGraph(d2, d2.getAnnotations());
+    ag2.addEdgeName("m");
+    Annotation rel = ann(d2.getAnnotations(),0,5,"Rel",Utils.featureMap());
+    Annotation ent = ann(d2.getAnnotations(),1,2,"Ent",Utils.featureMap());
+    ag2.addEdge("m", rel, ent);
+    
+    GraphSnapshotWriter writer = new GraphSnapshotWriter(file);
+    writer.add("doc1", ag1.snapshot());
+    writer.add("doc2", ag2.snapshot());
+    writer.close();
+
+    GraphSnapshotReader reader = new GraphSnapshotReader(file);
+    try {
+      assertEquals(2,reader.getDocumentCount());
+      assertEquals(1,reader.getDocumentNumber("doc2"));
+      assertEquals(-1,reader.getDocumentNumber("doc3"));
+      GraphSnapshotReader.DocumentGraph g1 = reader.getDocument(0);
+      assertEquals("Set1",g1.getSetName());
+      assertEquals(200,g1.getNodeCount());
+      for(Annotation a : set1) {
+        int id = a.getId();
+        assertEquals(Arrays.toString(ag1.getIdArray("m", a)),Arrays.toString(g1.getIds("m", id)));
+        // the snapshot has the referencing ids in id order
+        int[] refs = ag1.getReferencingIdArray("n", a);
+        Arrays.sort(refs);
+        assertEquals(Arrays.toString(refs),Arrays.toString(g1.getReferencingIds("n", id)));
+        assertEquals(ag1.getTransitiveIds("m", a).length,g1.getTransitiveIds("m", id).length);
+        assertEquals(Utils.start(a).longValue(),g1.getStart(id));
+      }
+      GraphSnapshotReader.DocumentGraph g2 = reader.getDocument(1);
+      assertEquals(null,g2.getSetName());
+      assertEquals("doc2",g2.getName());
+      assertEquals(1,g2.getAnnotationIds("Ent").length);
+      int entId = g2.getAnnotationIds("Ent")[0];
+      assertEquals("Rel",g2.getType(g2.getReferencingIds("m", entId)[0]));
+      assertEquals(5,g2.getEnd(g2.getReferencingIds("m", entId)[0]));
+      // the second document has no n edges, which is the same as having none for any node
+      assertTrue(g1.hasEdgeName("n"));
+      assertFalse(g2.hasEdgeName("n"));
+      assertEquals(0,g2.getEdgeCount("n"));
+      assertEquals(0,g2.getIds("n", entId).length);
+      assertEquals(0,g2.getReferencingIds("n", entId).length);
+      assertEquals(0,g2.getTransitiveIds("n", entId).length);
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void test13() throws Exception {
+    logger.debug("Running test test13");
+
+    AnnotationSet set = randomGraph(AnnotationGraph.EdgeStorage.PRIMITIVE);
+    AnnotationGraph ag = AnnotationGraph.getAnnotationGraph(set.getDocument(), set);
+    GraphStatistics stats = ag.getStatistics();
+    assertEquals(200,stats.getNodeCount());
+    assertEquals(countEdges(ag, set),
+        stats.getEdgeStatistics("m").getEdgeCount()+stats.getEdgeStatistics("n").getEdgeCount());
+    int maxOut = 0;
+    for(Annotation a : set) {
+      maxOut = Math.max(maxOut, ag.getEdgeSize("m", a));
+    }
+    assertEquals(maxOut,stats.getEdgeStatistics("m").getMaxOutDegree());
+    assertTrue(stats.getEdgeStatistics("m").getOutDegreePercentile(50) <= maxOut);
+    // computing the statistics must not decode encoded lists
+    ag.encodeEdgeLists();
+    GraphStatistics encodedStats = ag.getStatistics();
+    assertEquals(stats.toString(),encodedStats.toString());
+    for(Annotation a : set) {
+      Object value = a.getFeatures().get("_ag.to.m");
+      assertTrue(value == null || EdgeListCodec.isEncoded(value));
+    }
+
+    JmxGraphMetrics metrics = JmxGraphMetrics.install();
+    try {
+      assertSame(metrics,AnnotationGraph.getMetrics());
+      assertTrue(AnnotationGraph.getActiveGraphs().contains(ag));
+      assertTrue(metrics.getGraphCount() >= 1);
+      assertEquals(metrics.getGraphCount(),metrics.computeGraphStatistics().length);
+      Annotation first = set.iterator().next();
+      ag.getTransitiveIds("m", first);
+      assertEquals(1,metrics.getTransitiveQueryCount());
+      set.remove(first);
+      assertEquals(1,metrics.getAnnotationRemovedCount());
+      ag.addEdgeName("c");
+      ag.getCoextensiveRangeAnnotations("c", set, "Range", 0);
+      assertEquals(1,metrics.getClusteringCount());
+      metrics.reset();
+      assertEquals(0,metrics.getTransitiveQueryCount());
+    } finally {
+      JmxGraphMetrics.uninstall();
+    }
+    assertNull(AnnotationGraph.getMetrics());
+  }
+
+  @Test
+  public void test14() throws ResourceInstantiationException {
+    logger.debug("Running test test14");
+
+    for(AnnotationGraph.EdgeStorage storage : AnnotationGraph.EdgeStorage.values()) {
+      Document d = Factory.newDocument(new String(new char[10]).replace('\0', ' '));
+      AnnotationSet set = d.getAnnotations("Set1");
+      AnnotationGraph ag = AnnotationGraph.getAnnotationGraph(d, set);
+      ag.setEdgeStorage(storage);
+      ag.addEdgeName("m");
+      List<Annotation> anns = new ArrayList<Annotation>();
+      for(int i=0; i<6; i++) {
+        anns.add(ann(set,i,i+1,"A",Utils.featureMap("n",i)));
+      }
+      Annotation a0 = anns.get(0);
+      for(int i=1; i<6; i++) {
+        ag.addEdge("m", a0, anns.get(i));
+        ag.setEdgeDouble("m", a0, anns.get(i), "w", i*0.5);
+      }
+      ag.setEdgeString("m", a0, anns.get(2), "label", "two");
+      ag.setEdgeLong("m", a0, anns.get(5), "l", 5L);
+      assertEquals(1.5,ag.getEdgeDouble("m", a0, anns.get(3), "w"),0.0);
+      assertEquals("two",ag.getEdgeString("m", a0, anns.get(2), "label"));
+      assertNull(ag.getEdgeString("m", a0, anns.get(1), "label"));
+      assertEquals(0,ag.getEdgeInt("m", a0, anns.get(1), "missing"));
+      assertTrue(Arrays.equals(new double[]{0.5,1.0,1.5,2.0,2.5},ag.getEdgeDoubles("m", a0, "w")));
+
+      // the properties follow the edges when edges get removed, filtered or sorted
+      ag.removeEdge("m", a0, anns.get(1));
+      assertTrue(Arrays.equals(new double[]{1.0,1.5,2.0,2.5},ag.getEdgeDoubles("m", a0, "w")));
+      ag.sortEdges("m", a0, new Comparator<Annotation>() {
+        @Override
+        public int compare(Annotation o1, Annotation o2) {
+          return o2.getStartNode().getOffset().compareTo(o1.getStartNode().getOffset());
+        }
+      });
+      assertTrue(Arrays.equals(new double[]{2.5,2.0,1.5,1.0},ag.getEdgeDoubles("m", a0, "w")));
+      assertTrue(Arrays.equals(new long[]{5,0,0,0},ag.getEdgeLongs("m", a0, "l")));
+      ag.grepEdges("m", a0, new Predicate<Annotation>() {
+        @Override
+        public boolean test(Annotation a) {
+          return !a.getFeatures().get("n").equals(4);
+        }
+      });
+      assertTrue(Arrays.equals(new double[]{2.5,1.5,1.0},ag.getEdgeDoubles("m", a0, "w")));
+      set.remove(anns.get(3));
+      assertTrue(Arrays.equals(new String[]{null,"two"},ag.getEdgeStrings("m", a0, "label")));
+      ag.removeAnnotations(Arrays.asList(anns.get(5)));
+      assertTrue(Arrays.equals(new double[]{1.0},ag.getEdgeDoubles("m", a0, "w")));
+
+      // copies get the properties of the copied edges
+      AnnotationGraph ag2 = AnnotationGraph.getAnnotationGraph(d, d.getAnnotations("Set2"));
+      List<Annotation> copies = AnnotationGraph.copySubgraph(ag, ag2, Arrays.asList(a0));
+      assertEquals("two",ag2.getEdgeString("m", copies.get(0), copies.get(1), "label"));
+      assertEquals(1.0,ag2.getEdgeDouble("m", copies.get(0), copies.get(1), "w"),0.0);
+
+      try {
+        ag.setEdgeInt("m", a0, anns.get(2), "w", 1);
+        assertTrue("Expected an exception", false);
+      } catch(GateRuntimeException ex) {
+        // expected, w is a double property
+      }
+      ag.removeEdges("m", a0);
+      assertFalse(ag.getEdgePropertyStore("m").hasValues(a0.getId()));
+      ag.close();
+      ag2.close();
+    }
+  }
+
+  @Test
+  public void test15() throws ResourceInstantiationException {
+    logger.debug("Running test test15");
+
+    for(AnnotationGraph.EdgeStorage storage : AnnotationGraph.EdgeStorage.values()) {
+      Document d = Factory.newDocument(new String(new char[20]).replace('\0', ' '));
+      AnnotationSet set = d.getAnnotations("Set1");
+      AnnotationGraph ag = AnnotationGraph.getAnnotationGraph(d, set);
+      ag.setEdgeStorage(storage);
+      ag.addEdgeNames("m","o");
+      Annotation root = ann(set,0,20,"R",Utils.featureMap());
+      // annotations at offsets 5, 3, 8, 1, 3 (longer) with features which sort differently
+      int[] starts = {5, 3, 8, 1, 3};
+      int[] ends = {6, 4, 9, 2, 5};
+      Object[] values = {2, 10, null, 7.5, 1L};
+      List<Annotation> anns = new ArrayList<Annotation>();
+      for(int i=0; i<starts.length; i++) {
+        anns.add(ann(set,starts[i],ends[i],"A",Utils.featureMap("v",values[i],"s","x"+(4-i))));
+        ag.addEdge("m", root, anns.get(i));
+      }
+      ag.sortEdgesByOffset("m", root);
+      assertEquals(Arrays.asList(anns.get(3),anns.get(1),anns.get(4),anns.get(0),anns.get(2)),ag.getAnnotations("m", root));
+      ag.sortEdgesByFeature("m", root, "v", false);
+      assertEquals(Arrays.asList(anns.get(4),anns.get(0),anns.get(3),anns.get(1),anns.get(2)),ag.getAnnotations("m", root));
+      ag.sortEdgesByFeature("m", root, "v", true);
+      assertEquals(Arrays.asList(anns.get(1),anns.get(3),anns.get(0),anns.get(4),anns.get(2)),ag.getAnnotations("m", root));
+      ag.sortEdgesByFeature("m", root, "s", false);
+      assertEquals(Arrays.asList(anns.get(4),anns.get(3),anns.get(2),anns.get(1),anns.get(0)),ag.getAnnotations("m", root));
+      // mixed values are ordered by class name first, then within each class
+      Object[] mixed = {"b", 3, "a", 1, null};
+      for(int i=0; i<mixed.length; i++) {
+        anns.get(i).getFeatures().put("x", mixed[i]);
+      }
+      ag.sortEdgesByFeature("m", root, "x", false);
+      assertEquals(Arrays.asList(anns.get(3),anns.get(1),anns.get(2),anns.get(0),anns.get(4)),ag.getAnnotations("m", root));
+
+      // keep the o edges in document order while they get added
+      ag.addEdge("o", root, anns.get(0));
+      ag.addEdge("o", root, anns.get(2));
+      ag.setEdgeDouble("o", root, anns.get(2), "w", 2.0);
+      ag.setKeepInDocumentOrder("o", true);
+      assertTrue(ag.isKeepInDocumentOrder("o"));
+      assertFalse(ag.isKeepInDocumentOrder("m"));
+      ag.addEdge("o", root, anns.get(1));
+      ag.addEdge("o", root, anns.get(3));
+      assertEquals(Arrays.asList(anns.get(3),anns.get(1),anns.get(0),anns.get(2)),ag.getAnnotations("o", root));
+      assertTrue(Arrays.equals(new double[]{0,0,0,2.0},ag.getEdgeDoubles("o", root, "w")));
+      ag.addEdges("o", new int[]{root.getId()}, new int[]{anns.get(4).getId()});
+      assertEquals(Arrays.asList(anns.get(3),anns.get(1),anns.get(4),anns.get(0),anns.get(2)),ag.getAnnotations("o", root));
+      assertEquals(2.0,ag.getEdgeDouble("o", root, anns.get(2), "w"),0.0);
+      // ordered edges cannot be sorted in a different order, but sorting by offset is fine
+      try {
+        ag.sortEdgesByFeature("o", root, "v", false);
+        assertTrue("Expected an exception for sorting ordered edges", false);
+      } catch(GateRuntimeException ex) {
+        // expected
+      }
+      try {
+        ag.sortEdges("o", root, new Comparator<Annotation>() {
+          @Override
+          public int compare(Annotation a1, Annotation a2) {
+            return a2.getId().compareTo(a1.getId());
+          }
+        });
+        assertTrue("Expected an exception for sorting ordered edges", false);
+      } catch(GateRuntimeException ex) {
+        // expected
+      }
+      ag.sortEdgesByOffset("o", root);
+      assertEquals(Arrays.asList(anns.get(3),anns.get(1),anns.get(4),anns.get(0),anns.get(2)),ag.getAnnotations("o", root));
+      ag.addEdge("o", root, anns.get(2));
+      assertEquals(anns.get(2),ag.getAnnotations("o", root).get(storage == AnnotationGraph.EdgeStorage.HASHED ? 4 : 5));
+      // the setting is stored with the document
+      ag.close();
+      ag = AnnotationGraph.getAnnotationGraph(d, set);
+      assertTrue(ag.isKeepInDocumentOrder("o"));
+      ag.setKeepInDocumentOrder("o", false);
+      ag.close();
+    }
+  }
+
+  @Test
+  public void test16() throws ResourceInstantiationException {
+    logger.debug("Running test test16");
+
+    for(AnnotationGraph.EdgeStorage storage : AnnotationGraph.EdgeStorage.values()) {
+      // two identical graphs, large enough for the filter to run in parallel
+      Document d = Factory.newDocument(new String(new char[10]).replace('\0', ' '));
+      AnnotationSet set1 = d.getAnnotations("Set1");
+      AnnotationSet set2 = d.getAnnotations("Set2");
+      AnnotationGraph ag1 = AnnotationGraph.getAnnotationGraph(d, set1);
+      AnnotationGraph ag2 = AnnotationGraph.getAnnotationGraph(d, set2);
+      ag1.setEdgeStorage(storage);
+      ag1.addEdgeNames("m");
+      ag2.setEdgeStorage(storage);
+      ag2.addEdgeNames("m");
+      int n = 2000;
+      List<Annotation> anns1 = new ArrayList<Annotation>();
+      List<Annotation> anns2 = new ArrayList<Annotation>();
+      for(int i=0; i<n; i++) {
+        anns1.add(ann(set1,i%10,i%10+1,"A",Utils.featureMap("n",i)));
+        anns2.add(ann(set2,i%10,i%10+1,"A",Utils.featureMap("n",i)));
+      }
+      Random rnd = new Random(1);
+      for(int i=0; i<10000; i++) {
+        int from = rnd.nextInt(n);
+        int to = rnd.nextInt(n);
+        ag1.addEdge("m", anns1.get(from), anns1.get(to));
+        ag2.addEdge("m", anns2.get(from), anns2.get(to));
+      }
+      int removed = ag1.grepAllEdges("m", new BiPredicate<Annotation,Annotation>() {
+        @Override
+        public boolean test(Annotation from, Annotation to) {
+          return ((Integer)from.getFeatures().get("n") + (Integer)to.getFeatures().get("n")) % 3 != 0;
+        }
+      });
+      int removed2 = 0;
+      for(final Annotation from : anns2) {
+        int before = ag2.getEdgeSize("m", from);
+        ag2.grepEdges("m", from, new Predicate<Annotation>() {
+          @Override
+          public boolean test(Annotation to) {
+            return ((Integer)from.getFeatures().get("n") + (Integer)to.getFeatures().get("n")) % 3 != 0;
+          }
+        });
+        removed2 += before - ag2.getEdgeSize("m", from);
+      }
+      assertEquals(removed2,removed);
+      assertTrue(removed > 0);
+      for(int i=0; i<n; i++) {
+        Annotation a = anns1.get(i);
+        assertEquals(ag2.getEdgeSize("m", anns2.get(i)),ag1.getEdgeSize("m", a));
+        assertEquals(ag2.getReferencingIds("m", anns2.get(i)).size(),ag1.getReferencingIds("m", a).size());
+        for(Annotation b : ag1.getAnnotations("m", a)) {
+          assertTrue(ag1.getReferencingAnnotations("m", b).contains(a));
+        }
+      }
+      ag1.close();
+      ag2.close();
+    }
+  }
+
+  @Test
+  public void test17() throws ResourceInstantiationException {
+    logger.debug("Running test test17");
+
+    // adding an existing element to a hashed list reports that nothing changed
+    IndexedIntList l = new IndexedIntList();
+    assertTrue(l.add(5));
+    assertFalse(l.add(5));
+    assertEquals(1,l.size());
+
+    // parallel edges exist in all modes except HASHED
+    for(AnnotationGraph.EdgeStorage storage : AnnotationGraph.EdgeStorage.values()) {
+      boolean hashed = storage == AnnotationGraph.EdgeStorage.HASHED;
+      Document d = Factory.newDocument(new String(new char[10]).replace('\0', ' '));
+      AnnotationSet set = d.getAnnotations("Set1");
+      AnnotationGraph ag = AnnotationGraph.getAnnotationGraph(d, set);
+      ag.setEdgeStorage(storage);
+      ag.addEdgeNames("m");
+      Annotation a = ann(set,0,1,"A",Utils.featureMap());
+      Annotation b = ann(set,1,2,"A",Utils.featureMap());
+      ag.addEdge("m", a, b);
+      ag.addEdge("m", a, b);
+      assertEquals(hashed ? 1 : 2,ag.getEdgeSize("m", a));
+      assertEquals(hashed ? 1 : 2,ag.getReferencingIdArray("m", b).length);
+      ag.addEdges("m", new int[]{a.getId(), a.getId()}, new int[]{b.getId(), b.getId()});
+      assertEquals(hashed ? 1 : 4,ag.getEdgeSize("m", a));
+      ag.removeEdge("m", a, b);
+      assertEquals(hashed ? 0 : 3,ag.getEdgeSize("m", a));
+      assertEquals(!hashed,ag.hasEdge("m", a, b));
+      assertEquals(!hashed,ag.hasReferencingEdges("m", b));
+      ag.close();
+    }
+  }
+
+  private static int countEdges(AnnotationGraph ag, AnnotationSet set) {
+    int n = 0;
+    for(Annotation a : set) {
+      n += ag.getEdgeSize("m", a) + ag.getEdgeSize("n", a);
+    }
+    return n;
+  }
+
+  private static AnnotationSet randomGraph(AnnotationGraph.EdgeStorage storage) throws ResourceInstantiationException {
+    Document d = Factory.newDocument(new String(new char[10]).replace('\0', ' '));
+    AnnotationSet set = d.getAnnotations("Set1");
+    AnnotationGraph ag = AnnotationGraph.getAnnotationGraph(d, set);
+    ag.setEdgeStorage(storage);
+    ag.addEdgeNames("m","n");
+    List<Annotation> anns = new ArrayList<Annotation>();
+    for(int i=0; i<200; i++) {
+      anns.add(ann(set,i%10,i%10+1,"A",Utils.featureMap()));
+    }
+    Random rnd = new Random(1);
+    for(int i=0; i<1000; i++) {
+      ag.addEdge(rnd.nextBoolean() ? "m" : "n", anns.get(rnd.nextInt(200)), anns.get(rnd.nextInt(200)));
+    }
+    return set;
+  }
+
   private static Annotation ann(AnnotationSet set, int from, int to, String type, FeatureMap fm) {
     return set.get(Utils.addAnn(set,from,to,type,fm));
   }
@@ -0,0 +1,262 @@
+package gate.plugins.annotationgraphs.tests;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.Utils;
+import gate.creole.ResourceInstantiationException;
+import gate.plugins.annotationgraphs.AnnotationGraph;
+import gate.plugins.annotationgraphs.GraphTraversal;
+import gate.plugins.annotationgraphs.PathQuery;
+import gate.util.GateException;
+import gate.util.GateRuntimeException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.log4j.Logger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for traversing the graph.
+ *
+ * @author Johann Petrak
+ */
+public class Test2 {
+
+  private static final Logger logger = Logger.getLogger(Test2.class);
+
+  @Before
+  public void setup() throws GateException {
+    if(!Gate.isInitialised()) {
+      Gate.runInSandbox(true);
+      Gate.init();
+    }
+  }
+
+  /**
+   * Create a chain a0 -> a1 -> ... -> a(n-1) with edge name "m".
+   */
+  private static List<Annotation> chain(AnnotationGraph ag, AnnotationSet set, int n) {
+    List<Annotation> anns = new ArrayList<Annotation>();
+    for(int i=0; i<n; i++) {
+      anns.add(ann(set,i,i+1,"C",Utils.featureMap("n",i)));
+      if(i > 0) {
+        ag.addEdge("m", anns.get(i-1), anns.get(i));
+      }
+    }
+    return anns;
+  }
+
+  @Test
+  public void testTraversal() throws ResourceInstantiationException {
+    logger.debug("Running test testTraversal");
+
+    Document d = Factory.newDocument(new String(new char[20]).replace('\0', ' '));
+    AnnotationSet set = d.getAnnotations("Set1");
+    AnnotationGraph ag = AnnotationGraph.getAnnotationGraph(d, set);
+    ag.addEdgeName("m");
+    List<Annotation> c = chain(ag, set, 10);
+
+    assertEquals(9,ag.getTransitiveIds("m", c.get(0)).length);
+    assertEquals(c.get(1).getId().intValue(),ag.getTransitiveIds("m", c.get(0))[0]);
+    assertEquals(3,ag.getTransitiveAnnotations("m", c.get(0), 3).size());
+    assertEquals(c.get(3),ag.getTransitiveAnnotations("m", c.get(0), 3).get(2));
+    assertEquals(0,ag.getTransitiveAnnotations("m", c.get(9), GraphTraversal.UNLIMITED).size());
+
+    GraphTraversal t = new GraphTraversal(ag, "m");
+    t.setDirection(GraphTraversal.Direction.REVERSE);
+    assertEquals(5,t.run(c.get(5)).length);
+    t.setDirection(GraphTraversal.Direction.BOTH);
+    t.setMaxDepth(2);
+    // c3, c4, c6, c7 and c5 itself, which gets reached again over the edge back from c4 or c6
+    assertEquals(5,t.run(c.get(5)).length);
+
+    // stop as soon as the annotation with n=7 is reached and remember its depth
+    final int[] found = new int[]{-1};
+    final Annotation target = c.get(7);
+    t.setDirection(GraphTraversal.Direction.FORWARD);
+    t.setMaxDepth(GraphTraversal.UNLIMITED);
+    t.setVisitor(new GraphTraversal.Visitor() {
+      @Override
+      public boolean visit(int id, int depth) {
+        if(id == target.getId()) {
+          found[0] = depth;
+          return false;
+        }
+        return true;
+      }
+    });
+    int[] reached = t.run(c.get(2));
+    assertEquals(5,found[0]);
+    assertEquals(5,reached.length);
+
+    // a cycle back to the start includes the start annotation
+    ag.addEdge("m", c.get(9), c.get(0));
+    AnnotationSet all = ag.getTransitiveAnnotationSet("m", c.get(0));
+    assertEquals(10,all.size());
+    assertTrue(all.contains(c.get(0)));
+    assertFalse(ag.getTransitiveAnnotations("m", c.get(0), 9).contains(c.get(0)));
+  }
+
+  @Test
+  public void testMixedEdgeNames() throws ResourceInstantiationException {
+    logger.debug("Running test testMixedEdgeNames");
+
+    Document d = Factory.newDocument(new String(new char[20]).replace('\0', ' '));
+    AnnotationSet set = d.getAnnotations("Set1");
+    AnnotationGraph ag = AnnotationGraph.getAnnotationGraph(d, set);
+    ag.addEdgeNames("members","type","other");
+
+    // relation -members-> entity -type-> class -members-> instance
+    Annotation rel = ann(set,0,5,"Rel",Utils.featureMap());
+    Annotation ent = ann(set,0,1,"Ent",Utils.featureMap());
+    Annotation cls = ann(set,1,2,"Cls",Utils.featureMap());
+    Annotation inst = ann(set,2,3,"Inst",Utils.featureMap());
+    Annotation unrelated = ann(set,3,4,"X",Utils.featureMap());
+    ag.addEdge("members", rel, ent);
+    ag.addEdge("type", ent, cls);
+    ag.addEdge("members", cls, inst);
+    ag.addEdge("other", inst, unrelated);
+
+    // following just one edge name does not get past the first type edge
+    assertEquals(1,ag.getTransitiveAnnotationSet("members", rel).size());
+
+    AnnotationSet mixed = ag.getTransitiveAnnotationSet(Arrays.asList("members","type"), rel);
+    assertEquals(3,mixed.size());
+    assertTrue(mixed.contains(inst));
+    assertFalse(mixed.contains(unrelated));
+
+    AnnotationSet full = ag.getFullTransitiveAnnotationSet(rel);
+    assertEquals(4,full.size());
+    assertTrue(full.contains(unrelated));
+  }
+
+  @Test
+  public void testComponents() throws ResourceInstantiationException {
+    logger.debug("Running test testComponents");
+
+    Document d = Factory.newDocument(new String(new char[20]).replace('\0', ' '));
+    AnnotationSet set = d.getAnnotations("Set1");
+    AnnotationGraph ag = AnnotationGraph.getAnnotationGraph(d, set);
+    ag.addEdgeNames("m","coref");
+    // a chain of 5 with m edges and two coref chains
+    List<Annotation> anns = chain(ag, set, 5);
+    Annotation c1 = ann(set,5,6,"C",Utils.featureMap());
+    Annotation c2 = ann(set,6,7,"C",Utils.featureMap());
+    Annotation c3 = ann(set,7,8,"C",Utils.featureMap());
+    Annotation single = ann(set,8,9,"C",Utils.featureMap());
+    ag.addEdge("coref", c3, c1);
+    ag.addEdge("coref", c2, c1);
+    ag.addEdge("coref", anns.get(4), single);
+
+    int[] components = ag.getComponentIds("coref");
+    assertEquals(c1.getId().intValue(),components[c3.getId()]);
+    assertEquals(c1.getId().intValue(),components[c2.getId()]);
+    assertEquals(anns.get(0).getId().intValue(),components[anns.get(0).getId()]);
+    int[][] groups = ag.getComponents(2, "coref");
+    assertEquals(2,groups.length);
+    assertTrue(Arrays.equals(new int[]{anns.get(4).getId(), single.getId()},groups[0]));
+    assertTrue(Arrays.equals(new int[]{c1.getId(), c2.getId(), c3.getId()},groups[1]));
+    groups = ag.getComponents(1);
+    assertEquals(2,groups.length);
+    assertEquals(6,groups[0].length);
+
+    int[] dist = ag.getDistances(anns.get(0), GraphTraversal.Direction.FORWARD, "m");
+    assertEquals(0,dist[anns.get(0).getId()]);
+    assertEquals(4,dist[anns.get(4).getId()]);
+    assertEquals(-1,dist[c1.getId()]);
+    dist = ag.getDistances(c2, GraphTraversal.Direction.BOTH, "coref");
+    assertEquals(2,dist[c3.getId()]);
+    int[] path = ag.getShortestPath(anns.get(0), single, GraphTraversal.Direction.FORWARD, "m", "coref");
+    assertEquals(6,path.length);
+    assertEquals(single.getId().intValue(),path[5]);
+    assertEquals(anns.get(2).getId().intValue(),path[2]);
+    path = ag.getShortestPath(single, anns.get(3), GraphTraversal.Direction.REVERSE, "m", "coref");
+    assertEquals(3,path.length);
+    path = ag.getShortestPath(c2, c3, GraphTraversal.Direction.BOTH, "coref");
+    assertTrue(Arrays.equals(new int[]{c2.getId(), c1.getId(), c3.getId()},path));
+    assertEquals(0,ag.getShortestPath(c2, c3, GraphTraversal.Direction.FORWARD, "coref").length);
+    // no edge names means all edge names, as for getComponentIds
+    assertTrue(Arrays.equals(ag.getDistances(anns.get(0), GraphTraversal.Direction.FORWARD, "m", "coref"),
+            ag.getDistances(anns.get(0), GraphTraversal.Direction.FORWARD)));
+    assertEquals(6,ag.getShortestPath(anns.get(0), single, GraphTraversal.Direction.FORWARD).length);
+    // annotations added later are included in the arrays
+    Annotation late = ann(set,9,10,"C",Utils.featureMap());
+    ag.addEdge("coref", late, single);
+    assertEquals(anns.get(0).getId().intValue(),ag.getComponentIds()[late.getId()]);
+    assertEquals(6,ag.getDistances(anns.get(0), GraphTraversal.Direction.BOTH)[late.getId()]);
+  }
+
+  @Test
+  public void testPathQuery() throws ResourceInstantiationException {
+    logger.debug("Running test testPathQuery");
+
+    Document d = Factory.newDocument(new String(new char[20]).replace('\0', ' '));
+    AnnotationSet set = d.getAnnotations("Set1");
+    AnnotationGraph ag = AnnotationGraph.getAnnotationGraph(d, set);
+    ag.addEdgeNames("members","type","m");
+    // two relations with members of different types, which point to their entity types
+    Annotation r1 = ann(set,0,10,"Relation",Utils.featureMap());
+    Annotation r2 = ann(set,10,20,"Relation",Utils.featureMap());
+    Annotation p1 = ann(set,0,2,"Person",Utils.featureMap("role","agent"));
+    Annotation o1 = ann(set,3,5,"Org",Utils.featureMap("role","patient"));
+    Annotation p2 = ann(set,10,12,"Person",Utils.featureMap("role","patient"));
+    Annotation tp = ann(set,0,1,"Type",Utils.featureMap("name","per"));
+    Annotation to = ann(set,0,1,"Type",Utils.featureMap("name","org"));
+    ag.addSequenceEdges("members", r1, Arrays.asList(p1, o1));
+    ag.addSequenceEdges("members", r2, Arrays.asList(p2));
+    ag.addEdge("type", p1, tp);
+    ag.addEdge("type", p2, tp);
+    ag.addEdge("type", o1, to);
+
+    assertEquals(Arrays.asList(tp, to),ag.getPathAnnotations("members/type", r1));
+    assertEquals(Arrays.asList(p1),ag.getPathAnnotations("members[Person]", r1));
+    assertEquals(Arrays.asList(o1),ag.getPathAnnotations("members[@role=patient]", r1));
+    assertEquals(Arrays.asList(p1),ag.getPathAnnotations("members[Person|Org][@role!='patient']", r1));
+    // from a relation to the relations with a member of the same type
+    PathQuery q = PathQuery.compile("members/type/^type/^members");
+    assertEquals(Arrays.asList(r1, r2),q.getAnnotations(ag, r1));
+    assertEquals(Arrays.asList(r1, r2),q.getAnnotations(ag, r2));
+    assertEquals(Arrays.asList(o1),PathQuery.compile("members[Org]/type/^type").getAnnotations(ag, r1));
+    PathQuery.Result result = q.evaluate(ag, Arrays.asList(r1, r2, r1));
+    assertEquals(4,result.size());
+    assertEquals(r1.getId().intValue(),result.getSourceId(1));
+    assertEquals(r2.getId().intValue(),result.getTargetId(1));
+    assertEquals(r2.getId().intValue(),result.getSourceId(2));
+    assertEquals(r1.getId().intValue(),result.getTargetId(2));
+
+    List<Annotation> anns = chain(ag, set, 5);
+    assertEquals(5,ag.getPathAnnotations("m*", anns.get(0)).size());
+    assertEquals(4,ag.getPathAnnotations("m+", anns.get(0)).size());
+    assertEquals(2,ag.getPathAnnotations("m?", anns.get(0)).size());
+    assertEquals(Arrays.asList(anns.get(3)),ag.getPathAnnotations("m*[@n=3]", anns.get(0)));
+    assertEquals(Arrays.asList(anns.get(0)),ag.getPathAnnotations("^m+[@n=0]", anns.get(4)));
+
+    for(String bad : new String[]{"", "members/", "members[Person", "members[@role='x]", "^"}) {
+      try {
+        PathQuery.compile(bad);
+        assertTrue("Expected an exception for "+bad, false);
+      } catch(GateRuntimeException ex) {
+        // expected
+      }
+    }
+    try {
+      ag.getPathAnnotations("unknown", r1);
+      assertTrue("Expected an exception", false);
+    } catch(GateRuntimeException ex) {
+      // expected
+    }
+  }
+
+  private static Annotation ann(AnnotationSet set, int from, int to, String type, FeatureMap fm) {
+    return set.get(Utils.addAnn(set,from,to,type,fm));
+  }
+
+}
@@ -0,0 +1,152 @@
+package gate.plugins.annotationgraphs.tests;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.Utils;
+import gate.creole.ResourceInstantiationException;
+import gate.plugins.annotationgraphs.AnnotationGraph;
+import gate.util.GateException;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.apache.log4j.Logger;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the methods which create range annotations.
+ *
+ * @author Johann Petrak
+ */
+public class Test3 {
+
+  private static final Logger logger = Logger.getLogger(Test3.class);
+
+  @Before
+  public void setup() throws GateException {
+    if(!Gate.isInitialised()) {
+      Gate.runInSandbox(true);
+      Gate.init();
+    }
+  }
+
+  @Test
+  public void testMaxOverlapping() throws ResourceInstantiationException {
+    logger.debug("Running test testMaxOverlapping");
+
+    Document d = Factory.newDocument(new String(new char[20]).replace('\0', ' '));
+    AnnotationSet set = d.getAnnotations("Set1");
+    AnnotationGraph ag = AnnotationGraph.getAnnotationGraph(d, set);
+    ag.addEdgeName("ovl");
+
+    // a chain where the first and last annotation do not overlap directly
+    ann(set,2,4,"T",Utils.featureMap());
+    ann(set,0,2,"T",Utils.featureMap());
+    ann(set,1,3,"T",Utils.featureMap());
+    // a single annotation which only touches the chain
+    ann(set,4,5,"T",Utils.featureMap());
+    ann(set,7,9,"T",Utils.featureMap());
+    ann(set,8,12,"T",Utils.featureMap());
+    // overlaps, but is not in the subset
+    ann(set,4,8,"X",Utils.featureMap());
+
+    List<Annotation> ranges = ag.getMaxOverlappingRangeAnnotations("ovl", set.get("T"), "R", 1);
+    assertEquals(2,ranges.size());
+    assertEquals(0,Utils.start(ranges.get(0)).longValue());
+    assertEquals(4,Utils.end(ranges.get(0)).longValue());
+    assertEquals(3,ag.getEdgeSize("ovl", ranges.get(0)));
+    assertEquals(7,Utils.start(ranges.get(1)).longValue());
+    assertEquals(12,Utils.end(ranges.get(1)).longValue());
+    assertEquals(2,ag.getEdgeSize("ovl", ranges.get(1)));
+    // the edges are in offset order
+    assertEquals(2,Utils.end(ag.getAnnotations("ovl", ranges.get(0)).get(0)).longValue());
+    assertEquals(4,Utils.end(ag.getAnnotations("ovl", ranges.get(0)).get(2)).longValue());
+    assertEquals(2,set.get("R").size());
+
+    // with min=0 every annotation is in some range
+    ranges = ag.getMaxOverlappingRangeAnnotations("ovl", set.get("T"), "R0", 0);
+    assertEquals(3,ranges.size());
+  }
+
+  @Test
+  public void testCoextensive() throws ResourceInstantiationException {
+    logger.debug("Running test testCoextensive");
+
+    Document d = Factory.newDocument(new String(new char[20]).replace('\0', ' '));
+    AnnotationSet set = d.getAnnotations("Set1");
+    AnnotationGraph ag = AnnotationGraph.getAnnotationGraph(d, set);
+    ag.addEdgeName("coext");
+
+    Annotation a1 = ann(set,5,7,"T",Utils.featureMap());
+    ann(set,1,3,"T",Utils.featureMap());
+    Annotation a3 = ann(set,5,7,"T",Utils.featureMap());
+    ann(set,5,8,"T",Utils.featureMap());
+    ann(set,1,3,"T",Utils.featureMap());
+    Annotation a6 = ann(set,5,7,"T",Utils.featureMap());
+    ann(set,9,9,"T",Utils.featureMap());
+
+    // use the set of the graph itself, which gets the range annotations added
+    List<Annotation> ranges = ag.getCoextensiveRangeAnnotations("coext", set, "R", 2);
+    assertEquals(2,ranges.size());
+    assertEquals(1,Utils.start(ranges.get(0)).longValue());
+    assertEquals(3,Utils.end(ranges.get(0)).longValue());
+    assertEquals(2,ag.getEdgeSize("coext", ranges.get(0)));
+    assertEquals(5,Utils.start(ranges.get(1)).longValue());
+    assertEquals(7,Utils.end(ranges.get(1)).longValue());
+    assertEquals(3,ag.getEdgeSize("coext", ranges.get(1)));
+    // edges to coextensive annotations are in id order
+    assertEquals(a1,ag.getAnnotations("coext", ranges.get(1)).get(0));
+    assertEquals(a3,ag.getAnnotations("coext", ranges.get(1)).get(1));
+    assertEquals(a6,ag.getAnnotations("coext", ranges.get(1)).get(2));
+    assertEquals(ranges.get(1),ag.getReferencingAnnotations("coext", a3).get(0));
+
+    assertEquals(1,ag.getCoextensiveRangeAnnotations("coext", set.get("T"), "R3", 3).size());
+    assertEquals(4,ag.getCoextensiveRangeAnnotations("coext", set.get("T"), "R1", 1).size());
+  }
+
+  @Test
+  public void testSequOverlapping() throws ResourceInstantiationException {
+    logger.debug("Running test testSequOverlapping");
+
+    Document d = Factory.newDocument(new String(new char[20]).replace('\0', ' '));
+    AnnotationSet set = d.getAnnotations("Set1");
+    AnnotationGraph ag = AnnotationGraph.getAnnotationGraph(d, set);
+    ag.addEdgeName("seq");
+
+    // a long annotation and a chain of short ones inside it
+    ann(set,0,10,"L",Utils.featureMap());
+    ann(set,1,3,"T",Utils.featureMap());
+    ann(set,2,5,"T",Utils.featureMap());
+    ann(set,4,6,"T",Utils.featureMap());
+    ann(set,12,14,"T",Utils.featureMap());
+
+    // seed 0-10 gets all the short ones, 12-14 is on its own
+    List<List<Annotation>> clusters = ag.getSequOverlappingClusters(set).collect(Collectors.<List<Annotation>>toList());
+    assertEquals(2,clusters.size());
+    assertEquals(4,clusters.get(0).size());
+    assertEquals(1,clusters.get(1).size());
+
+    // without the long annotation, the seeds are 1-3, 4-6 and 12-14, and 2-5 is in the first two
+    clusters = ag.getSequOverlappingClusters(set.get("T")).collect(Collectors.<List<Annotation>>toList());
+    assertEquals(3,clusters.size());
+    assertEquals(2,clusters.get(0).size());
+    assertEquals(2,clusters.get(1).size());
+    assertEquals(clusters.get(0).get(1),clusters.get(1).get(0));
+
+    List<Annotation> ranges = ag.getSequOverlappingRangeAnnotations("seq", set, "R", 1);
+    assertEquals(1,ranges.size());
+    assertEquals(0,Utils.start(ranges.get(0)).longValue());
+    assertEquals(10,Utils.end(ranges.get(0)).longValue());
+    assertEquals(4,ag.getEdgeSize("seq", ranges.get(0)));
+    assertEquals(1,set.get("R").size());
+  }
+
+  private static Annotation ann(AnnotationSet set, int from, int to, String type, FeatureMap fm) {
+    return set.get(Utils.addAnn(set,from,to,type,fm));
+  }
+
+}
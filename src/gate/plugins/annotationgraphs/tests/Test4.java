@@ -0,0 +1,287 @@
+package gate.plugins.annotationgraphs.tests;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.Utils;
+import gate.creole.ResourceInstantiationException;
+import gate.plugins.annotationgraphs.AnnotationGraph;
+import gate.plugins.annotationgraphs.ConcurrentAnnotationGraph;
+import gate.plugins.annotationgraphs.IndexedIntList;
+import gate.util.GateException;
+import gate.util.GateRuntimeException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiPredicate;
+import org.apache.log4j.Logger;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the concurrent graph.
+ *
+ * @author Johann Petrak
+ */
+public class Test4 {
+
+  private static final Logger logger = Logger.getLogger(Test4.class);
+
+  @Before
+  public void setup() throws GateException {
+    if(!Gate.isInitialised()) {
+      Gate.runInSandbox(true);
+      Gate.init();
+    }
+  }
+
+  @Test
+  public void testSingleThreaded() throws ResourceInstantiationException {
+    logger.debug("Running test testSingleThreaded");
+
+    Document d = Factory.newDocument(new String(new char[20]).replace('\0', ' '));
+    AnnotationSet set = d.getAnnotations("Set1");
+    ConcurrentAnnotationGraph ag = ConcurrentAnnotationGraph.getConcurrentAnnotationGraph(d, set);
+    assertSame(ag,ConcurrentAnnotationGraph.getConcurrentAnnotationGraph(d, set));
+    assertSame(ag,AnnotationGraph.getAnnotationGraph(d, set));
+    ag.addEdgeNames("m","n");
+    List<Annotation> anns = new ArrayList<Annotation>();
+    for(int i=0; i<10; i++) {
+      anns.add(ann(set,i,i+1,"T",Utils.featureMap()));
+    }
+    for(int i=0; i<9; i++) {
+      ag.addEdge("m", anns.get(i), anns.get(i+1));
+    }
+    ag.addEdge("n", anns.get(0), anns.get(5));
+    assertTrue(ag.hasEdge("m", anns.get(0), anns.get(1)));
+    assertEquals(9,ag.getTransitiveIds("m", anns.get(0)).length);
+    assertEquals(10,ag.getFullTransitiveAnnotationSet(anns.get(0)).size()+1);
+    assertEquals(Arrays.asList(anns.get(0)),ag.getReferencingAnnotations("m", anns.get(1)));
+    assertEquals(9,ag.edges("m").count());
+
+    // getIds returns a copy which does not change with the graph
+    List<Integer> ids = ag.getIds("m", anns.get(0));
+    ag.removeEdges("m", anns.get(0));
+    assertEquals(1,ids.size());
+    assertFalse(ag.hasReferencingEdges("m", anns.get(1)));
+
+    ag.encodeEdgeLists();
+    assertEquals(1,ag.getEdgeSize("m", anns.get(1)));
+    ag.addEdge("m", anns.get(0), anns.get(1));
+    set.remove(anns.get(5));
+    assertEquals(0,ag.getEdgeSize("n", anns.get(0)));
+    assertEquals(0,ag.getEdgeSize("m", anns.get(4)));
+    assertEquals(4,ag.getTransitiveIds("m", anns.get(0)).length);
+    final Annotation a1 = anns.get(1);
+    assertEquals(1,ag.grepAllEdges("m", new BiPredicate<Annotation,Annotation>() {
+      @Override
+      public boolean test(Annotation from, Annotation to) {
+        return to != a1;
+      }
+    }));
+    assertFalse(ag.hasReferencingEdges("m", a1));
+    assertEquals(1,ag.getEdgeSize("m", a1));
+    ag.close();
+
+    // a plain graph which is already active cannot be used as a concurrent one
+    AnnotationGraph plain = AnnotationGraph.getAnnotationGraph(d, set);
+    try {
+      ConcurrentAnnotationGraph.getConcurrentAnnotationGraph(d, set);
+      assertTrue("Expected an exception", false);
+    } catch(GateRuntimeException ex) {
+      // expected
+    }
+    plain.close();
+
+    // a graph which cannot be created must not get registered
+    try {
+      new ConcurrentAnnotationGraph(d, set, 0);
+      assertTrue("Expected an exception", false);
+    } catch(GateRuntimeException ex) {
+      // expected
+    }
+    plain = AnnotationGraph.getAnnotationGraph(d, set);
+    assertFalse(plain instanceof ConcurrentAnnotationGraph);
+    plain.close();
+
+    // copying into a concurrent graph changes it with all stripes locked
+    AnnotationGraph source = AnnotationGraph.getAnnotationGraph(d, d.getAnnotations("Set2"));
+    source.addEdgeName("m");
+    Annotation s1 = ann(d.getAnnotations("Set2"),0,1,"S",Utils.featureMap());
+    Annotation s2 = ann(d.getAnnotations("Set2"),1,2,"S",Utils.featureMap());
+    source.addEdge("m", s1, s2);
+    ConcurrentAnnotationGraph target = ConcurrentAnnotationGraph.getConcurrentAnnotationGraph(d, d.getAnnotations("Set3"));
+    List<Annotation> copies = AnnotationGraph.copySubgraph(source, target, Arrays.asList(s1));
+    assertEquals(2,copies.size());
+    assertEquals(Arrays.asList(copies.get(1)),target.getAnnotations("m", copies.get(0)));
+    assertEquals(Arrays.asList(copies.get(0)),target.getReferencingAnnotations("m", copies.get(1)));
+  }
+
+  @Test
+  public void testConcurrentWriters() throws Exception {
+    logger.debug("Running test testConcurrentWriters");
+    runConcurrentWriters(AnnotationGraph.EdgeStorage.PRIMITIVE);
+  }
+
+  @Test
+  public void testConcurrentWritersHashed() throws Exception {
+    logger.debug("Running test testConcurrentWritersHashed");
+    // removals from hashed lists leave holes, readers must never squeeze them out
+    runConcurrentWriters(AnnotationGraph.EdgeStorage.HASHED);
+  }
+
+  @Test
+  public void testTraversalWhileRemoving() throws Exception {
+    logger.debug("Running test testTraversalWhileRemoving");
+
+    final int nKept = 200;
+    Document d = Factory.newDocument(new String(new char[2*nKept+1]).replace('\0', ' '));
+    AnnotationSet set = d.getAnnotations("Set1");
+    final ConcurrentAnnotationGraph ag = new ConcurrentAnnotationGraph(d, set, 8);
+    ag.addEdgeName("m");
+    // a chain of annotations which stay, each with a leaf which gets removed
+    final List<Annotation> kept = new ArrayList<Annotation>();
+    final List<Annotation> leaves = new ArrayList<Annotation>();
+    for(int i=0; i<nKept; i++) {
+      kept.add(ann(set,2*i,2*i+1,"K",Utils.featureMap()));
+      leaves.add(ann(set,2*i+1,2*i+2,"L",Utils.featureMap()));
+      ag.addEdge("m", kept.get(i), leaves.get(i));
+      if(i > 0) {
+        ag.addEdge("m", kept.get(i-1), kept.get(i));
+      }
+    }
+    final AtomicBoolean failed = new AtomicBoolean(false);
+    ExecutorService pool = Executors.newFixedThreadPool(3);
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    futures.add(pool.submit(new Runnable() {
+      @Override
+      public void run() {
+        for(int i=0; i<nKept; i+=10) {
+          ag.removeAnnotations(leaves.subList(i, i+10));
+        }
+      }
+    }));
+    for(int t=0; t<2; t++) {
+      futures.add(pool.submit(new Runnable() {
+        @Override
+        public void run() {
+          for(int r=0; r<50; r++) {
+            int[] ids = ag.getTransitiveIds("m", kept.get(0));
+            Arrays.sort(ids);
+            // removing the leaves must never make a kept annotation unreachable
+            for(int i=1; i<nKept; i++) {
+              if(Arrays.binarySearch(ids, kept.get(i).getId()) < 0) {
+                failed.set(true);
+              }
+            }
+          }
+        }
+      }));
+    }
+    for(Future<?> f : futures) {
+      f.get();
+    }
+    pool.shutdown();
+    pool.awaitTermination(10, TimeUnit.SECONDS);
+    assertFalse(failed.get());
+    assertEquals(nKept, set.size());
+    assertEquals(nKept-1, ag.getTransitiveIds("m", kept.get(0)).length);
+  }
+
+  private void runConcurrentWriters(AnnotationGraph.EdgeStorage storage) throws Exception {
+    final int nThreads = 4;
+    final int nAnns = 400;
+    Document d = Factory.newDocument(new String(new char[nAnns+1]).replace('\0', ' '));
+    AnnotationSet set = d.getAnnotations("Set1");
+    final ConcurrentAnnotationGraph ag = new ConcurrentAnnotationGraph(d, set, 8);
+    ag.setEdgeStorage(storage);
+    ag.addEdgeName("m");
+    final List<Annotation> anns = new ArrayList<Annotation>();
+    for(int i=0; i<nAnns; i++) {
+      anns.add(ann(set,i,i+1,"T",Utils.featureMap()));
+    }
+    final AtomicBoolean failed = new AtomicBoolean(false);
+    ExecutorService pool = Executors.newFixedThreadPool(nThreads*2);
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for(int t=0; t<nThreads; t++) {
+      final int thread = t;
+      // each writer links every annotation to the annotations thread+1 .. thread+3 positions
+      // further on, and removes the first of these edges again
+      futures.add(pool.submit(new Runnable() {
+        @Override
+        public void run() {
+          for(int i=0; i<nAnns; i++) {
+            Annotation from = anns.get(i);
+            for(int k=1; k<=3; k++) {
+              ag.addEdge("m", from, anns.get((i+thread*3+k) % nAnns));
+            }
+            ag.removeEdge("m", from, anns.get((i+thread*3+1) % nAnns));
+          }
+        }
+      }));
+      // each reader checks that it never sees more edges than can exist at any time
+      futures.add(pool.submit(new Runnable() {
+        @Override
+        public void run() {
+          for(int r=0; r<5; r++) {
+            for(int i=0; i<nAnns; i++) {
+              Annotation a = anns.get(i);
+              if(ag.getIdArray("m", a).length > 3*nThreads) {
+                failed.set(true);
+              }
+              if(ag.getIds("m", a).size() > 3*nThreads) {
+                failed.set(true);
+              }
+              ag.hasEdge("m", a, anns.get((i+1) % nAnns));
+              ag.getTransitiveIds("m", a);
+            }
+          }
+        }
+      }));
+    }
+    for(Future<?> f : futures) {
+      f.get();
+    }
+    pool.shutdown();
+    pool.awaitTermination(10, TimeUnit.SECONDS);
+    assertFalse(failed.get());
+    for(int i=0; i<nAnns; i++) {
+      Annotation a = anns.get(i);
+      assertEquals(2*nThreads,ag.getEdgeSize("m", a));
+      assertEquals(2*nThreads,ag.getReferencingIdArray("m", a).length);
+      for(Annotation b : ag.getAnnotations("m", a)) {
+        assertTrue(ag.getReferencingAnnotations("m", b).contains(a));
+      }
+      Object ids = a.getFeatures().get("_ag.to.m");
+      if(storage == AnnotationGraph.EdgeStorage.HASHED) {
+        assertTrue(((IndexedIntList)ids).isSharedReads());
+      }
+    }
+    int[] sorted = ag.getTransitiveIds("m", anns.get(0));
+    Arrays.sort(sorted);
+    int[] all = new int[nAnns];
+    for(int i=0; i<nAnns; i++) {
+      all[i] = anns.get(i).getId();
+    }
+    Arrays.sort(all);
+    assertArrayEquals(all,sorted);
+  }
+
+  private static Annotation ann(AnnotationSet set, int from, int to, String type, FeatureMap fm) {
+    return set.get(Utils.addAnn(set,from,to,type,fm));
+  }
+
+}
@@ -0,0 +1,139 @@
+package gate.plugins.annotationgraphs.tests;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.Utils;
+import gate.creole.ExecutionException;
+import gate.plugins.annotationgraphs.AnnotationGraph;
+import gate.plugins.annotationgraphs.AnnotationGraphBuilder;
+import gate.plugins.annotationgraphs.ParallelCorpusExecutor;
+import gate.util.GateException;
+import java.util.List;
+import org.apache.log4j.Logger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the graph building processing resource.
+ *
+ * @author Johann Petrak
+ */
+public class Test5 {
+
+  private static final Logger logger = Logger.getLogger(Test5.class);
+
+  @Before
+  public void setup() throws GateException {
+    if(!Gate.isInitialised()) {
+      Gate.runInSandbox(true);
+      Gate.init();
+    }
+  }
+
+  /**
+   * Create a document with two sentences of three and two tokens.
+   */
+  private static Document document() {
+    Document d = Factory.newDocument(new String(new char[20]).replace('\0', ' '));
+    AnnotationSet set = d.getAnnotations("Set1");
+    ann(set,0,9,"Sentence",Utils.featureMap());
+    ann(set,10,16,"Sentence",Utils.featureMap());
+    for(int i=0; i<3; i++) {
+      ann(set,i*3,i*3+2,"Token",Utils.featureMap());
+    }
+    for(int i=0; i<2; i++) {
+      ann(set,10+i*3,10+i*3+2,"Token",Utils.featureMap());
+    }
+    return d;
+  }
+
+  @Test
+  public void testBuilder() throws GateException {
+    logger.debug("Running test testBuilder");
+
+    Document d = document();
+    AnnotationSet set = d.getAnnotations("Set1");
+    AnnotationGraphBuilder pr = new AnnotationGraphBuilder();
+    pr.init();
+    pr.setInputAnnotationSet("Set1");
+    pr.setInputType("Token");
+    pr.setContainerType("Sentence");
+    pr.setOperation(AnnotationGraphBuilder.Operation.SEQUENCE);
+    pr.setEdgeName("next");
+    pr.setReverseEdgeName("prev");
+    pr.setDocument(d);
+    pr.execute();
+    AnnotationGraph ag = AnnotationGraph.getAnnotationGraph(d, set);
+    List<Annotation> tokens = set.get("Token").inDocumentOrder();
+    // sequences do not cross sentence boundaries
+    assertEquals(2,ag.getTransitiveIds("next", tokens.get(0)).length);
+    assertEquals(0,ag.getEdgeSize("next", tokens.get(2)));
+    assertEquals(1,ag.getEdgeSize("prev", tokens.get(4)));
+
+    pr.setOperation(AnnotationGraphBuilder.Operation.CONTAINED);
+    pr.setEdgeName("tokens");
+    pr.execute();
+    List<Annotation> sentences = set.get("Sentence").inDocumentOrder();
+    assertEquals(tokens.subList(0, 3),ag.getAnnotations("tokens", sentences.get(0)));
+    assertEquals(tokens.subList(3, 5),ag.getAnnotations("tokens", sentences.get(1)));
+
+    pr.setOperation(AnnotationGraphBuilder.Operation.MAX_OVERLAPPING);
+    pr.setContainerType(null);
+    pr.setInputType("Sentence");
+    pr.setEdgeName("ovl");
+    pr.setMinSize(0);
+    pr.execute();
+    assertEquals(2,set.get("Range").size());
+
+    pr.setOperation(AnnotationGraphBuilder.Operation.CONTAINED);
+    try {
+      pr.execute();
+      assertTrue("Expected an exception", false);
+    } catch(ExecutionException ex) {
+      // expected, CONTAINED needs a container type
+    }
+  }
+
+  @Test
+  public void testParallel() throws GateException {
+    logger.debug("Running test testParallel");
+
+    Corpus corpus = Factory.newCorpus("corpus");
+    for(int i=0; i<20; i++) {
+      corpus.add(document());
+    }
+    AnnotationGraphBuilder pr = new AnnotationGraphBuilder();
+    pr.init();
+    pr.setInputAnnotationSet("Set1");
+    pr.setInputType("Token");
+    pr.setContainerType("Sentence");
+    pr.setOperation(AnnotationGraphBuilder.Operation.CONTAINED);
+    pr.setEdgeName("tokens");
+    ParallelCorpusExecutor executor = new ParallelCorpusExecutor(pr, 4);
+    try {
+      assertEquals(4,executor.getNumberOfThreads());
+      executor.execute(corpus);
+    } finally {
+      executor.close();
+    }
+    for(Document d : corpus) {
+      AnnotationSet set = d.getAnnotations("Set1");
+      AnnotationGraph ag = AnnotationGraph.getAnnotationGraph(d, set);
+      List<Annotation> sentences = set.get("Sentence").inDocumentOrder();
+      assertEquals(3,ag.getEdgeSize("tokens", sentences.get(0)));
+      assertEquals(2,ag.getEdgeSize("tokens", sentences.get(1)));
+    }
+  }
+
+  private static Annotation ann(AnnotationSet set, int from, int to, String type, FeatureMap fm) {
+    return set.get(Utils.addAnn(set,from,to,type,fm));
+  }
+
+}
@@ -6,6 +6,10 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
   Test1.class,
+  Test2.class,
+  Test3.class,
+  Test4.class,
+  Test5.class,
 })
 public class TestAll {
   public static void main(String args[]) {